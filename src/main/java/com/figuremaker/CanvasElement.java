@@ -2,12 +2,18 @@ package com.figuremaker;
 
 import java.awt.*;
 
-public abstract class CanvasElement {
+public abstract class CanvasElement implements Cloneable {
+    // Selection borders and resize handles are drawn just outside the bounds
+    protected static final int SELECTION_MARGIN = 4;
+    
     protected int x;
     protected int y;
     protected int width;
     protected int height;
     protected boolean selected;
+    private int revision;
+    // The group holding this element, told whenever it moves or changes
+    private GroupElement parent;
     
     public CanvasElement(int x, int y, int width, int height) {
         this.x = x;
@@ -19,18 +25,70 @@ public abstract class CanvasElement {
     
     public abstract void draw(Graphics g);
     
+    /**
+     * Elements drawn and skipped during one paint. A skipped group counts
+     * once, since its children are never looked at.
+     */
+    public static class PaintCounts {
+        int drawn;
+        int culled;
+    }
+    
+    /**
+     * Draw only if the paint bounds reach the clip (in canvas coordinates),
+     * counting the elements drawn or skipped, descendants included.
+     */
+    public void drawVisible(Graphics g, Rectangle clip, PaintCounts counts) {
+        if (clip != null && !getPaintBounds().intersects(clip)) {
+            counts.culled++;
+            return;
+        }
+        draw(g);
+        counts.drawn++;
+    }
+    
     public boolean contains(int px, int py) {
         return px >= x && px <= x + width && py >= y && py <= y + height;
     }
     
+    /**
+     * Area covered by hit-testing, in canvas coordinates.
+     */
+    public Rectangle getBounds() {
+        return new Rectangle(x, y, width, height);
+    }
+    
+    /**
+     * Area that draw() may touch, including strokes and selection decorations.
+     */
+    public Rectangle getPaintBounds() {
+        Rectangle bounds = getBounds();
+        bounds.grow(SELECTION_MARGIN, SELECTION_MARGIN);
+        return bounds;
+    }
+    
+    /**
+     * Paint bounds in canvas coordinates, through the transforms of any
+     * enclosing groups.
+     */
+    public Rectangle getCanvasPaintBounds() {
+        Rectangle bounds = getPaintBounds();
+        for (GroupElement group = parent; group != null; group = group.getParent()) {
+            bounds = group.toParentSpace(bounds);
+        }
+        return bounds;
+    }
+    
     public void move(int dx, int dy) {
         this.x += dx;
         this.y += dy;
+        notifyParent();
     }
     
     public void setPosition(int x, int y) {
         this.x = x;
         this.y = y;
+        notifyParent();
     }
     
     public int getX() { return x; }
@@ -43,6 +101,50 @@ public abstract class CanvasElement {
     public void setSize(int width, int height) {
         this.width = width;
         this.height = height;
+        invalidate();
+    }
+    
+    /**
+     * Changes whenever the element's appearance changes in any way other than
+     * moving it, so cached renderings can tell when they are stale.
+     */
+    public int getRevision() {
+        return revision;
+    }
+    
+    protected void invalidate() {
+        revision++;
+        notifyParent();
+    }
+    
+    GroupElement getParent() {
+        return parent;
+    }
+    
+    void setParent(GroupElement parent) {
+        this.parent = parent;
+    }
+    
+    private void notifyParent() {
+        if (parent != null) {
+            parent.childChanged();
+        }
+    }
+    
+    /**
+     * Shallow copy used for document snapshots. Paths, fonts, colours and
+     * image data are shared with the original; edits replace them rather
+     * than change them in place, so sharing is safe.
+     */
+    public CanvasElement copy() {
+        try {
+            CanvasElement copy = (CanvasElement) super.clone();
+            copy.selected = false;
+            copy.parent = null;
+            return copy;
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
     }
     
     public abstract String getType();
@@ -28,18 +28,29 @@ public class CircleElement extends CanvasElement {
         // Draw stroke
         if (strokeColor != null && strokeWidth > 0) {
             g2d.setColor(strokeColor);
-            g2d.setStroke(new BasicStroke(strokeWidth));
+            g2d.setStroke(GraphicsCache.stroke(strokeWidth));
             g2d.drawOval(x, y, width, height);
         }
         
         // Draw selection border
         if (selected) {
             g2d.setColor(Color.BLUE);
-            g2d.setStroke(new BasicStroke(2, BasicStroke.CAP_BUTT, BasicStroke.JOIN_BEVEL, 0, new float[]{5}, 0));
+            g2d.setStroke(GraphicsCache.SELECTION_STROKE);
             g2d.drawRect(x - 2, y - 2, width + 4, height + 4);
         }
     }
     
+    @Override
+    public Rectangle getPaintBounds() {
+        Rectangle bounds = super.getPaintBounds();
+        if (strokeColor != null && strokeWidth > 0) {
+            // Allow for joins poking out past half the stroke width
+            int extent = (int) Math.ceil(strokeWidth);
+            bounds.grow(extent, extent);
+        }
+        return bounds;
+    }
+    
     @Override
     public String getType() {
         return "circle";
@@ -0,0 +1,691 @@
+package com.figuremaker;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import javax.swing.SwingUtilities;
+
+/**
+ * Append-only log of canvas edits, so work since the last save survives a
+ * crash. The journal starts with a header naming the .fmk file it applies
+ * to, followed by one short line per edit addressed by top-level element
+ * index. Lines are written on a background thread. Every so often the
+ * whole document is written out as a snapshot and the journal restarts on
+ * top of it, which keeps both the journal and its replay short.
+ *
+ * Each running instance keeps its own journal and snapshots, named after
+ * a session whose lock file it holds locked. Only sessions whose lock can
+ * be taken, those that have ended, are offered for recovery or cleaned up.
+ *
+ * If a write fails the journal stops and the StatusListeners are told; it
+ * is tried again when the journal next starts afresh, at a compaction, a
+ * save or a new document.
+ *
+ * All public methods except findRecovery and Recovery.replay must be called
+ * on the EDT.
+ */
+public class EditJournal {
+    private static final String HEADER = "FMJ1 ";
+    private static final String SESSION_PREFIX = "session-";
+    private static final String LOCK_SUFFIX = ".lock";
+    private static final String JOURNAL_SUFFIX = ".fmj";
+    private static final int COMPACT_AFTER_EDITS = 1000;
+    private static final int COMPACT_INTERVAL_MS = 2 * 60 * 1000;
+
+    private static final char MOVE = 'P';
+    private static final char RESIZE = 'R';
+    private static final char ADD = 'A';
+    private static final char DELETE = 'D';
+    private static final char UNGROUP = 'U';
+    private static final char TEXT = 'T';
+    private static final char RELEASE_CLIP = 'C';
+
+    /**
+     * Position in the journal when a save was started; see rebase.
+     */
+    public static class Mark {
+        private int generation = -1;
+        private int lines;
+    }
+
+    /**
+     * A journal left behind by a session that did not shut down cleanly.
+     */
+    public static class Recovery {
+        private final Session session;
+        private final File base;
+        private final List<String> edits;
+
+        private Recovery(Session session, File base, List<String> edits) {
+            this.session = session;
+            this.base = base;
+            this.edits = edits;
+        }
+
+        public File getBase() {
+            return base;
+        }
+
+        public int getEditCount() {
+            return edits.size();
+        }
+
+        /**
+         * Load the base document and apply the journaled edits to it.
+         * Replay stops at the first edit that no longer applies.
+         */
+        public List<CanvasElement> replay() throws IOException {
+            List<CanvasElement> elements = base != null ? new ArrayList<>(FigureFile.load(base)) : new ArrayList<>();
+            for (String edit : edits) {
+                try {
+                    apply(elements, edit);
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("Stopping journal replay at '" + abbreviate(edit) + "': " + e.getMessage());
+                    break;
+                }
+            }
+            return elements;
+        }
+
+        /** Delete the journal and its snapshots when recovery is declined. */
+        public void discard() {
+            session.delete(null);
+        }
+
+        /** Leave the journal for a later session to offer again. */
+        public void release() {
+            session.release();
+        }
+    }
+
+    /**
+     * The files of one session: a lock file, locked while the session runs,
+     * the journal, and snapshots and temporary files named after it.
+     */
+    private static class Session {
+        private final File directory;
+        private final String name;
+        private FileChannel channel;
+
+        private Session(File directory, String name) {
+            this.directory = directory;
+            this.name = name;
+        }
+
+        // A new session, locked, with a name no other session has used
+        private static Session create(File directory) throws IOException {
+            while (true) {
+                File lockFile = File.createTempFile(SESSION_PREFIX, LOCK_SUFFIX, directory);
+                String name = lockFile.getName();
+                Session session = new Session(directory, name.substring(0, name.length() - LOCK_SUFFIX.length()));
+                if (session.tryLock()) {
+                    return session;
+                }
+            }
+        }
+
+        private File lockFile() {
+            return new File(directory, name + LOCK_SUFFIX);
+        }
+
+        private File journalFile() {
+            return new File(directory, name + JOURNAL_SUFFIX);
+        }
+
+        private File createFile(String suffix) throws IOException {
+            return File.createTempFile(name + "-", suffix, directory);
+        }
+
+        private boolean owns(File file) {
+            return file.getName().startsWith(name + "-");
+        }
+
+        /**
+         * Lock the session; false if it is still running, in this process
+         * or another.
+         */
+        private boolean tryLock() throws IOException {
+            File lockFile = lockFile();
+            channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            FileLock lock;
+            try {
+                lock = channel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                lock = null;
+            }
+            // A session that ended and was cleaned up just now leaves the
+            // lock on a deleted file
+            if (lock == null || !lockFile.exists()) {
+                release();
+                return false;
+            }
+            return true;
+        }
+
+        private void release() {
+            if (channel == null) return;
+            try {
+                // Closing the channel releases the lock
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Error releasing edit journal lock: " + e.getMessage());
+            }
+            channel = null;
+        }
+
+        // Delete the session's files, all but keep, then give up the lock
+        private void delete(File keep) {
+            journalFile().delete();
+            File[] owned = directory.listFiles((dir, fileName) -> fileName.startsWith(name + "-"));
+            if (owned != null) {
+                for (File file : owned) {
+                    if (!file.equals(keep)) {
+                        file.delete();
+                    }
+                }
+            }
+            lockFile().delete();
+            release();
+        }
+    }
+
+    /**
+     * Told on the EDT when journaling stops after an error or works again.
+     */
+    public interface StatusListener {
+        void journalStatusChanged(boolean working);
+    }
+
+    private static final Gson gson = new Gson();
+
+    private final File directory;
+    private final Supplier<List<CanvasElement>> snapshotSource;
+    private final ThreadPoolExecutor writer;
+    private final javax.swing.Timer compactTimer;
+    private final List<StatusListener> statusListeners = new ArrayList<>();
+    private int editsSinceCompaction;
+    private boolean active;
+
+    // Owned by the writer thread
+    private Session session;
+    private Writer out;
+    private File base;
+    private int generation;
+    private int lines;
+    private volatile boolean failed;
+
+    public EditJournal(File directory, Supplier<List<CanvasElement>> snapshotSource) {
+        this.directory = directory;
+        this.snapshotSource = snapshotSource;
+        this.writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "edit-journal");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.compactTimer = new javax.swing.Timer(COMPACT_INTERVAL_MS, e -> {
+            if (editsSinceCompaction > 0) {
+                compact();
+            }
+        });
+    }
+
+    public static File defaultDirectory() {
+        return new File(System.getProperty("user.home"), ".figuremaker");
+    }
+
+    /**
+     * Begin a fresh journal on top of a saved file, or of an empty document
+     * when base is null.
+     */
+    public void start(File base) {
+        active = true;
+        editsSinceCompaction = 0;
+        compactTimer.restart();
+        reopen(() -> open(base, Collections.emptyList()));
+    }
+
+    /**
+     * Carry on with a recovered journal, so the recovered edits stay
+     * protected until the next save or compaction.
+     */
+    public void resume(Recovery recovery) {
+        active = true;
+        editsSinceCompaction = recovery.edits.size();
+        compactTimer.restart();
+        reopen(() -> {
+            open(recovery.base, recovery.edits);
+            // The recovered base, if a snapshot, is now this session's
+            recovery.session.delete(recovery.base);
+        });
+    }
+
+    public void recordMove(int index, int x, int y) {
+        record(MOVE + " " + index + " " + x + " " + y);
+    }
+
+    public void recordResize(int index, int x, int y, int width, int height) {
+        record(RESIZE + " " + index + " " + x + " " + y + " " + width + " " + height);
+    }
+
+    public void recordAdd(int index, CanvasElement element) {
+        if (!active) return;
+        try {
+            record(ADD + " " + index + " " + FigureFile.elementToJson(element));
+        } catch (IOException e) {
+            // Fall back to a snapshot so the journal never misses an element
+            compact();
+        }
+    }
+
+    public void recordDelete(int index) {
+        record(DELETE + " " + index);
+    }
+
+    public void recordUngroup(int index) {
+        record(UNGROUP + " " + index);
+    }
+
+    public void recordTextChange(int index, String text) {
+        record(TEXT + " " + index + " " + gson.toJson(text));
+    }
+
+    public void recordClipRelease(int index) {
+        record(RELEASE_CLIP + " " + index);
+    }
+
+    /**
+     * Write the current document as a snapshot and restart the journal on
+     * top of it. Used periodically and after bulk changes such as imports.
+     */
+    public void compact() {
+        if (!active) return;
+        List<CanvasElement> snapshot = snapshotSource.get();
+        editsSinceCompaction = 0;
+        // A snapshot holds everything, so it also restarts a failed journal
+        reopen(() -> {
+            File oldBase = base;
+            File snapshotFile = openSession().createFile(".fmk");
+            try {
+                // Full precision, like the journal records replayed on top of it
+                FigureFile.save(snapshot, snapshotFile, FigureFile.FULL_PATH_PRECISION);
+            } catch (IOException e) {
+                snapshotFile.delete();
+                throw e;
+            }
+            open(snapshotFile, Collections.emptyList());
+            deleteIfSnapshot(oldBase);
+        });
+    }
+
+    /**
+     * Note where the journal stands as a save begins. Pass the mark to
+     * rebase once the save has succeeded.
+     */
+    public Mark mark() {
+        Mark mark = new Mark();
+        submit(() -> {
+            mark.generation = generation;
+            mark.lines = lines;
+        });
+        return mark;
+    }
+
+    /**
+     * Restart the journal on top of a freshly saved file, keeping the edits
+     * made while the save was running.
+     */
+    public void rebase(Mark mark, File savedFile) {
+        if (!active) return;
+        if (failed) {
+            // The journal lost edits, so restart from the whole document
+            compact();
+            return;
+        }
+        submit(() -> {
+            // A compaction since the mark already gave the journal a newer base
+            if (mark.generation != generation) return;
+
+            out.flush();
+            List<String> edits = readEdits(session.journalFile(), null);
+            File oldBase = base;
+            open(savedFile, edits.subList(Math.min(mark.lines, edits.size()), edits.size()));
+            deleteIfSnapshot(oldBase);
+        });
+    }
+
+    /**
+     * Remove the journal on a clean shutdown. Waits briefly for pending
+     * writes so the files are not left half deleted.
+     */
+    public void discard() {
+        active = false;
+        compactTimer.stop();
+        if (writer.isShutdown()) return;
+        writer.execute(() -> {
+            closeOutput();
+            deleteIfSnapshot(base);
+            base = null;
+            if (session != null) {
+                session.delete(null);
+                session = null;
+            }
+        });
+        writer.shutdown();
+        try {
+            writer.awaitTermination(2, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Look for a journal with edits that were never saved, left by a
+     * session that has ended. Ended sessions with nothing worth recovering
+     * are deleted along the way. Returns null if there is nothing to
+     * recover; otherwise the caller must resume, discard or release the
+     * recovery.
+     */
+    public Recovery findRecovery() {
+        String[] names = directory.list((dir, name) -> name.startsWith(SESSION_PREFIX)
+            && (name.endsWith(LOCK_SUFFIX) || name.endsWith(JOURNAL_SUFFIX)));
+        if (names == null) return null;
+        Set<String> sessionNames = new TreeSet<>();
+        for (String name : names) {
+            sessionNames.add(name.substring(0, name.lastIndexOf('.')));
+        }
+
+        for (String name : sessionNames) {
+            Session ended = new Session(directory, name);
+            try {
+                if (!ended.tryLock()) continue;
+            } catch (IOException e) {
+                System.err.println("Cannot lock edit journal " + name + ": " + e.getMessage());
+                continue;
+            }
+            try {
+                File journalFile = ended.journalFile();
+                if (journalFile.isFile()) {
+                    File[] recoveredBase = new File[1];
+                    List<String> edits = readEdits(journalFile, recoveredBase);
+                    File recovered = recoveredBase[0];
+                    if (!edits.isEmpty() || isSnapshot(recovered)) {
+                        return new Recovery(ended, recovered, edits);
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Ignoring unreadable edit journal: " + e.getMessage());
+            }
+            ended.delete(null);
+        }
+        return null;
+    }
+
+    public boolean isWorking() {
+        return !failed;
+    }
+
+    public void addStatusListener(StatusListener listener) {
+        statusListeners.add(listener);
+    }
+
+    public void removeStatusListener(StatusListener listener) {
+        statusListeners.remove(listener);
+    }
+
+    private void record(String edit) {
+        if (!active) return;
+        if (!failed) {
+            submit(() -> {
+                out.write(edit);
+                out.write('\n');
+                lines++;
+                // Flush once per burst of edits rather than per line
+                if (writer.getQueue().isEmpty()) {
+                    out.flush();
+                }
+            });
+        }
+        // Still counted while failed, so the next compaction retries
+        if (++editsSinceCompaction >= COMPACT_AFTER_EDITS) {
+            compact();
+        }
+    }
+
+    private interface JournalTask {
+        void run() throws IOException;
+    }
+
+    private void submit(JournalTask task) {
+        submit(task, false);
+    }
+
+    // Run a task that starts the journal afresh, even after a failure
+    private void reopen(JournalTask task) {
+        submit(task, true);
+    }
+
+    private void submit(JournalTask task, boolean reopens) {
+        if (writer.isShutdown()) return;
+        writer.execute(() -> {
+            if (failed && !reopens) return;
+            try {
+                task.run();
+                if (failed) {
+                    failed = false;
+                    fireStatusChanged();
+                }
+            } catch (IOException | RuntimeException e) {
+                // Losing crash protection should never get in the way of editing
+                closeOutput();
+                System.err.println("Edit journal disabled: " + e.getMessage());
+                if (!failed) {
+                    failed = true;
+                    fireStatusChanged();
+                }
+            }
+        });
+    }
+
+    private void fireStatusChanged() {
+        boolean working = !failed;
+        SwingUtilities.invokeLater(() -> {
+            for (StatusListener listener : new ArrayList<>(statusListeners)) {
+                listener.journalStatusChanged(working);
+            }
+        });
+    }
+
+    // Writer thread: replace the journal with one holding the given edits
+    private void open(File newBase, List<String> edits) throws IOException {
+        closeOutput();
+        File journalFile = openSession().journalFile();
+
+        // Build the new journal aside and swap it in, so a crash at any
+        // point leaves either the old journal or the new one
+        File temp = session.createFile(".tmp");
+        try {
+            try (FileOutputStream stream = new FileOutputStream(temp)) {
+                Writer tempOut = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+                tempOut.write(HEADER + gson.toJson(newBase != null ? newBase.getAbsolutePath() : null));
+                tempOut.write('\n');
+                for (String edit : edits) {
+                    tempOut.write(edit);
+                    tempOut.write('\n');
+                }
+                tempOut.flush();
+                stream.getFD().sync();
+            }
+            try {
+                Files.move(temp.toPath(), journalFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            temp.delete();
+        }
+
+        out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFile, true), StandardCharsets.UTF_8));
+        base = newBase;
+        lines = edits.size();
+        generation++;
+
+        // Snapshots left by an interrupted compaction
+        File[] stale = directory.listFiles((dir, name) -> session.owns(new File(dir, name)));
+        if (stale != null) {
+            for (File file : stale) {
+                if (!file.equals(newBase)) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    // Writer thread: the session, locked, starting it on first use
+    private Session openSession() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        // Start over if the session's files were deleted from under it
+        if (session != null && !session.lockFile().exists()) {
+            session.release();
+            session = null;
+        }
+        if (session == null) {
+            session = Session.create(directory);
+        }
+        return session;
+    }
+
+    private void closeOutput() {
+        if (out == null) return;
+        try {
+            out.close();
+        } catch (IOException e) {
+            System.err.println("Error closing edit journal: " + e.getMessage());
+        }
+        out = null;
+    }
+
+    private boolean isSnapshot(File file) {
+        return file != null && directory.equals(file.getParentFile())
+            && file.getName().startsWith(SESSION_PREFIX) && file.getName().endsWith(".fmk");
+    }
+
+    private void deleteIfSnapshot(File file) {
+        if (isSnapshot(file)) {
+            file.delete();
+        }
+    }
+
+    // Read the edit lines of a journal, dropping a torn final line
+    private static List<String> readEdits(File file, File[] baseOut) throws IOException {
+        List<String> edits = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String header = in.readLine();
+            if (header == null || !header.startsWith(HEADER)) {
+                throw new IOException("Not an edit journal");
+            }
+            if (baseOut != null) {
+                try {
+                    String path = gson.fromJson(header.substring(HEADER.length()), String.class);
+                    baseOut[0] = path != null ? new File(path) : null;
+                } catch (JsonParseException e) {
+                    throw new IOException("Damaged edit journal header", e);
+                }
+            }
+
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) >= 0) {
+                if (c == '\n') {
+                    if (line.length() > 0) {
+                        edits.add(line.toString());
+                    }
+                    line.setLength(0);
+                } else {
+                    line.append((char) c);
+                }
+            }
+            // Whatever follows the last newline was cut off mid-write
+        }
+        return edits;
+    }
+
+    private static void apply(List<CanvasElement> elements, String edit) throws IOException {
+        char op = edit.charAt(0);
+        String[] parts = edit.split(" ", 3);
+        int index = Integer.parseInt(parts[1]);
+
+        switch (op) {
+            case MOVE: {
+                String[] args = parts[2].split(" ");
+                elements.get(index).setPosition(Integer.parseInt(args[0]), Integer.parseInt(args[1]));
+                break;
+            }
+            case RESIZE: {
+                String[] args = parts[2].split(" ");
+                CanvasElement element = elements.get(index);
+                element.setPosition(Integer.parseInt(args[0]), Integer.parseInt(args[1]));
+                element.setSize(Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+                break;
+            }
+            case ADD: {
+                CanvasElement element = FigureFile.elementFromJson(parts[2]);
+                if (element == null) {
+                    throw new IOException("Unknown element");
+                }
+                elements.add(index, element);
+                break;
+            }
+            case DELETE:
+                elements.remove(index);
+                break;
+            case UNGROUP: {
+                // Same as FigureCanvas: the children go to the top of the stack
+                CanvasElement group = elements.remove(index);
+                if (group instanceof PathElement) {
+                    elements.addAll(((PathElement) group).splitParts());
+                } else if (group instanceof MarkerCloudElement) {
+                    elements.addAll(((MarkerCloudElement) group).splitMarkers());
+                } else if (group instanceof PrimitiveLayerElement) {
+                    elements.addAll(((PrimitiveLayerElement) group).splitShapes());
+                } else if (group instanceof InstanceElement) {
+                    elements.addAll(((InstanceElement) group).toPaths());
+                } else {
+                    elements.addAll(((GroupElement) group).releaseChildren());
+                }
+                break;
+            }
+            case TEXT:
+                ((TextElement) elements.get(index)).setText(gson.fromJson(parts[2], String.class));
+                break;
+            case RELEASE_CLIP:
+                ((GroupElement) elements.get(index)).releaseClippingMask();
+                break;
+            default:
+                throw new IOException("Unknown edit");
+        }
+    }
+
+    private static String abbreviate(String edit) {
+        return edit.length() > 60 ? edit.substring(0, 60) + "..." : edit;
+    }
+}
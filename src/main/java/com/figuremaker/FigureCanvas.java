@@ -1,30 +1,97 @@
 package com.figuremaker;
 
-import com.google.gson.*;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.swing.undo.AbstractUndoableEdit;
+import javax.swing.undo.CompoundEdit;
+import javax.swing.undo.UndoableEdit;
 
 public class FigureCanvas extends JPanel {
     private List<CanvasElement> elements;
+    private SpatialIndex spatialIndex;
+    private long nextOrder;
+    private RasterCache rasterCache;
+    private boolean rasterCacheEnabled;
+    private ImageLoader imageLoader;
+    private EditJournal editJournal;
+    private UndoHistory undoHistory;
+    // Newly added images whose size is only known once they are decoded
+    private Set<ImageElement> naturalSizePending;
+    // Undoable edits holding images that have not decoded yet, so an image
+    // that never loads can be taken out of them
+    private Map<ImageElement, List<StackEdit>> editsAwaitingImages;
+    // Everything selected, in the order it was picked. selectedElement is
+    // the one picked last, which keeps the menus and text editing
+    private Set<CanvasElement> selection;
     private CanvasElement selectedElement;
     private Point dragStart;
     private Point elementDragStart;
+    // Bounds of every selected element when the current drag began
+    private Map<CanvasElement, Rectangle> dragStartBounds;
+    // Clicked within a larger selection; becomes the only selected element
+    // unless the click turns into a drag
+    private CanvasElement soleSelectionOnRelease;
+    // Rubber band in canvas coordinates while one is being dragged out
+    private Point bandStart;
+    private Rectangle band;
     private boolean isDragging;
     private boolean isResizing;
     private int resizeHandle; // -1=none, 0=top-left, 1=top-right, 2=bottom-left, 3=bottom-right
     private int startWidth;
     private int startHeight;
     private double scale = 1.0;
+    private int lastPaintDrawn;
+    private int lastPaintCulled;
+    private long totalCulled;
     private static final double ZOOM_STEP = 1.1;
     private static final double MIN_SCALE = 0.1;
     private static final double MAX_SCALE = 10.0;
+    private static final int PLACEHOLDER_WIDTH = 200;
+    private static final int PLACEHOLDER_HEIGHT = 150;
+    private static final Color BAND_FILL = new Color(0, 120, 215, 40);
+    private static final Color BAND_OUTLINE = new Color(0, 120, 215);
+    
+    private enum Alignment { LEFT, CENTER, RIGHT, TOP, MIDDLE, BOTTOM }
     
     public FigureCanvas() {
         elements = new ArrayList<>();
+        selection = new LinkedHashSet<>();
+        dragStartBounds = new LinkedHashMap<>();
+        spatialIndex = new SpatialIndex();
+        rasterCache = new RasterCache();
+        naturalSizePending = Collections.newSetFromMap(new IdentityHashMap<>());
+        editsAwaitingImages = new IdentityHashMap<>();
+        imageLoader = new ImageLoader(new ImageLoader.Listener() {
+            @Override
+            public void imageLoaded(ImageElement element, ImageElement.DecodedImage image) {
+                handleImageLoaded(element, image);
+            }
+            
+            @Override
+            public void imageFailed(ImageElement element, Exception error) {
+                handleImageFailed(element, error);
+            }
+            
+            @Override
+            public void imageCancelled(ImageElement element) {
+                handleImageCancelled(element);
+            }
+        });
+        // Started by the window once any crash recovery has been offered
+        editJournal = new EditJournal(EditJournal.defaultDirectory(), this::createSnapshot);
+        undoHistory = new UndoHistory();
         setPreferredSize(new Dimension(800, 600));
         setBackground(Color.WHITE);
         setLayout(null);
@@ -85,11 +152,7 @@ public class FigureCanvas extends JPanel {
                         if (te.isEditing()) return;
                     }
 
-                    if (selectedElement != null) {
-                        elements.remove(selectedElement);
-                        selectedElement = null;
-                        repaint();
-                    }
+                    deleteSelection();
                     return;
                 }
 
@@ -117,78 +180,82 @@ public class FigureCanvas extends JPanel {
         int lx = (int) (x / scale);
         int ly = (int) (y / scale);
 
-        if (selectedElement instanceof ImageElement) {
-            ImageElement imageElement = (ImageElement) selectedElement;
-            int handle = imageElement.getResizeHandleAt(lx, ly);
+        ImageElement handleOwner = findResizeHandleOwner(lx, ly);
+        int handle = handleOwner != null ? handleOwner.getResizeHandleAt(lx, ly) : -1;
 
-            switch (handle) {
-                case 0: // Top-left
-                case 3: // Bottom-right
-                    setCursor(Cursor.getPredefinedCursor(Cursor.NW_RESIZE_CURSOR));
-                    break;
-                case 1: // Top-right
-                case 2: // Bottom-left
-                    setCursor(Cursor.getPredefinedCursor(Cursor.NE_RESIZE_CURSOR));
-                    break;
-                default:
+        switch (handle) {
+            case 0: // Top-left
+            case 3: // Bottom-right
+                setCursor(Cursor.getPredefinedCursor(Cursor.NW_RESIZE_CURSOR));
+                break;
+            case 1: // Top-right
+            case 2: // Bottom-left
+                setCursor(Cursor.getPredefinedCursor(Cursor.NE_RESIZE_CURSOR));
+                break;
+            default:
+                // Hovering over any element shows that it can be dragged
+                if (findElementAt(lx, ly) != null) {
+                    setCursor(Cursor.getPredefinedCursor(Cursor.MOVE_CURSOR));
+                } else {
                     setCursor(Cursor.getDefaultCursor());
-                    break;
-            }
-        } else {
-            setCursor(Cursor.getDefaultCursor());
+                }
+                break;
         }
     }
     
     private void handleMousePressed(MouseEvent e) {
         requestFocusInWindow();
         // Stop editing any text element
-        for (CanvasElement element : elements) {
-            if (element instanceof TextElement) {
-                TextElement textElement = (TextElement) element;
-                if (textElement.isEditing()) {
-                    textElement.stopEditing(this);
-                }
-            }
-        }
-        
-        // Check if clicking on a resize handle of the selected element
-        if (selectedElement instanceof ImageElement) {
-            ImageElement imageElement = (ImageElement) selectedElement;
-            int lx = (int) (e.getX() / scale);
-            int ly = (int) (e.getY() / scale);
-            resizeHandle = imageElement.getResizeHandleAt(lx, ly);
-
-            if (resizeHandle >= 0) {
-                isResizing = true;
-                isDragging = false;
-                dragStart = new Point(lx, ly);
-                elementDragStart = new Point(selectedElement.getX(), selectedElement.getY());
-                startWidth = selectedElement.getWidth();
-                startHeight = selectedElement.getHeight();
-                return;
-            }
-        }
+        stopTextEditing();
         
-        // Find element at click position (convert to logical coords)
         int lx = (int) (e.getX() / scale);
         int ly = (int) (e.getY() / scale);
+        
+        // Check if clicking on a resize handle of a selected image
+        ImageElement handleOwner = findResizeHandleOwner(lx, ly);
+        if (handleOwner != null) {
+            resizeHandle = handleOwner.getResizeHandleAt(lx, ly);
+            selectedElement = handleOwner;
+            isResizing = true;
+            isDragging = false;
+            beginDrag(lx, ly);
+            startWidth = selectedElement.getWidth();
+            startHeight = selectedElement.getHeight();
+            return;
+        }
+        
+        // Find element at click position
         CanvasElement clickedElement = findElementAt(lx, ly);
         
         if (clickedElement != null) {
-            if (selectedElement != null) {
-                selectedElement.setSelected(false);
+            // Shift toggles the element; a plain click on an unselected one
+            // selects just that, while one on the selection keeps it to drag
+            if (e.isShiftDown() && selection.contains(clickedElement)) {
+                deselect(clickedElement);
+            } else {
+                if (!e.isShiftDown() && e.getButton() == MouseEvent.BUTTON1 && selection.size() > 1
+                        && selection.contains(clickedElement)) {
+                    soleSelectionOnRelease = clickedElement;
+                }
+                if (!e.isShiftDown() && !selection.contains(clickedElement)) {
+                    clearSelection();
+                }
+                select(clickedElement);
             }
-            selectedElement = clickedElement;
-            selectedElement.setSelected(true);
             
-            dragStart = new Point(lx, ly);
-            elementDragStart = new Point(selectedElement.getX(), selectedElement.getY());
             isDragging = false;
             isResizing = false;
+            // An element just toggled off is not something to drag
+            if (selection.contains(clickedElement)) {
+                beginDrag(lx, ly);
+            }
         } else {
-            if (selectedElement != null) {
-                selectedElement.setSelected(false);
-                selectedElement = null;
+            if (!e.isShiftDown()) {
+                clearSelection();
+            }
+            // Empty space starts a rubber band
+            if (e.getButton() == MouseEvent.BUTTON1) {
+                bandStart = new Point(lx, ly);
             }
         }
         
@@ -205,6 +272,24 @@ public class FigureCanvas extends JPanel {
         
         JPopupMenu popup = new JPopupMenu();
         
+        if (selection.size() > 1) {
+            JMenu alignMenu = new JMenu("Align");
+            addAlignItem(alignMenu, "Left Edges", Alignment.LEFT);
+            addAlignItem(alignMenu, "Horizontal Centers", Alignment.CENTER);
+            addAlignItem(alignMenu, "Right Edges", Alignment.RIGHT);
+            alignMenu.addSeparator();
+            addAlignItem(alignMenu, "Top Edges", Alignment.TOP);
+            addAlignItem(alignMenu, "Vertical Centers", Alignment.MIDDLE);
+            addAlignItem(alignMenu, "Bottom Edges", Alignment.BOTTOM);
+            popup.add(alignMenu);
+            
+            JMenuItem deleteItem = new JMenuItem("Delete");
+            deleteItem.addActionListener(e -> deleteSelection());
+            popup.add(deleteItem);
+            popup.show(this, x, y);
+            return;
+        }
+        
         // Always show set position option
         JMenuItem setPositionItem = new JMenuItem("Set Position...");
         setPositionItem.addActionListener(e -> showPositionDialog());
@@ -217,8 +302,9 @@ public class FigureCanvas extends JPanel {
                 popup.addSeparator();
                 JMenuItem releaseClipItem = new JMenuItem("Release Clipping Mask");
                 releaseClipItem.addActionListener(e -> {
-                    group.releaseClippingMask();
-                    repaint();
+                    ClipReleaseEdit edit = new ClipReleaseEdit(group);
+                    releaseClip(group);
+                    undoHistory.addEdit(edit);
                 });
                 popup.add(releaseClipItem);
             }
@@ -228,33 +314,85 @@ public class FigureCanvas extends JPanel {
             JMenuItem ungroupItem = new JMenuItem("Ungroup");
             ungroupItem.addActionListener(e -> ungroupSelected());
             popup.add(ungroupItem);
+        } else if ((selectedElement instanceof PathElement && ((PathElement) selectedElement).isCompound())
+                || selectedElement instanceof MarkerCloudElement || selectedElement instanceof InstanceElement
+                || selectedElement instanceof PrimitiveLayerElement) {
+            // Shapes merged or shared on import split back out like a group
+            popup.addSeparator();
+            JMenuItem ungroupItem = new JMenuItem("Ungroup");
+            ungroupItem.addActionListener(e -> ungroupSelected());
+            popup.add(ungroupItem);
         }
         
         popup.show(this, x, y);
     }
     
+    private void releaseClip(GroupElement group) {
+        int index = elements.indexOf(group);
+        if (index >= 0) {
+            editJournal.recordClipRelease(index);
+        }
+        group.releaseClippingMask();
+        repaint();
+    }
+    
     private void ungroupSelected() {
-        if (!(selectedElement instanceof GroupElement)) return;
-        
-        GroupElement group = (GroupElement) selectedElement;
-        List<CanvasElement> children = group.getChildren();
+        CanvasElement source = selectedElement;
+        int index = elements.indexOf(source);
+        long memoryBytes = UndoHistory.estimateBytes(source);
+        List<CanvasElement> childrenBefore = null;
+        List<? extends CanvasElement> children;
+        if (selectedElement instanceof GroupElement) {
+            GroupElement group = (GroupElement) selectedElement;
+            // Baking a transform changes children in place, so keep copies
+            childrenBefore = new ArrayList<>(group.getChildren());
+            if (!group.getTransform().isIdentity()) {
+                childrenBefore.replaceAll(CanvasElement::copy);
+            }
+            children = group.releaseChildren();
+        } else if (selectedElement instanceof PathElement && ((PathElement) selectedElement).isCompound()) {
+            children = ((PathElement) selectedElement).splitParts();
+        } else if (selectedElement instanceof MarkerCloudElement) {
+            children = ((MarkerCloudElement) selectedElement).splitMarkers();
+        } else if (selectedElement instanceof PrimitiveLayerElement) {
+            children = ((PrimitiveLayerElement) selectedElement).splitShapes();
+        } else if (selectedElement instanceof InstanceElement) {
+            children = ((InstanceElement) selectedElement).toPaths();
+        } else {
+            return;
+        }
+        editJournal.recordUngroup(index);
         
         // Remove the group
-        elements.remove(group);
+        removeElement(source);
+        deselect(source);
         
         // Add all children to the canvas
         for (CanvasElement child : children) {
-            elements.add(child);
+            addElement(child);
         }
         
-        selectedElement = null;
+        undoHistory.addEdit(new UngroupEdit(source, index, childrenBefore, new ArrayList<>(children), memoryBytes));
         repaint();
     }
     
     private void handleMouseDragged(MouseEvent e) {
+        int lx = (int) (e.getX() / scale);
+        int ly = (int) (e.getY() / scale);
+        if (bandStart != null) {
+            Rectangle oldBand = band;
+            band = new Rectangle(Math.min(bandStart.x, lx), Math.min(bandStart.y, ly),
+                Math.abs(lx - bandStart.x), Math.abs(ly - bandStart.y));
+            repaint(toScreen(oldBand != null ? oldBand.union(band) : band));
+            return;
+        }
+        
         if (selectedElement != null && dragStart != null) {
-            int lx = (int) (e.getX() / scale);
-            int ly = (int) (e.getY() / scale);
+            // The whole selection changes together and repaints as one region
+            Rectangle dirty = null;
+            for (CanvasElement element : dragStartBounds.keySet()) {
+                dirty = union(dirty, element.getPaintBounds());
+            }
 
             if (isResizing) {
                 int dx = lx - dragStart.x;
@@ -328,26 +466,237 @@ public class FigureCanvas extends JPanel {
                 if (newWidth > 20 && newHeight > 20) {
                     selectedElement.setPosition(newX, newY);
                     selectedElement.setSize(newWidth, newHeight);
+                    spatialIndex.update(selectedElement);
+                    resizeOthers((double) newWidth / startWidth, (double) newHeight / startHeight);
                 }
-
-                repaint();
             } else {
                 isDragging = true;
                 int dx = lx - dragStart.x;
                 int dy = ly - dragStart.y;
 
-                selectedElement.setPosition(elementDragStart.x + dx, elementDragStart.y + dy);
-                repaint();
+                for (Map.Entry<CanvasElement, Rectangle> start : dragStartBounds.entrySet()) {
+                    CanvasElement element = start.getKey();
+                    element.setPosition(start.getValue().x + dx, start.getValue().y + dy);
+                    spatialIndex.update(element);
+                }
+            }
+
+            for (CanvasElement element : dragStartBounds.keySet()) {
+                dirty = union(dirty, element.getPaintBounds());
             }
+            repaint(toScreen(dirty));
+        }
+    }
+    
+    /**
+     * Scale the other selected images like the one being resized, each
+     * about its own corner opposite the handle.
+     */
+    private void resizeOthers(double scaleX, double scaleY) {
+        for (Map.Entry<CanvasElement, Rectangle> start : dragStartBounds.entrySet()) {
+            CanvasElement element = start.getKey();
+            if (element == selectedElement || !(element instanceof ImageElement)) continue;
+            Rectangle from = start.getValue();
+            int width = Math.max(1, (int) Math.round(from.width * scaleX));
+            int height = Math.max(1, (int) Math.round(from.height * scaleY));
+            boolean anchorRight = resizeHandle == 0 || resizeHandle == 2;
+            boolean anchorBottom = resizeHandle == 0 || resizeHandle == 1;
+            element.setPosition(anchorRight ? from.x + from.width - width : from.x,
+                anchorBottom ? from.y + from.height - height : from.y);
+            element.setSize(width, height);
+            spatialIndex.update(element);
         }
     }
     
     private void handleMouseReleased(MouseEvent e) {
+        if (bandStart != null) {
+            selectInBand();
+            bandStart = null;
+            band = null;
+        }
+        if (soleSelectionOnRelease != null && !isDragging) {
+            clearSelection();
+            select(soleSelectionOnRelease);
+            repaint();
+        }
+        soleSelectionOnRelease = null;
+        
+        // Journal and record the end result of a drag rather than every step
+        if (isDragging || isResizing) {
+            Map<CanvasElement, Integer> indexes = indexesOf(dragStartBounds.keySet());
+            List<UndoableEdit> edits = new ArrayList<>();
+            for (Map.Entry<CanvasElement, Rectangle> start : dragStartBounds.entrySet()) {
+                CanvasElement element = start.getKey();
+                Rectangle before = start.getValue();
+                if (element.getBounds().equals(before) || !indexes.containsKey(element)) continue;
+                int index = indexes.get(element);
+                if (isResizing) {
+                    editJournal.recordResize(index, element.getX(), element.getY(),
+                        element.getWidth(), element.getHeight());
+                } else {
+                    editJournal.recordMove(index, element.getX(), element.getY());
+                }
+                edits.add(new PlaceEdit(element, before, isResizing));
+            }
+            addEdits(isResizing ? "Resize" : "Move", edits);
+        }
+        
         isDragging = false;
         isResizing = false;
         resizeHandle = -1;
         dragStart = null;
         elementDragStart = null;
+        dragStartBounds.clear();
+    }
+    
+    private void beginDrag(int lx, int ly) {
+        dragStart = new Point(lx, ly);
+        elementDragStart = new Point(selectedElement.getX(), selectedElement.getY());
+        dragStartBounds.clear();
+        for (CanvasElement element : selection) {
+            dragStartBounds.put(element, element.getBounds());
+        }
+    }
+    
+    /** Select the elements lying wholly inside the rubber band. */
+    private void selectInBand() {
+        if (band == null) return;
+        // The index narrows the search to elements near the band
+        for (CanvasElement element : spatialIndex.queryTopLevel(band)) {
+            if (band.contains(element.getBounds())) {
+                select(element);
+            }
+        }
+        repaint();
+    }
+    
+    private void select(CanvasElement element) {
+        selection.add(element);
+        element.setSelected(true);
+        selectedElement = element;
+    }
+    
+    private void deselect(CanvasElement element) {
+        deselectAll(Collections.singleton(element));
+    }
+    
+    private void deselectAll(Set<CanvasElement> deselected) {
+        for (CanvasElement element : deselected) {
+            element.setSelected(false);
+        }
+        selection.removeAll(deselected);
+        if (selectedElement != null && deselected.contains(selectedElement)) {
+            // Fall back to the most recently picked element still selected
+            selectedElement = null;
+            for (CanvasElement remaining : selection) {
+                selectedElement = remaining;
+            }
+        }
+    }
+    
+    private void clearSelection() {
+        for (CanvasElement element : selection) {
+            element.setSelected(false);
+        }
+        selection.clear();
+        selectedElement = null;
+    }
+    
+    /**
+     * Return the selected image whose resize handle is at the point, the
+     * last picked first, or null if there is none.
+     */
+    private ImageElement findResizeHandleOwner(int lx, int ly) {
+        if (selectedElement instanceof ImageElement
+                && ((ImageElement) selectedElement).getResizeHandleAt(lx, ly) >= 0) {
+            return (ImageElement) selectedElement;
+        }
+        for (CanvasElement element : selection) {
+            if (element instanceof ImageElement && ((ImageElement) element).getResizeHandleAt(lx, ly) >= 0) {
+                return (ImageElement) element;
+            }
+        }
+        return null;
+    }
+    
+    private void deleteSelection() {
+        if (selection.isEmpty()) return;
+        // Remember where each element sat, bottom first, so undo can put
+        // them all back in one pass
+        Map<CanvasElement, Integer> indexes = indexesOf(selection);
+        List<CanvasElement> doomed = new ArrayList<>(indexes.keySet());
+        doomed.sort(Comparator.comparingInt(indexes::get));
+        int[] positions = new int[doomed.size()];
+        Rectangle dirty = null;
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = indexes.get(doomed.get(i));
+            dirty = union(dirty, doomed.get(i).getPaintBounds());
+        }
+        if (dirty == null) return;
+        removeElements(doomed);
+        undoHistory.addEdit(new StackEdit("Delete", positions, doomed, false));
+        repaint(toScreen(dirty));
+    }
+    
+    private void addAlignItem(JMenu menu, String label, Alignment alignment) {
+        JMenuItem item = new JMenuItem(label);
+        item.addActionListener(e -> alignSelection(alignment));
+        menu.add(item);
+    }
+    
+    /** Line the selection up along one edge or centre of its combined bounds. */
+    private void alignSelection(Alignment alignment) {
+        Rectangle area = null;
+        for (CanvasElement element : selection) {
+            area = union(area, element.getBounds());
+        }
+        if (area == null) return;
+        
+        Map<CanvasElement, Integer> indexes = indexesOf(selection);
+        Rectangle dirty = null;
+        List<UndoableEdit> edits = new ArrayList<>();
+        for (CanvasElement element : selection) {
+            Rectangle before = element.getBounds();
+            int x = before.x;
+            int y = before.y;
+            switch (alignment) {
+                case LEFT: x = area.x; break;
+                case CENTER: x = area.x + (area.width - before.width) / 2; break;
+                case RIGHT: x = area.x + area.width - before.width; break;
+                case TOP: y = area.y; break;
+                case MIDDLE: y = area.y + (area.height - before.height) / 2; break;
+                case BOTTOM: y = area.y + area.height - before.height; break;
+            }
+            if (x == before.x && y == before.y) continue;
+            dirty = union(dirty, element.getPaintBounds());
+            element.setPosition(x, y);
+            spatialIndex.update(element);
+            dirty = union(dirty, element.getPaintBounds());
+            editJournal.recordMove(indexes.get(element), x, y);
+            edits.add(new PlaceEdit(element, before, false));
+        }
+        addEdits("Align", edits);
+        if (dirty != null) {
+            repaint(toScreen(dirty));
+        }
+    }
+    
+    /** Record edits made together as one undoable step. */
+    private void addEdits(String name, List<UndoableEdit> edits) {
+        if (edits.size() == 1) {
+            undoHistory.addEdit(edits.get(0));
+        } else if (!edits.isEmpty()) {
+            BatchEdit batch = new BatchEdit(name);
+            for (UndoableEdit edit : edits) {
+                batch.addEdit(edit);
+            }
+            batch.end();
+            undoHistory.addEdit(batch);
+        }
+    }
+    
+    private static Rectangle union(Rectangle area, Rectangle r) {
+        return area != null ? area.union(r) : r;
     }
     
     private void handleMouseClicked(MouseEvent e) {
@@ -358,14 +707,134 @@ public class FigureCanvas extends JPanel {
     }
     
     private CanvasElement findElementAt(int x, int y) {
-        // Search in reverse order to get topmost element
-        for (int i = elements.size() - 1; i >= 0; i--) {
+        // The index resolves the topmost element without scanning the scene
+        return spatialIndex.findTopmostAt(x, y);
+    }
+    
+    private void addElement(CanvasElement element) {
+        elements.add(element);
+        spatialIndex.add(element, nextOrder++);
+    }
+    
+    private void removeElement(CanvasElement element) {
+        elements.remove(element);
+        spatialIndex.remove(element);
+        rasterCache.invalidate(element);
+    }
+    
+    /**
+     * Put elements into the stacking order at an index, as adding and
+     * undoing a delete do, and journal them.
+     */
+    private void insertElements(int index, List<CanvasElement> inserted) {
+        index = Math.min(index, elements.size());
+        boolean atTop = index == elements.size();
+        elements.addAll(index, inserted);
+        if (atTop) {
+            for (CanvasElement element : inserted) {
+                spatialIndex.add(element, nextOrder++);
+            }
+        } else {
+            renumber();
+        }
+        if (inserted.size() == 1) {
+            editJournal.recordAdd(index, inserted.get(0));
+        } else {
+            // One snapshot is cheaper than journaling every element
+            editJournal.compact();
+        }
+    }
+    
+    /**
+     * Put elements back at the given ascending indexes, as undoing a
+     * scattered delete does, in one pass over the stacking order.
+     */
+    private void restoreElements(int[] indexes, List<CanvasElement> restored) {
+        List<CanvasElement> merged = new ArrayList<>(elements.size() + restored.size());
+        int next = 0;
+        for (CanvasElement element : elements) {
+            while (next < indexes.length && indexes[next] <= merged.size()) {
+                merged.add(restored.get(next++));
+            }
+            merged.add(element);
+        }
+        while (next < restored.size()) {
+            merged.add(restored.get(next++));
+        }
+        elements.clear();
+        elements.addAll(merged);
+        renumber();
+        if (restored.size() == 1) {
+            editJournal.recordAdd(indexes[0], restored.get(0));
+        } else {
+            editJournal.compact();
+        }
+    }
+    
+    // Index every element in stacking order, adding any not yet indexed
+    private void renumber() {
+        nextOrder = 0;
+        for (CanvasElement element : elements) {
+            if (spatialIndex.contains(element)) {
+                spatialIndex.setOrder(element, nextOrder++);
+            } else {
+                spatialIndex.add(element, nextOrder++);
+            }
+        }
+    }
+    
+    /** Stacking indexes of some elements, found in one pass. */
+    private Map<CanvasElement, Integer> indexesOf(Collection<CanvasElement> subset) {
+        Map<CanvasElement, Integer> indexes = new IdentityHashMap<>();
+        for (int i = 0; i < elements.size() && indexes.size() < subset.size(); i++) {
             CanvasElement element = elements.get(i);
-            if (element.contains(x, y)) {
-                return element;
+            if (subset.contains(element)) {
+                indexes.put(element, i);
             }
         }
-        return null;
+        return indexes;
+    }
+    
+    /**
+     * Take elements off the canvas and journal it. Elements no longer on
+     * the canvas are skipped.
+     */
+    private void removeElements(List<CanvasElement> removed) {
+        if (removed.size() == 1) {
+            int index = elements.indexOf(removed.get(0));
+            if (index < 0) return;
+            editJournal.recordDelete(index);
+        }
+        Set<CanvasElement> doomed = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (CanvasElement element : removed) {
+            if (spatialIndex.contains(element)) {
+                doomed.add(element);
+                spatialIndex.remove(element);
+                rasterCache.invalidate(element);
+            }
+        }
+        elements.removeIf(doomed::contains);
+        deselectAll(doomed);
+        if (removed.size() > 1) {
+            editJournal.compact();
+        }
+    }
+    
+    /** Move or resize an element, as undoing a drag does. */
+    private void placeElement(CanvasElement element, Rectangle bounds, boolean resize) {
+        Rectangle oldBounds = element.getCanvasPaintBounds();
+        element.setPosition(bounds.x, bounds.y);
+        if (resize) {
+            element.setSize(bounds.width, bounds.height);
+        }
+        spatialIndex.update(element);
+        int index = elements.indexOf(element);
+        if (index >= 0 && resize) {
+            editJournal.recordResize(index, bounds.x, bounds.y, bounds.width, bounds.height);
+        } else if (index >= 0) {
+            editJournal.recordMove(index, bounds.x, bounds.y);
+        }
+        repaintMoved(element, oldBounds);
     }
     
     private void showPositionDialog() {
@@ -387,8 +856,13 @@ public class FigureCanvas extends JPanel {
             try {
                 int x = Integer.parseInt(xField.getText());
                 int y = Integer.parseInt(yField.getText());
+                Rectangle oldBounds = selectedElement.getPaintBounds();
+                Rectangle before = selectedElement.getBounds();
                 selectedElement.setPosition(x, y);
-                repaint();
+                spatialIndex.update(selectedElement);
+                editJournal.recordMove(elements.indexOf(selectedElement), x, y);
+                undoHistory.addEdit(new PlaceEdit(selectedElement, before, false));
+                repaintMoved(selectedElement, oldBounds);
             } catch (NumberFormatException ex) {
                 JOptionPane.showMessageDialog(this, 
                     "Invalid position values. Please enter numbers.",
@@ -398,34 +872,124 @@ public class FigureCanvas extends JPanel {
     }
     
     public void addImage(File imageFile) {
-        try {
-            ImageElement imageElement = new ImageElement(imageFile, 50, 50);
-            elements.add(imageElement);
-            repaint();
-        } catch (IOException ex) {
+        // Show a placeholder straight away and decode in the background
+        ImageElement imageElement = new ImageElement(50, 50, PLACEHOLDER_WIDTH, PLACEHOLDER_HEIGHT,
+            imageFile.getAbsolutePath());
+        naturalSizePending.add(imageElement);
+        insertElements(elements.size(), Collections.singletonList(imageElement));
+        undoHistory.addEdit(new StackEdit("Add Image", elements.size() - 1,
+            Collections.singletonList(imageElement), true));
+        imageLoader.load(imageElement, () -> ImageElement.readFile(imageFile));
+        repaint();
+    }
+    
+    private void handleImageLoaded(ImageElement element, ImageElement.DecodedImage image) {
+        editsAwaitingImages.remove(element);
+        boolean fitToImage = naturalSizePending.remove(element);
+        boolean topLevel = spatialIndex.contains(element);
+        // A freshly added image deleted before it decoded may come back
+        // through undo, so it still takes its pixels and natural size
+        if (fitToImage && !topLevel) {
+            element.setDecodedImage(image);
+            element.setSize(image.getImage().getWidth(), image.getImage().getHeight());
+            return;
+        }
+        
+        // Images inside a group may sit under the group's transform
+        Rectangle oldBounds = element.getCanvasPaintBounds();
+        element.setDecodedImage(image);
+        if (fitToImage) {
+            element.setSize(image.getImage().getWidth(), image.getImage().getHeight());
+            spatialIndex.update(element);
+            editJournal.recordResize(elements.indexOf(element), element.getX(), element.getY(),
+                element.getWidth(), element.getHeight());
+        }
+        repaintMoved(element, oldBounds);
+    }
+    
+    private void handleImageFailed(ImageElement element, Exception error) {
+        boolean addedByUser = naturalSizePending.remove(element);
+        forgetImage(element);
+        if (!spatialIndex.contains(element)) return;
+        
+        Rectangle oldBounds = element.getPaintBounds();
+        editJournal.recordDelete(elements.indexOf(element));
+        removeElement(element);
+        deselect(element);
+        repaint(toScreen(oldBounds));
+        
+        if (addedByUser) {
             JOptionPane.showMessageDialog(this, 
-                "Error loading image: " + ex.getMessage(),
+                "Error loading image: " + error.getMessage(),
                 "Error", JOptionPane.ERROR_MESSAGE);
+        } else {
+            System.err.println("Error loading image: " + error.getMessage());
+        }
+    }
+    
+    private void handleImageCancelled(ImageElement element) {
+        // Images loaded from a file keep their encoded data and stay as
+        // placeholders; freshly added ones have nothing worth keeping
+        if (naturalSizePending.remove(element)) {
+            forgetImage(element);
+            if (spatialIndex.contains(element)) {
+                editJournal.recordDelete(elements.indexOf(element));
+                removeElement(element);
+                deselect(element);
+            }
+        }
+        repaint();
+    }
+    
+    /**
+     * Take an image that will never get pixels out of the undo history, so
+     * undo or redo cannot bring back an empty placeholder.
+     */
+    private void forgetImage(ImageElement element) {
+        List<StackEdit> edits = editsAwaitingImages.remove(element);
+        if (edits != null) {
+            for (StackEdit edit : edits) {
+                if (edit.forget(element)) {
+                    undoHistory.removeEdit(edit);
+                }
+            }
         }
     }
     
+    public ImageLoader getImageLoader() {
+        return imageLoader;
+    }
+    
     public void addTextBox() {
         TextElement textElement = new TextElement(50, 50);
-        elements.add(textElement);
+        insertElements(elements.size(), Collections.singletonList(textElement));
+        undoHistory.addEdit(new StackEdit("Add Text Box", elements.size() - 1,
+            Collections.singletonList(textElement), true));
         repaint();
     }
     
     public void importSVG(File svgFile) throws Exception {
-        List<CanvasElement> svgElements = SVGParser.parseSVG(svgFile);
-        elements.addAll(svgElements);
+        importSVG(svgFile, false);
+    }
+    
+    public void importSVG(File svgFile, boolean mergeShapes) throws Exception {
+        List<CanvasElement> svgElements = SVGParser.parseSVG(svgFile, mergeShapes);
+        if (svgElements.isEmpty()) return;
+        int index = elements.size();
+        insertElements(index, svgElements);
+        undoHistory.addEdit(new StackEdit("Import SVG", index, svgElements, true));
         repaint();
     }
     
     public void clear() {
+        imageLoader.cancelAll();
         elements.clear();
-        if (selectedElement != null) {
-            selectedElement = null;
-        }
+        spatialIndex.clear();
+        rasterCache.clear();
+        clearSelection();
+        undoHistory.discardAllEdits();
+        editsAwaitingImages.clear();
+        editJournal.start(null);
         repaint();
     }
     
@@ -436,14 +1000,115 @@ public class FigureCanvas extends JPanel {
         java.awt.geom.AffineTransform at = g2.getTransform();
         g2.scale(scale, scale);
 
-        for (CanvasElement element : elements) {
-            element.draw(g2);
+        // Only draw elements whose paint bounds reach the repainted area,
+        // and never more than the enclosing viewport actually shows
+        Rectangle clip = g2.getClipBounds();
+        if (isShowing()) {
+            Rectangle viewport = toLogical(getVisibleRect());
+            clip = clip != null ? clip.intersection(viewport) : viewport;
         }
+        
+        CanvasElement.PaintCounts counts = new CanvasElement.PaintCounts();
+        if (clip == null || !clip.isEmpty()) {
+            List<CanvasElement> visible = clip != null ? spatialIndex.queryTopLevel(clip) : elements;
+            // Top-level elements the query left out
+            counts.culled += elements.size() - visible.size();
+            for (CanvasElement element : visible) {
+                // Selected elements are being edited, so draw them live
+                if (rasterCacheEnabled && !element.isSelected() && RasterCache.isCacheable(element)
+                        && rasterCache.draw(g2, element)) {
+                    counts.drawn++;
+                } else {
+                    element.drawVisible(g2, clip, counts);
+                }
+            }
+        } else {
+            counts.culled += elements.size();
+        }
+        
+        if (band != null) {
+            g2.setColor(BAND_FILL);
+            g2.fill(band);
+            g2.setColor(BAND_OUTLINE);
+            g2.setStroke(GraphicsCache.stroke((float) (1 / scale)));
+            g2.draw(band);
+        }
+        
+        lastPaintDrawn = counts.drawn;
+        lastPaintCulled = counts.culled;
+        totalCulled += lastPaintCulled;
 
         g2.setTransform(at);
         g2.dispose();
     }
 
+    /**
+     * Repaint only the area an element covered before and after a change.
+     * Paint bounds already include strokes and selection handles.
+     */
+    private void repaintMoved(CanvasElement element, Rectangle oldBounds) {
+        Rectangle dirty = oldBounds.union(element.getCanvasPaintBounds());
+        repaint(toScreen(dirty));
+    }
+    
+    private Rectangle toScreen(Rectangle logical) {
+        // Round outwards and pad a pixel for antialiased edges
+        int sx = (int) Math.floor(logical.x * scale) - 1;
+        int sy = (int) Math.floor(logical.y * scale) - 1;
+        int sw = (int) Math.ceil(logical.width * scale) + 3;
+        int sh = (int) Math.ceil(logical.height * scale) + 3;
+        return new Rectangle(sx, sy, sw, sh);
+    }
+    
+    private Rectangle toLogical(Rectangle screen) {
+        int lx = (int) Math.floor(screen.x / scale);
+        int ly = (int) Math.floor(screen.y / scale);
+        int lw = (int) Math.ceil(screen.width / scale) + 1;
+        int lh = (int) Math.ceil(screen.height / scale) + 1;
+        return new Rectangle(lx, ly, lw, lh);
+    }
+    
+    /**
+     * Number of elements (nested children included) drawn by the last paint.
+     * An element drawn from the raster cache counts once.
+     */
+    public int getLastPaintDrawnCount() {
+        return lastPaintDrawn;
+    }
+    
+    /**
+     * Number of elements skipped by the last paint because they lay outside
+     * the clip or the visible viewport. A skipped group counts once, since
+     * its children are never looked at.
+     */
+    public int getLastPaintCulledCount() {
+        return lastPaintCulled;
+    }
+    
+    public long getTotalCulledCount() {
+        return totalCulled;
+    }
+    
+    /**
+     * Cache complex paths and groups as pre-rendered sprites. Off by default
+     * since sprites trade memory for paint time.
+     */
+    public void setRasterCacheEnabled(boolean enabled) {
+        this.rasterCacheEnabled = enabled;
+        if (!enabled) {
+            rasterCache.clear();
+        }
+        repaint();
+    }
+    
+    public boolean isRasterCacheEnabled() {
+        return rasterCacheEnabled;
+    }
+    
+    public RasterCache getRasterCache() {
+        return rasterCache;
+    }
+
     public void zoomIn() {
         setScale(scale * ZOOM_STEP);
     }
@@ -465,352 +1130,401 @@ public class FigureCanvas extends JPanel {
     }
     
     public void saveToFile(File file) throws IOException {
-        JsonArray jsonElements = new JsonArray();
-        
+        FigureFile.save(elements, file);
+    }
+    
+    /**
+     * Capture the document as it is now, for saving off the EDT while
+     * editing continues. Only element objects are copied; geometry and image
+     * data are shared, so this stays cheap for large figures.
+     */
+    public List<CanvasElement> createSnapshot() {
+        List<CanvasElement> snapshot = new ArrayList<>(elements.size());
         for (CanvasElement element : elements) {
-            JsonObject jsonElement = new JsonObject();
-            jsonElement.addProperty("type", element.getType());
-            jsonElement.addProperty("x", element.getX());
-            jsonElement.addProperty("y", element.getY());
-            jsonElement.addProperty("width", element.getWidth());
-            jsonElement.addProperty("height", element.getHeight());
-            
-            if (element instanceof ImageElement) {
-                ImageElement imageElement = (ImageElement) element;
-                jsonElement.addProperty("imagePath", imageElement.getImagePath());
-                jsonElement.addProperty("imageData", imageElement.getImageAsBase64());
-            } else if (element instanceof SVGTextElement) {
-                SVGTextElement svgTextElement = (SVGTextElement) element;
-                jsonElement.addProperty("text", svgTextElement.getText());
-                jsonElement.addProperty("fontName", svgTextElement.getFont().getName());
-                jsonElement.addProperty("fontSize", svgTextElement.getFont().getSize());
-                jsonElement.addProperty("fontStyle", svgTextElement.getFont().getStyle());
-                jsonElement.addProperty("textColor", colorToString(svgTextElement.getTextColor()));
-                jsonElement.addProperty("rotation", svgTextElement.getRotation());
-            } else if (element instanceof TextElement) {
-                TextElement textElement = (TextElement) element;
-                jsonElement.addProperty("text", textElement.getText());
-                jsonElement.addProperty("fontName", textElement.getFont().getName());
-                jsonElement.addProperty("fontSize", textElement.getFont().getSize());
-                jsonElement.addProperty("fontStyle", textElement.getFont().getStyle());
-            } else if (element instanceof RectElement) {
-                RectElement rectElement = (RectElement) element;
-                jsonElement.addProperty("fillColor", colorToString(rectElement.getFillColor()));
-                jsonElement.addProperty("strokeColor", colorToString(rectElement.getStrokeColor()));
-                jsonElement.addProperty("strokeWidth", rectElement.getStrokeWidth());
-            } else if (element instanceof CircleElement) {
-                CircleElement circleElement = (CircleElement) element;
-                jsonElement.addProperty("fillColor", colorToString(circleElement.getFillColor()));
-                jsonElement.addProperty("strokeColor", colorToString(circleElement.getStrokeColor()));
-                jsonElement.addProperty("strokeWidth", circleElement.getStrokeWidth());
-            } else if (element instanceof PathElement) {
-                PathElement pathElement = (PathElement) element;
-                jsonElement.addProperty("fillColor", colorToString(pathElement.getFillColor()));
-                jsonElement.addProperty("strokeColor", colorToString(pathElement.getStrokeColor()));
-                jsonElement.addProperty("strokeWidth", pathElement.getStrokeWidth());
-                jsonElement.addProperty("pathData", pathToString(pathElement.getPath()));
-            } else if (element instanceof GroupElement) {
-                GroupElement groupElement = (GroupElement) element;
-                jsonElement.addProperty("groupId", groupElement.getGroupId());
-                jsonElement.addProperty("isClippingMask", groupElement.isClippingMask());
-                
-                // Serialize children
-                JsonArray childrenArray = new JsonArray();
-                for (CanvasElement child : groupElement.getChildren()) {
-                    JsonObject childJson = new JsonObject();
-                    childJson.addProperty("type", child.getType());
-                    childJson.addProperty("x", child.getX());
-                    childJson.addProperty("y", child.getY());
-                    childJson.addProperty("width", child.getWidth());
-                    childJson.addProperty("height", child.getHeight());
-                    
-                    // Add type-specific properties
-                    if (child instanceof RectElement) {
-                        RectElement rect = (RectElement) child;
-                        childJson.addProperty("fillColor", colorToString(rect.getFillColor()));
-                        childJson.addProperty("strokeColor", colorToString(rect.getStrokeColor()));
-                        childJson.addProperty("strokeWidth", rect.getStrokeWidth());
-                    } else if (child instanceof CircleElement) {
-                        CircleElement circle = (CircleElement) child;
-                        childJson.addProperty("fillColor", colorToString(circle.getFillColor()));
-                        childJson.addProperty("strokeColor", colorToString(circle.getStrokeColor()));
-                        childJson.addProperty("strokeWidth", circle.getStrokeWidth());
-                    } else if (child instanceof PathElement) {
-                        PathElement path = (PathElement) child;
-                        childJson.addProperty("fillColor", colorToString(path.getFillColor()));
-                        childJson.addProperty("strokeColor", colorToString(path.getStrokeColor()));
-                        childJson.addProperty("strokeWidth", path.getStrokeWidth());
-                        childJson.addProperty("pathData", pathToString(path.getPath()));
-                    } else if (child instanceof SVGTextElement) {
-                        SVGTextElement svgText = (SVGTextElement) child;
-                        childJson.addProperty("text", svgText.getText());
-                        childJson.addProperty("fontName", svgText.getFont().getName());
-                        childJson.addProperty("fontSize", svgText.getFont().getSize());
-                        childJson.addProperty("fontStyle", svgText.getFont().getStyle());
-                        childJson.addProperty("textColor", colorToString(svgText.getTextColor()));
-                        childJson.addProperty("rotation", svgText.getRotation());
-                    } else if (child instanceof TextElement) {
-                        TextElement text = (TextElement) child;
-                        childJson.addProperty("text", text.getText());
-                        childJson.addProperty("fontName", text.getFont().getName());
-                        childJson.addProperty("fontSize", text.getFont().getSize());
-                        childJson.addProperty("fontStyle", text.getFont().getStyle());
-                        if (child instanceof TextElementWithColor) {
-                            TextElementWithColor textColor = (TextElementWithColor) child;
-                            childJson.addProperty("textColor", colorToString(textColor.getTextColor()));
-                        }
-                    }
-                    
-                    childrenArray.add(childJson);
-                }
-                jsonElement.add("children", childrenArray);
+            snapshot.add(element.copy());
+        }
+        return Collections.unmodifiableList(snapshot);
+    }
+    
+    public void loadFromFile(File file) throws IOException {
+        setElements(FigureFile.load(file));
+        editJournal.start(file);
+    }
+    
+    /**
+     * Restore the document from a crash journal and keep journaling on top
+     * of it.
+     */
+    public void recover(EditJournal.Recovery recovery) throws IOException {
+        setElements(recovery.replay());
+        editJournal.resume(recovery);
+    }
+    
+    public EditJournal getEditJournal() {
+        return editJournal;
+    }
+    
+    public UndoHistory getUndoHistory() {
+        return undoHistory;
+    }
+    
+    public void undo() {
+        stopTextEditing();
+        if (undoHistory.canUndo()) {
+            undoHistory.undo();
+        }
+    }
+    
+    public void redo() {
+        stopTextEditing();
+        if (undoHistory.canRedo()) {
+            undoHistory.redo();
+        }
+    }
+    
+    // A text edit in progress becomes an undoable step of its own first
+    private void stopTextEditing() {
+        for (CanvasElement element : elements) {
+            if (element instanceof TextElement && ((TextElement) element).isEditing()) {
+                ((TextElement) element).stopEditing(this);
             }
-            
-            jsonElements.add(jsonElement);
         }
+    }
+    
+    /**
+     * Called by a text element when an edit session changed its text.
+     */
+    void textEdited(TextElement element, String oldText) {
+        int index = elements.indexOf(element);
+        if (index >= 0) {
+            editJournal.recordTextChange(index, element.getText());
+        }
+        undoHistory.addEdit(new TextEdit(element, oldText, element.getText()));
+    }
+    
+    private void setElements(List<CanvasElement> loaded) {
+        imageLoader.cancelAll();
+        elements.clear();
+        spatialIndex.clear();
+        rasterCache.clear();
+        clearSelection();
+        undoHistory.discardAllEdits();
+        editsAwaitingImages.clear();
         
-        JsonObject root = new JsonObject();
-        root.add("elements", jsonElements);
+        for (CanvasElement element : loaded) {
+            addElement(element);
+            // Elements appear at their saved bounds now, pixels follow from a worker
+            loadPendingImages(element);
+        }
         
-        try (FileWriter writer = new FileWriter(file)) {
-            Gson gson = new GsonBuilder().setPrettyPrinting().create();
-            gson.toJson(root, writer);
+        repaint();
+    }
+    
+    private void loadPendingImages(CanvasElement element) {
+        if (element instanceof ImageElement) {
+            ImageElement imageElement = (ImageElement) element;
+            if (imageElement.hasPendingImage()) {
+                imageLoader.load(imageElement, imageElement::decodePendingImage);
+            } else if (!imageElement.hasImageData() && imageElement.getImagePath() != null) {
+                // Journaled images added before they decoded only know their file
+                File imageFile = new File(imageElement.getImagePath());
+                imageLoader.load(imageElement, () -> ImageElement.readFile(imageFile));
+            }
+        } else if (element instanceof GroupElement) {
+            for (CanvasElement child : ((GroupElement) element).getChildren()) {
+                loadPendingImages(child);
+            }
         }
     }
     
-    public void loadFromFile(File file) throws IOException {
-        try (FileReader reader = new FileReader(file)) {
-            Gson gson = new Gson();
-            JsonObject root = gson.fromJson(reader, JsonObject.class);
-            JsonArray jsonElements = root.getAsJsonArray("elements");
-            
-            elements.clear();
-            
-            for (int i = 0; i < jsonElements.size(); i++) {
-                JsonObject jsonElement = jsonElements.get(i).getAsJsonObject();
-                String type = jsonElement.get("type").getAsString();
-                int x = jsonElement.get("x").getAsInt();
-                int y = jsonElement.get("y").getAsInt();
-                int width = jsonElement.get("width").getAsInt();
-                int height = jsonElement.get("height").getAsInt();
-                
-                if (type.equals("image")) {
-                    String imagePath = jsonElement.get("imagePath").getAsString();
-                    String imageData = jsonElement.get("imageData").getAsString();
-                    
-                    try {
-                        java.awt.image.BufferedImage image = ImageElement.decodeBase64Image(imageData);
-                        ImageElement imageElement = new ImageElement(image, x, y, width, height, imagePath);
-                        elements.add(imageElement);
-                    } catch (Exception ex) {
-                        System.err.println("Error loading image: " + ex.getMessage());
-                    }
-                } else if (type.equals("text")) {
-                    String text = jsonElement.get("text").getAsString();
-                    String fontName = jsonElement.get("fontName").getAsString();
-                    int fontSize = jsonElement.get("fontSize").getAsInt();
-                    int fontStyle = jsonElement.get("fontStyle").getAsInt();
-                    Font font = new Font(fontName, fontStyle, fontSize);
-                    
-                    TextElement textElement = new TextElement(x, y, width, height, text, font);
-                    elements.add(textElement);
-                } else if (type.equals("svg-text")) {
-                    String text = jsonElement.get("text").getAsString();
-                    String fontName = jsonElement.get("fontName").getAsString();
-                    int fontSize = jsonElement.get("fontSize").getAsInt();
-                    int fontStyle = jsonElement.get("fontStyle").getAsInt();
-                    Font font = new Font(fontName, fontStyle, fontSize);
-                    Color textColor = stringToColor(jsonElement.get("textColor").getAsString());
-                    double rotation = jsonElement.has("rotation") ? jsonElement.get("rotation").getAsDouble() : 0.0;
-                    
-                    SVGTextElement svgTextElement = new SVGTextElement(x, y, width, height, text, font, textColor, rotation);
-                    elements.add(svgTextElement);
-                } else if (type.equals("rect")) {
-                    Color fillColor = stringToColor(jsonElement.get("fillColor").getAsString());
-                    Color strokeColor = stringToColor(jsonElement.get("strokeColor").getAsString());
-                    float strokeWidth = jsonElement.get("strokeWidth").getAsFloat();
-                    
-                    RectElement rectElement = new RectElement(x, y, width, height, fillColor, strokeColor, strokeWidth);
-                    elements.add(rectElement);
-                } else if (type.equals("circle")) {
-                    Color fillColor = stringToColor(jsonElement.get("fillColor").getAsString());
-                    Color strokeColor = stringToColor(jsonElement.get("strokeColor").getAsString());
-                    float strokeWidth = jsonElement.get("strokeWidth").getAsFloat();
-                    
-                    CircleElement circleElement = new CircleElement(x, y, width, height, fillColor, strokeColor, strokeWidth);
-                    elements.add(circleElement);
-                } else if (type.equals("path")) {
-                    Color fillColor = stringToColor(jsonElement.get("fillColor").getAsString());
-                    Color strokeColor = stringToColor(jsonElement.get("strokeColor").getAsString());
-                    float strokeWidth = jsonElement.get("strokeWidth").getAsFloat();
-                    String pathData = jsonElement.get("pathData").getAsString();
-                    
-                    java.awt.geom.Path2D.Double path = stringToPath(pathData);
-                    PathElement pathElement = new PathElement(path, x, y, width, height, fillColor, strokeColor, strokeWidth);
-                    elements.add(pathElement);
-                } else if (type.equals("group") || type.equals("clipping-mask")) {
-                    String groupId = jsonElement.has("groupId") ? jsonElement.get("groupId").getAsString() : null;
-                    boolean isClippingMask = jsonElement.has("isClippingMask") && jsonElement.get("isClippingMask").getAsBoolean();
-                    
-                    GroupElement group = new GroupElement(x, y, width, height, groupId);
-                    group.setClippingMask(isClippingMask);
-                    
-                    // Load children
-                    if (jsonElement.has("children")) {
-                        JsonArray childrenArray = jsonElement.getAsJsonArray("children");
-                        for (int j = 0; j < childrenArray.size(); j++) {
-                            JsonObject childJson = childrenArray.get(j).getAsJsonObject();
-                            CanvasElement child = loadElementFromJson(childJson);
-                            if (child != null) {
-                                group.addChild(child);
-                            }
-                        }
+    // Undoable edits. Each keeps only what changed, and refers to elements
+    // rather than copying them, so images and geometry stay shared.
+    
+    /** A move or resize of a top-level element. */
+    private class PlaceEdit extends AbstractUndoableEdit implements UndoHistory.Sized {
+        private final CanvasElement element;
+        private final Rectangle before;
+        private final Rectangle after;
+        private final boolean resize;
+        
+        private PlaceEdit(CanvasElement element, Rectangle before, boolean resize) {
+            this.element = element;
+            this.before = before;
+            this.after = element.getBounds();
+            this.resize = resize;
+        }
+        
+        @Override
+        public void undo() {
+            super.undo();
+            placeElement(element, before, resize);
+        }
+        
+        @Override
+        public void redo() {
+            super.redo();
+            placeElement(element, after, resize);
+        }
+        
+        @Override
+        public String getPresentationName() {
+            return resize ? "Resize" : "Move";
+        }
+        
+        @Override
+        public long getMemoryBytes() {
+            return 112;
+        }
+    }
+    
+    /** Elements added at, or deleted from, one place in the stacking order. */
+    private class StackEdit extends AbstractUndoableEdit implements UndoHistory.Sized {
+        private final String name;
+        private final int index;
+        // Where each element goes back when they were not side by side,
+        // ascending; null when they all start at index
+        private int[] indexes;
+        private List<CanvasElement> changed;
+        private final boolean added;
+        private final long memoryBytes;
+        
+        private StackEdit(String name, int index, List<CanvasElement> changed, boolean added) {
+            this(name, index, null, changed, added);
+        }
+        
+        private StackEdit(String name, int[] indexes, List<CanvasElement> changed, boolean added) {
+            this(name, indexes.length > 0 ? indexes[0] : 0, indexes, changed, added);
+        }
+        
+        private StackEdit(String name, int index, int[] indexes, List<CanvasElement> changed, boolean added) {
+            this.name = name;
+            this.index = index;
+            this.indexes = indexes;
+            this.changed = changed;
+            this.added = added;
+            long bytes = indexes != null ? indexes.length * 4L : 0;
+            for (CanvasElement element : changed) {
+                bytes += UndoHistory.estimateBytes(element);
+                if (element instanceof ImageElement && ((ImageElement) element).getImage() == null) {
+                    editsAwaitingImages.computeIfAbsent((ImageElement) element, k -> new ArrayList<>()).add(this);
+                }
+            }
+            this.memoryBytes = bytes;
+        }
+        
+        /** Leave an element out of this edit from now on; true if none are left. */
+        private boolean forget(CanvasElement element) {
+            int position = changed.indexOf(element);
+            if (position < 0) return changed.isEmpty();
+            List<CanvasElement> kept = new ArrayList<>(changed);
+            kept.remove(position);
+            changed = kept;
+            if (indexes != null) {
+                // The elements above it now land one place lower
+                int[] keptIndexes = new int[indexes.length - 1];
+                for (int i = 0, j = 0; i < indexes.length; i++) {
+                    if (i != position) {
+                        keptIndexes[j++] = i > position ? indexes[i] - 1 : indexes[i];
                     }
-                    
-                    elements.add(group);
                 }
+                indexes = keptIndexes;
             }
-            
-            repaint();
+            return changed.isEmpty();
         }
-    }
-    
-    private CanvasElement loadElementFromJson(JsonObject jsonElement) {
-        String type = jsonElement.get("type").getAsString();
-        int x = jsonElement.get("x").getAsInt();
-        int y = jsonElement.get("y").getAsInt();
-        int width = jsonElement.get("width").getAsInt();
-        int height = jsonElement.get("height").getAsInt();
-        
-        if (type.equals("rect")) {
-            Color fillColor = stringToColor(jsonElement.get("fillColor").getAsString());
-            Color strokeColor = stringToColor(jsonElement.get("strokeColor").getAsString());
-            float strokeWidth = jsonElement.get("strokeWidth").getAsFloat();
-            return new RectElement(x, y, width, height, fillColor, strokeColor, strokeWidth);
-        } else if (type.equals("circle")) {
-            Color fillColor = stringToColor(jsonElement.get("fillColor").getAsString());
-            Color strokeColor = stringToColor(jsonElement.get("strokeColor").getAsString());
-            float strokeWidth = jsonElement.get("strokeWidth").getAsFloat();
-            return new CircleElement(x, y, width, height, fillColor, strokeColor, strokeWidth);
-        } else if (type.equals("path")) {
-            Color fillColor = stringToColor(jsonElement.get("fillColor").getAsString());
-            Color strokeColor = stringToColor(jsonElement.get("strokeColor").getAsString());
-            float strokeWidth = jsonElement.get("strokeWidth").getAsFloat();
-            String pathData = jsonElement.get("pathData").getAsString();
-            java.awt.geom.Path2D.Double path = stringToPath(pathData);
-            return new PathElement(path, x, y, width, height, fillColor, strokeColor, strokeWidth);
-        } else if (type.equals("text") || type.equals("svg-text")) {
-            String text = jsonElement.get("text").getAsString();
-            String fontName = jsonElement.get("fontName").getAsString();
-            int fontSize = jsonElement.get("fontSize").getAsInt();
-            int fontStyle = jsonElement.get("fontStyle").getAsInt();
-            Font font = new Font(fontName, fontStyle, fontSize);
-            
-            if (type.equals("svg-text")) {
-                Color textColor = stringToColor(jsonElement.get("textColor").getAsString());
-                double rotation = jsonElement.has("rotation") ? jsonElement.get("rotation").getAsDouble() : 0.0;
-                return new SVGTextElement(x, y, width, height, text, font, textColor, rotation);
-            } else if (jsonElement.has("textColor")) {
-                Color textColor = stringToColor(jsonElement.get("textColor").getAsString());
-                return new TextElementWithColor(x, y, width, height, text, font, textColor);
+        
+        @Override
+        public void undo() {
+            super.undo();
+            apply(!added);
+        }
+        
+        @Override
+        public void redo() {
+            super.redo();
+            apply(added);
+        }
+        
+        private void apply(boolean add) {
+            if (changed.isEmpty()) return;
+            if (add && indexes != null) {
+                restoreElements(indexes, changed);
+            } else if (add) {
+                insertElements(index, changed);
             } else {
-                return new TextElement(x, y, width, height, text, font);
+                removeElements(changed);
             }
+            repaint();
         }
         
-        return null;
+        @Override
+        public String getPresentationName() {
+            return name;
+        }
+        
+        @Override
+        public long getMemoryBytes() {
+            return memoryBytes;
+        }
     }
     
-    private String colorToString(Color color) {
-        if (color == null) return "none";
-        return String.format("#%02x%02x%02x", color.getRed(), color.getGreen(), color.getBlue());
+    /** An element split into its parts, which went to the top of the stack. */
+    private class UngroupEdit extends AbstractUndoableEdit implements UndoHistory.Sized {
+        private final CanvasElement source;
+        private final int index;
+        // A group's children as they were, or null for other elements,
+        // which splitting leaves unchanged
+        private final List<CanvasElement> childrenBefore;
+        private final List<CanvasElement> released;
+        private final long memoryBytes;
+        
+        private UngroupEdit(CanvasElement source, int index, List<CanvasElement> childrenBefore,
+                            List<CanvasElement> released, long memoryBytes) {
+            this.source = source;
+            this.index = index;
+            this.childrenBefore = childrenBefore;
+            this.released = released;
+            this.memoryBytes = memoryBytes;
+        }
+        
+        @Override
+        public void undo() {
+            super.undo();
+            removeElements(released);
+            if (childrenBefore != null) {
+                ((GroupElement) source).replaceChildren(childrenBefore);
+            }
+            insertElements(index, Collections.singletonList(source));
+            repaint();
+        }
+        
+        @Override
+        public void redo() {
+            super.redo();
+            int at = elements.indexOf(source);
+            if (at < 0) return;
+            editJournal.recordUngroup(at);
+            removeElement(source);
+            deselect(source);
+            if (childrenBefore != null) {
+                ((GroupElement) source).replaceChildren(Collections.emptyList());
+            }
+            for (CanvasElement child : released) {
+                addElement(child);
+            }
+            repaint();
+        }
+        
+        @Override
+        public String getPresentationName() {
+            return "Ungroup";
+        }
+        
+        @Override
+        public long getMemoryBytes() {
+            return memoryBytes;
+        }
     }
     
-    private Color stringToColor(String colorStr) {
-        if (colorStr == null || colorStr.equals("none")) return null;
-        try {
-            return Color.decode(colorStr);
-        } catch (NumberFormatException e) {
-            return null;
+    /** Edits made together, such as moving a whole selection, as one step. */
+    private static class BatchEdit extends CompoundEdit implements UndoHistory.Sized {
+        private final String name;
+        
+        private BatchEdit(String name) {
+            this.name = name;
+        }
+        
+        @Override
+        public String getPresentationName() {
+            return name;
+        }
+        
+        // CompoundEdit would take these from its last edit
+        @Override
+        public String getUndoPresentationName() {
+            return UIManager.getString("AbstractUndoableEdit.undoText") + " " + name;
+        }
+        
+        @Override
+        public String getRedoPresentationName() {
+            return UIManager.getString("AbstractUndoableEdit.redoText") + " " + name;
+        }
+        
+        @Override
+        public long getMemoryBytes() {
+            long bytes = 0;
+            for (UndoableEdit edit : edits) {
+                bytes += UndoHistory.sizeOf(edit);
+            }
+            return bytes;
         }
     }
     
-    private String pathToString(java.awt.geom.Path2D.Double path) {
-        StringBuilder sb = new StringBuilder();
-        java.awt.geom.PathIterator pi = path.getPathIterator(null);
-        double[] coords = new double[6];
+    private class TextEdit extends AbstractUndoableEdit {
+        private final TextElement element;
+        private final String before;
+        private final String after;
         
-        while (!pi.isDone()) {
-            int type = pi.currentSegment(coords);
-            switch (type) {
-                case java.awt.geom.PathIterator.SEG_MOVETO:
-                    sb.append("M").append(coords[0]).append(",").append(coords[1]).append(" ");
-                    break;
-                case java.awt.geom.PathIterator.SEG_LINETO:
-                    sb.append("L").append(coords[0]).append(",").append(coords[1]).append(" ");
-                    break;
-                case java.awt.geom.PathIterator.SEG_QUADTO:
-                    sb.append("Q").append(coords[0]).append(",").append(coords[1]).append(" ")
-                      .append(coords[2]).append(",").append(coords[3]).append(" ");
-                    break;
-                case java.awt.geom.PathIterator.SEG_CUBICTO:
-                    sb.append("C").append(coords[0]).append(",").append(coords[1]).append(" ")
-                      .append(coords[2]).append(",").append(coords[3]).append(" ")
-                      .append(coords[4]).append(",").append(coords[5]).append(" ");
-                    break;
-                case java.awt.geom.PathIterator.SEG_CLOSE:
-                    sb.append("Z ");
-                    break;
+        private TextEdit(TextElement element, String before, String after) {
+            this.element = element;
+            this.before = before;
+            this.after = after;
+        }
+        
+        @Override
+        public void undo() {
+            super.undo();
+            apply(before);
+        }
+        
+        @Override
+        public void redo() {
+            super.redo();
+            apply(after);
+        }
+        
+        private void apply(String text) {
+            element.setText(text);
+            int index = elements.indexOf(element);
+            if (index >= 0) {
+                editJournal.recordTextChange(index, text);
             }
-            pi.next();
+            repaint();
         }
         
-        return sb.toString().trim();
+        @Override
+        public String getPresentationName() {
+            return "Text Change";
+        }
     }
     
-    private java.awt.geom.Path2D.Double stringToPath(String pathData) {
-        java.awt.geom.Path2D.Double path = new java.awt.geom.Path2D.Double();
+    private class ClipReleaseEdit extends AbstractUndoableEdit {
+        private final GroupElement group;
+        private final Shape clipShape;
         
-        String[] commands = pathData.split(" ");
-        for (String command : commands) {
-            if (command.isEmpty()) continue;
-            
-            // Validate command has at least one character
-            if (command.length() == 0) continue;
-            
-            char cmd = command.charAt(0);
-            String coordsStr = command.substring(1);
-            if (coordsStr.isEmpty() && cmd != 'Z') continue;
-            
-            String[] coords = coordsStr.split(",");
-            
-            try {
-                switch (cmd) {
-                    case 'M':
-                        path.moveTo(Double.parseDouble(coords[0]), Double.parseDouble(coords[1]));
-                        break;
-                    case 'L':
-                        path.lineTo(Double.parseDouble(coords[0]), Double.parseDouble(coords[1]));
-                        break;
-                    case 'Q':
-                        path.quadTo(Double.parseDouble(coords[0]), Double.parseDouble(coords[1]),
-                                   Double.parseDouble(coords[2]), Double.parseDouble(coords[3]));
-                        break;
-                    case 'C':
-                        path.curveTo(Double.parseDouble(coords[0]), Double.parseDouble(coords[1]),
-                                    Double.parseDouble(coords[2]), Double.parseDouble(coords[3]),
-                                    Double.parseDouble(coords[4]), Double.parseDouble(coords[5]));
-                        break;
-                    case 'Z':
-                        path.closePath();
-                        break;
-                }
-            } catch (Exception e) {
-                System.err.println("Error parsing path command '" + command + "' in path data: " + 
-                    pathData.substring(0, Math.min(100, pathData.length())));
-            }
+        private ClipReleaseEdit(GroupElement group) {
+            this.group = group;
+            this.clipShape = group.getClipShape();
+        }
+        
+        @Override
+        public void undo() {
+            super.undo();
+            group.setClippingMask(true);
+            group.setClipShape(clipShape);
+            // The journal has no way to restore a mask, so take a snapshot
+            editJournal.compact();
+            repaint();
         }
         
-        return path;
+        @Override
+        public void redo() {
+            super.redo();
+            releaseClip(group);
+        }
+        
+        @Override
+        public String getPresentationName() {
+            return "Release Clipping Mask";
+        }
     }
 }
@@ -0,0 +1,776 @@
+package com.figuremaker;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.google.gson.stream.MalformedJsonException;
+import java.awt.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Reads and writes .fmk figure files.
+ *
+ * Version 2 and later files are zip containers holding a small manifest, a
+ * compact scene description and one stored (uncompressed) entry per image,
+ * so images keep their original bytes without base64 inflation. Since
+ * version 3, path geometry is kept in a binary entry (see PathCodec) that
+ * scene elements point into; version 2 wrote it as path data text. Symbol
+ * definitions shared by instance elements are written once, to their own
+ * entry, and instances refer to them by index. Version 1
+ * files are a single JSON document with base64 images inlined; they are
+ * still read and are told apart by the missing zip signature.
+ */
+public class FigureFile {
+    public static final int FORMAT_VERSION = 3;
+
+    // Decimal places kept for path coordinates when saving
+    public static final int DEFAULT_PATH_PRECISION = 3;
+    public static final int FULL_PATH_PRECISION = -1;
+
+    private static final String MANIFEST_ENTRY = "manifest.json";
+    private static final String SCENE_ENTRY = "scene.json";
+    private static final String GEOMETRY_ENTRY = "geometry.bin";
+    private static final String SYMBOLS_ENTRY = "symbols.json";
+    private static final String IMAGE_DIRECTORY = "images/";
+    private static final byte[] ZIP_SIGNATURE = {'P', 'K', 3, 4};
+
+    // Side entries collected while a scene streams out; written after it
+    private static class Resources {
+        private final Map<ImageElement, String> imageEntries = new IdentityHashMap<>();
+        private final List<ImageElement> images = new ArrayList<>();
+        private final ByteArrayOutputStream geometry = new ByteArrayOutputStream();
+        private final Map<SymbolDefinition, Integer> symbolIndexes = new IdentityHashMap<>();
+        private final List<SymbolDefinition> symbols = new ArrayList<>();
+        private final int pathPrecision;
+
+        private Resources(int pathPrecision) {
+            this.pathPrecision = pathPrecision;
+        }
+    }
+
+    // The entries of a container being read
+    private static class Container {
+        private final ZipFile zip;
+        private final byte[] geometry;
+        private final List<SymbolDefinition> symbols = new ArrayList<>();
+
+        private Container(ZipFile zip, byte[] geometry) {
+            this.zip = zip;
+            this.geometry = geometry;
+        }
+    }
+
+    // Fields of one element as they are streamed in; the element itself is
+    // built once the whole object has been read, since keys may come in any order
+    private static class ElementRecord {
+        private String type;
+        private int x;
+        private int y;
+        private int width;
+        private int height;
+        private String imagePath;
+        private String imageData;
+        private String imageEntry;
+        private String mimeType;
+        private String text;
+        private String fontName;
+        private int fontSize;
+        private int fontStyle;
+        private String textColor;
+        private double rotation;
+        private String fillColor;
+        private String strokeColor;
+        private float strokeWidth;
+        private String pathData;
+        private int geometry = -1;
+        private String geometryData;
+        private int[] parts;
+        private int points = -1;
+        private String pointsData;
+        private int primitives = -1;
+        private String primitivesData;
+        private int symbol = -1;
+        private SymbolDefinition symbolData;
+        private float offsetX;
+        private float offsetY;
+        private String groupId;
+        private double[] transform;
+        private boolean clippingMask;
+        private List<CanvasElement> children;
+    }
+
+    public static void save(List<CanvasElement> elements, File file) throws IOException {
+        save(elements, file, DEFAULT_PATH_PRECISION);
+    }
+
+    /**
+     * Save with path coordinates rounded to the given number of decimal
+     * places (0-9), or FULL_PATH_PRECISION to keep them exactly.
+     */
+    public static void save(List<CanvasElement> elements, File file, int pathPrecision) throws IOException {
+        // Image entries and geometry are collected while the scene streams out
+        Resources resources = new Resources(pathPrecision);
+
+        // Write next to the target and swap it in, so a failed save never
+        // leaves a truncated file behind
+        File temp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+        try {
+            try (ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                zip.putNextEntry(new ZipEntry(MANIFEST_ENTRY));
+                JsonWriter manifest = openWriter(zip);
+                manifest.beginObject();
+                manifest.name("format").value("figure-maker");
+                manifest.name("version").value(FORMAT_VERSION);
+                manifest.name("scene").value(SCENE_ENTRY);
+                manifest.name("geometry").value(GEOMETRY_ENTRY);
+                manifest.name("symbols").value(SYMBOLS_ENTRY);
+                manifest.endObject();
+                manifest.flush();
+                zip.closeEntry();
+
+                zip.putNextEntry(new ZipEntry(SCENE_ENTRY));
+                JsonWriter scene = openWriter(zip);
+                scene.beginObject();
+                scene.name("elements").beginArray();
+                for (CanvasElement element : elements) {
+                    writeElement(scene, element, resources);
+                }
+                scene.endArray();
+                scene.endObject();
+                scene.flush();
+                zip.closeEntry();
+
+                // Symbol geometry goes into the geometry entry, so write symbols first
+                zip.putNextEntry(new ZipEntry(SYMBOLS_ENTRY));
+                JsonWriter symbols = openWriter(zip);
+                symbols.beginObject();
+                symbols.name("symbols").beginArray();
+                for (SymbolDefinition symbol : resources.symbols) {
+                    writeSymbol(symbols, symbol, resources);
+                }
+                symbols.endArray();
+                symbols.endObject();
+                symbols.flush();
+                zip.closeEntry();
+
+                zip.putNextEntry(new ZipEntry(GEOMETRY_ENTRY));
+                resources.geometry.writeTo(zip);
+                zip.closeEntry();
+
+                for (ImageElement image : resources.images) {
+                    // Image formats are already compressed, so store them as is
+                    writeStored(zip, resources.imageEntries.get(image), image.getEncodedData());
+                }
+            }
+            replace(temp, file);
+        } finally {
+            temp.delete();
+        }
+    }
+
+    /**
+     * Read a figure file of either version. Images come back as placeholders
+     * holding their encoded data; see ImageElement.decodePendingImage.
+     */
+    public static List<CanvasElement> load(File file) throws IOException {
+        if (isZipContainer(file)) {
+            return loadContainer(file);
+        }
+
+        // Version 1 images and paths are inline, so there is no container
+        try (JsonReader reader = openReader(new FileInputStream(file))) {
+            return readScene(reader, null);
+        } catch (IllegalStateException | NumberFormatException | MalformedJsonException e) {
+            throw new IOException("Not a figure file: " + file.getName(), e);
+        }
+    }
+
+    public static boolean isZipContainer(File file) throws IOException {
+        byte[] header = new byte[ZIP_SIGNATURE.length];
+        try (InputStream in = new FileInputStream(file)) {
+            int read = 0;
+            while (read < header.length) {
+                int n = in.read(header, read, header.length - read);
+                if (n < 0) return false;
+                read += n;
+            }
+        }
+        return java.util.Arrays.equals(header, ZIP_SIGNATURE);
+    }
+
+    private static List<CanvasElement> loadContainer(File file) throws IOException {
+        try (ZipFile zip = new ZipFile(file)) {
+            int version = 0;
+            String sceneEntry = SCENE_ENTRY;
+            String geometryEntry = null;
+            String symbolsEntry = null;
+            try (JsonReader manifest = openReader(openEntry(zip, MANIFEST_ENTRY))) {
+                manifest.beginObject();
+                while (manifest.hasNext()) {
+                    String name = manifest.nextName();
+                    if (name.equals("version")) {
+                        version = manifest.nextInt();
+                    } else if (name.equals("scene")) {
+                        sceneEntry = manifest.nextString();
+                    } else if (name.equals("geometry")) {
+                        geometryEntry = manifest.nextString();
+                    } else if (name.equals("symbols")) {
+                        symbolsEntry = manifest.nextString();
+                    } else {
+                        manifest.skipValue();
+                    }
+                }
+                manifest.endObject();
+            }
+            if (version > FORMAT_VERSION) {
+                throw new IOException("This figure was saved by a newer version of Figure Maker");
+            }
+
+            // Geometry is read whole so paths can be decoded as the scene streams in
+            byte[] geometry = geometryEntry != null ? readEntry(zip, geometryEntry) : null;
+            Container container = new Container(zip, geometry);
+            if (symbolsEntry != null) {
+                try (JsonReader symbols = openReader(openEntry(zip, symbolsEntry))) {
+                    readSymbols(symbols, container);
+                }
+            }
+            try (JsonReader scene = openReader(openEntry(zip, sceneEntry))) {
+                return readScene(scene, container);
+            }
+        } catch (IllegalStateException | NumberFormatException | MalformedJsonException e) {
+            throw new IOException("Damaged figure file: " + file.getName(), e);
+        }
+    }
+
+    private static JsonWriter openWriter(OutputStream out) {
+        // The writer is only flushed, never closed, so the zip stays open
+        JsonWriter writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8)));
+        writer.setSerializeNulls(false);
+        return writer;
+    }
+
+    private static JsonReader openReader(InputStream in) {
+        JsonReader reader = new JsonReader(new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)));
+        reader.setLenient(true);
+        return reader;
+    }
+
+    private static InputStream openEntry(ZipFile zip, String name) throws IOException {
+        ZipEntry entry = zip.getEntry(name);
+        if (entry == null) {
+            throw new IOException("Missing entry " + name);
+        }
+        return zip.getInputStream(entry);
+    }
+
+    private static byte[] readEntry(ZipFile zip, String name) throws IOException {
+        try (InputStream in = openEntry(zip, name)) {
+            long size = zip.getEntry(name).getSize();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(size > 0 ? (int) size : 8192);
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private static void writeStored(ZipOutputStream zip, String name, byte[] data) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(data.length);
+        entry.setCompressedSize(data.length);
+        entry.setCrc(crc.getValue());
+        zip.putNextEntry(entry);
+        zip.write(data);
+        zip.closeEntry();
+    }
+
+    private static void replace(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static String extensionFor(String mimeType) {
+        if (mimeType == null) return ".bin";
+        switch (mimeType) {
+            case "image/png": return ".png";
+            case "image/jpeg": return ".jpg";
+            case "image/gif": return ".gif";
+            case "image/bmp": return ".bmp";
+            default: return ".bin";
+        }
+    }
+
+    private static void writeElement(JsonWriter out, CanvasElement element, Resources resources) throws IOException {
+        out.beginObject();
+        out.name("type").value(element.getType());
+        out.name("x").value(element.getX());
+        out.name("y").value(element.getY());
+        out.name("width").value(element.getWidth());
+        out.name("height").value(element.getHeight());
+
+        if (element instanceof ImageElement) {
+            ImageElement imageElement = (ImageElement) element;
+            out.name("imagePath").value(imageElement.getImagePath());
+            out.name("mimeType").value(imageElement.getMimeType());
+            // An image added but not read yet has no data, only its source
+            // file, which the loader reads again
+            if (resources == null) {
+                // Standalone elements carry their image inline, if there is one yet
+                if (imageElement.hasImageData()) {
+                    out.name("imageData").value(imageElement.getImageAsBase64());
+                }
+            } else if (imageElement.hasImageData()) {
+                String entry = resources.imageEntries.get(imageElement);
+                if (entry == null) {
+                    entry = IMAGE_DIRECTORY + resources.images.size() + extensionFor(imageElement.getMimeType());
+                    resources.imageEntries.put(imageElement, entry);
+                    resources.images.add(imageElement);
+                }
+                out.name("imageEntry").value(entry);
+            }
+        } else if (element instanceof SVGTextElement) {
+            SVGTextElement svgText = (SVGTextElement) element;
+            writeFont(out, svgText.getText(), svgText.getFont());
+            out.name("textColor").value(colorToString(svgText.getTextColor()));
+            out.name("rotation").value(svgText.getRotation());
+        } else if (element instanceof TextElement) {
+            TextElement text = (TextElement) element;
+            writeFont(out, text.getText(), text.getFont());
+            if (element instanceof TextElementWithColor) {
+                out.name("textColor").value(colorToString(((TextElementWithColor) element).getTextColor()));
+            }
+        } else if (element instanceof RectElement) {
+            RectElement rect = (RectElement) element;
+            writeStyle(out, rect.getFillColor(), rect.getStrokeColor(), rect.getStrokeWidth());
+        } else if (element instanceof CircleElement) {
+            CircleElement circle = (CircleElement) element;
+            writeStyle(out, circle.getFillColor(), circle.getStrokeColor(), circle.getStrokeWidth());
+        } else if (element instanceof PathElement) {
+            PathElement path = (PathElement) element;
+            writeStyle(out, path.getFillColor(), path.getStrokeColor(), path.getStrokeWidth());
+            writeGeometry(out, path.getPath(), resources);
+            if (path.isCompound()) {
+                out.name("parts").beginArray();
+                for (int end : path.getPartEnds()) {
+                    out.value(end);
+                }
+                out.endArray();
+            }
+        } else if (element instanceof MarkerCloudElement) {
+            MarkerCloudElement cloud = (MarkerCloudElement) element;
+            writeStyle(out, cloud.getFillColor(), cloud.getStrokeColor(), cloud.getStrokeWidth());
+            writeGeometry(out, cloud.getMarker(), resources);
+            if (resources == null) {
+                ByteArrayOutputStream points = new ByteArrayOutputStream();
+                PathCodec.encodeFloats(cloud.getPoints(), points);
+                out.name("pointsData").value(java.util.Base64.getEncoder().encodeToString(points.toByteArray()));
+            } else {
+                out.name("points").value(resources.geometry.size());
+                PathCodec.encodeFloats(cloud.getPoints(), resources.geometry);
+            }
+        } else if (element instanceof PrimitiveLayerElement) {
+            PrimitiveLayerElement layer = (PrimitiveLayerElement) element;
+            if (resources == null) {
+                ByteArrayOutputStream primitives = new ByteArrayOutputStream();
+                PathCodec.encodePrimitives(layer, primitives);
+                out.name("primitivesData").value(java.util.Base64.getEncoder().encodeToString(primitives.toByteArray()));
+            } else {
+                out.name("primitives").value(resources.geometry.size());
+                PathCodec.encodePrimitives(layer, resources.geometry);
+            }
+        } else if (element instanceof InstanceElement) {
+            InstanceElement instance = (InstanceElement) element;
+            out.name("offsetX").value(instance.getOffsetX());
+            out.name("offsetY").value(instance.getOffsetY());
+            SymbolDefinition symbol = instance.getDefinition();
+            if (resources == null) {
+                out.name("symbolData");
+                writeSymbol(out, symbol, null);
+            } else {
+                Integer index = resources.symbolIndexes.get(symbol);
+                if (index == null) {
+                    index = resources.symbols.size();
+                    resources.symbolIndexes.put(symbol, index);
+                    resources.symbols.add(symbol);
+                }
+                out.name("symbol").value(index);
+            }
+        } else if (element instanceof GroupElement) {
+            GroupElement group = (GroupElement) element;
+            out.name("groupId").value(group.getGroupId());
+            out.name("isClippingMask").value(group.isClippingMask());
+            java.awt.geom.AffineTransform transform = group.getTransform();
+            if (!transform.isIdentity()) {
+                // Children are stored in the group's own coordinates
+                double[] matrix = new double[6];
+                transform.getMatrix(matrix);
+                out.name("transform").beginArray();
+                for (double value : matrix) {
+                    out.value(value);
+                }
+                out.endArray();
+            }
+
+            out.name("children").beginArray();
+            for (CanvasElement child : group.getChildren()) {
+                writeElement(out, child, resources);
+            }
+            out.endArray();
+        }
+        out.endObject();
+    }
+
+    private static void writeGeometry(JsonWriter out, java.awt.geom.Path2D.Double path, Resources resources) throws IOException {
+        if (resources == null) {
+            // Standalone elements keep their exact geometry inline
+            ByteArrayOutputStream geometry = new ByteArrayOutputStream();
+            PathCodec.encode(path, FULL_PATH_PRECISION, geometry);
+            out.name("geometryData").value(java.util.Base64.getEncoder().encodeToString(geometry.toByteArray()));
+        } else {
+            out.name("geometry").value(resources.geometry.size());
+            PathCodec.encode(path, resources.pathPrecision, resources.geometry);
+        }
+    }
+
+    private static void writeSymbol(JsonWriter out, SymbolDefinition symbol, Resources resources) throws IOException {
+        out.beginObject();
+        out.name("parts").beginArray();
+        for (SymbolDefinition.Part part : symbol.getParts()) {
+            out.beginObject();
+            writeStyle(out, part.getFillColor(), part.getStrokeColor(), part.getStrokeWidth());
+            writeGeometry(out, part.getShape(), resources);
+            out.endObject();
+        }
+        out.endArray();
+        out.endObject();
+    }
+
+    private static void writeFont(JsonWriter out, String text, Font font) throws IOException {
+        out.name("text").value(text);
+        out.name("fontName").value(font.getName());
+        out.name("fontSize").value(font.getSize());
+        out.name("fontStyle").value(font.getStyle());
+    }
+
+    private static void writeStyle(JsonWriter out, Color fillColor, Color strokeColor, float strokeWidth) throws IOException {
+        out.name("fillColor").value(colorToString(fillColor));
+        out.name("strokeColor").value(colorToString(strokeColor));
+        out.name("strokeWidth").value(strokeWidth);
+    }
+
+    private static List<CanvasElement> readScene(JsonReader in, Container container) throws IOException {
+        List<CanvasElement> elements = null;
+        in.beginObject();
+        while (in.hasNext()) {
+            if (in.nextName().equals("elements")) {
+                elements = readElements(in, container);
+            } else {
+                in.skipValue();
+            }
+        }
+        in.endObject();
+        if (elements == null) {
+            throw new IOException("No elements in figure file");
+        }
+        return elements;
+    }
+
+    private static List<CanvasElement> readElements(JsonReader in, Container container) throws IOException {
+        List<CanvasElement> elements = new ArrayList<>();
+        in.beginArray();
+        while (in.hasNext()) {
+            CanvasElement element = readElement(in, container);
+            if (element != null) {
+                elements.add(element);
+            }
+        }
+        in.endArray();
+        return elements;
+    }
+
+    private static void readSymbols(JsonReader in, Container container) throws IOException {
+        in.beginObject();
+        while (in.hasNext()) {
+            if (in.nextName().equals("symbols")) {
+                in.beginArray();
+                while (in.hasNext()) {
+                    container.symbols.add(readSymbol(in, container));
+                }
+                in.endArray();
+            } else {
+                in.skipValue();
+            }
+        }
+        in.endObject();
+    }
+
+    private static SymbolDefinition readSymbol(JsonReader in, Container container) throws IOException {
+        List<SymbolDefinition.Part> parts = new ArrayList<>();
+        in.beginObject();
+        while (in.hasNext()) {
+            if (!in.nextName().equals("parts")) {
+                in.skipValue();
+                continue;
+            }
+            in.beginArray();
+            while (in.hasNext()) {
+                // Parts use the same keys as a path element
+                ElementRecord r = new ElementRecord();
+                in.beginObject();
+                while (in.hasNext()) {
+                    switch (in.nextName()) {
+                        case "fillColor": r.fillColor = in.nextString(); break;
+                        case "strokeColor": r.strokeColor = in.nextString(); break;
+                        case "strokeWidth": r.strokeWidth = (float) in.nextDouble(); break;
+                        case "geometry": r.geometry = in.nextInt(); break;
+                        case "geometryData": r.geometryData = in.nextString(); break;
+                        default: in.skipValue(); break;
+                    }
+                }
+                in.endObject();
+                parts.add(new SymbolDefinition.Part(readGeometry(r, container),
+                    stringToColor(r.fillColor), stringToColor(r.strokeColor), r.strokeWidth));
+            }
+            in.endArray();
+        }
+        in.endObject();
+        return new SymbolDefinition(parts);
+    }
+
+    private static int[] readInts(JsonReader in) throws IOException {
+        List<Integer> values = new ArrayList<>();
+        in.beginArray();
+        while (in.hasNext()) {
+            values.add(in.nextInt());
+        }
+        in.endArray();
+        int[] ints = new int[values.size()];
+        for (int i = 0; i < ints.length; i++) {
+            ints[i] = values.get(i);
+        }
+        return ints;
+    }
+
+    private static double[] readDoubles(JsonReader in) throws IOException {
+        List<Double> values = new ArrayList<>();
+        in.beginArray();
+        while (in.hasNext()) {
+            values.add(in.nextDouble());
+        }
+        in.endArray();
+        double[] doubles = new double[values.size()];
+        for (int i = 0; i < doubles.length; i++) {
+            doubles[i] = values.get(i);
+        }
+        return doubles;
+    }
+
+    private static CanvasElement readElement(JsonReader in, Container container) throws IOException {
+        ElementRecord r = new ElementRecord();
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                continue;
+            }
+            switch (name) {
+                case "type": r.type = in.nextString(); break;
+                case "x": r.x = in.nextInt(); break;
+                case "y": r.y = in.nextInt(); break;
+                case "width": r.width = in.nextInt(); break;
+                case "height": r.height = in.nextInt(); break;
+                case "imagePath": r.imagePath = in.nextString(); break;
+                case "imageData": r.imageData = in.nextString(); break;
+                case "imageEntry": r.imageEntry = in.nextString(); break;
+                case "mimeType": r.mimeType = in.nextString(); break;
+                case "text": r.text = in.nextString(); break;
+                case "fontName": r.fontName = in.nextString(); break;
+                case "fontSize": r.fontSize = in.nextInt(); break;
+                case "fontStyle": r.fontStyle = in.nextInt(); break;
+                case "textColor": r.textColor = in.nextString(); break;
+                case "rotation": r.rotation = in.nextDouble(); break;
+                case "fillColor": r.fillColor = in.nextString(); break;
+                case "strokeColor": r.strokeColor = in.nextString(); break;
+                case "strokeWidth": r.strokeWidth = (float) in.nextDouble(); break;
+                case "pathData": r.pathData = in.nextString(); break;
+                case "geometry": r.geometry = in.nextInt(); break;
+                case "geometryData": r.geometryData = in.nextString(); break;
+                case "parts": r.parts = readInts(in); break;
+                case "points": r.points = in.nextInt(); break;
+                case "pointsData": r.pointsData = in.nextString(); break;
+                case "primitives": r.primitives = in.nextInt(); break;
+                case "primitivesData": r.primitivesData = in.nextString(); break;
+                case "symbol": r.symbol = in.nextInt(); break;
+                case "symbolData": r.symbolData = readSymbol(in, container); break;
+                case "offsetX": r.offsetX = (float) in.nextDouble(); break;
+                case "offsetY": r.offsetY = (float) in.nextDouble(); break;
+                case "groupId": r.groupId = in.nextString(); break;
+                case "transform": r.transform = readDoubles(in); break;
+                case "isClippingMask": r.clippingMask = in.nextBoolean(); break;
+                case "children": r.children = readElements(in, container); break;
+                default: in.skipValue(); break;
+            }
+        }
+        in.endObject();
+        return buildElement(r, container);
+    }
+
+    private static CanvasElement buildElement(ElementRecord r, Container container) throws IOException {
+        if (r.type == null) {
+            throw new IOException("Element without a type");
+        }
+
+        switch (r.type) {
+            case "image": {
+                ImageElement image = new ImageElement(r.x, r.y, r.width, r.height, r.imagePath);
+                if (r.imageEntry != null && container != null) {
+                    image.setPendingImageBytes(readEntry(container.zip, r.imageEntry), r.mimeType);
+                } else if (r.imageData != null) {
+                    image.setPendingImageData(r.imageData, r.mimeType);
+                } else if (r.imagePath == null) {
+                    throw new IOException("Image has neither data nor a source file");
+                }
+                return image;
+            }
+            case "text":
+            case "svg-text": {
+                Font font = GraphicsCache.font(r.fontName, r.fontStyle, r.fontSize);
+                if (r.type.equals("svg-text")) {
+                    return new SVGTextElement(r.x, r.y, r.width, r.height, r.text, font,
+                        stringToColor(r.textColor), r.rotation);
+                } else if (r.textColor != null) {
+                    return new TextElementWithColor(r.x, r.y, r.width, r.height, r.text, font,
+                        stringToColor(r.textColor));
+                }
+                return new TextElement(r.x, r.y, r.width, r.height, r.text, font);
+            }
+            case "rect":
+                return new RectElement(r.x, r.y, r.width, r.height,
+                    stringToColor(r.fillColor), stringToColor(r.strokeColor), r.strokeWidth);
+            case "circle":
+                return new CircleElement(r.x, r.y, r.width, r.height,
+                    stringToColor(r.fillColor), stringToColor(r.strokeColor), r.strokeWidth);
+            case "path":
+                return new PathElement(readGeometry(r, container), r.x, r.y, r.width, r.height,
+                    stringToColor(r.fillColor), stringToColor(r.strokeColor), r.strokeWidth, r.parts);
+            case "marker-cloud": {
+                float[] points;
+                if (r.pointsData != null) {
+                    points = PathCodec.decodeFloats(java.util.Base64.getDecoder().decode(r.pointsData), 0);
+                } else if (r.points >= 0 && container != null && container.geometry != null) {
+                    points = PathCodec.decodeFloats(container.geometry, r.points);
+                } else {
+                    throw new IOException("Marker cloud without points");
+                }
+                return new MarkerCloudElement(r.x, r.y, r.width, r.height, readGeometry(r, container), points,
+                    stringToColor(r.fillColor), stringToColor(r.strokeColor), r.strokeWidth);
+            }
+            case "primitive-layer":
+                if (r.primitivesData != null) {
+                    return PathCodec.decodePrimitives(java.util.Base64.getDecoder().decode(r.primitivesData), 0,
+                        r.x, r.y, r.width, r.height);
+                } else if (r.primitives >= 0 && container != null && container.geometry != null) {
+                    return PathCodec.decodePrimitives(container.geometry, r.primitives, r.x, r.y, r.width, r.height);
+                }
+                throw new IOException("Primitive layer without shapes");
+            case "instance": {
+                SymbolDefinition symbol = r.symbolData;
+                if (symbol == null && container != null && r.symbol >= 0 && r.symbol < container.symbols.size()) {
+                    symbol = container.symbols.get(r.symbol);
+                }
+                if (symbol == null) {
+                    throw new IOException("Instance without a symbol");
+                }
+                return new InstanceElement(r.x, r.y, r.width, r.height, symbol, r.offsetX, r.offsetY);
+            }
+            case "group":
+            case "clipping-mask": {
+                GroupElement group = new GroupElement(r.x, r.y, r.width, r.height, r.groupId);
+                group.setClippingMask(r.clippingMask);
+                if (r.children != null) {
+                    group.addChildren(r.children);
+                }
+                if (r.transform != null && r.transform.length == 6) {
+                    group.transformBy(new java.awt.geom.AffineTransform(r.transform));
+                }
+                return group;
+            }
+            default:
+                System.err.println("Skipping element of unknown type: " + r.type);
+                return null;
+        }
+    }
+
+    /**
+     * Encode a single element (and its children) as one line of JSON, with
+     * any image data inlined.
+     */
+    static String elementToJson(CanvasElement element) throws IOException {
+        StringWriter buffer = new StringWriter();
+        JsonWriter out = new JsonWriter(buffer);
+        out.setSerializeNulls(false);
+        writeElement(out, element, null);
+        out.flush();
+        return buffer.toString();
+    }
+
+    static CanvasElement elementFromJson(String json) throws IOException {
+        try {
+            JsonReader in = new JsonReader(new StringReader(json));
+            in.setLenient(true);
+            return readElement(in, null);
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new IOException("Damaged element data", e);
+        }
+    }
+
+    private static java.awt.geom.Path2D.Double readGeometry(ElementRecord r, Container container) throws IOException {
+        if (r.geometryData != null) {
+            return PathCodec.decode(java.util.Base64.getDecoder().decode(r.geometryData), 0);
+        } else if (r.geometry >= 0 && container != null && container.geometry != null) {
+            return PathCodec.decode(container.geometry, r.geometry);
+        }
+        // Version 1 and 2 files store path data text
+        return stringToPath(r.pathData != null ? r.pathData : "");
+    }
+
+    static String colorToString(Color color) {
+        if (color == null) return "none";
+        return String.format("#%02x%02x%02x", color.getRed(), color.getGreen(), color.getBlue());
+    }
+
+    static Color stringToColor(String colorStr) {
+        if (colorStr == null || colorStr.equals("none")) return null;
+        try {
+            return GraphicsCache.color(0xff000000 | Integer.decode(colorStr));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    static java.awt.geom.Path2D.Double stringToPath(String pathData) {
+        return PathDataParser.parse(pathData);
+    }
+}
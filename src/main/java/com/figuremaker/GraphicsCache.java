@@ -0,0 +1,114 @@
+package com.figuremaker;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Shared, thread-safe intern tables for the immutable value objects that
+ * elements hold and paint with. Imports and loads can run off the event
+ * thread, so the tables are concurrent maps. Each table stops growing at
+ * MAX_ENTRIES; past that, values are still returned, just not shared.
+ */
+final class GraphicsCache {
+    private static final int MAX_ENTRIES = 4096;
+
+    /** Dashed border drawn around selected elements. */
+    static final BasicStroke SELECTION_STROKE =
+        new BasicStroke(2, BasicStroke.CAP_BUTT, BasicStroke.JOIN_BEVEL, 0, new float[]{5}, 0);
+
+    /** Thinner dashed border used around selected SVG text. */
+    static final BasicStroke TEXT_SELECTION_STROKE =
+        new BasicStroke(1, BasicStroke.CAP_BUTT, BasicStroke.JOIN_BEVEL, 0, new float[]{5}, 0);
+
+    private static final Map<Integer, Color> colors = new ConcurrentHashMap<>();
+    private static final Map<FontKey, Font> fonts = new ConcurrentHashMap<>();
+    private static final Map<Integer, BasicStroke> strokes = new ConcurrentHashMap<>();
+
+    private GraphicsCache() {
+    }
+
+    /** Color for a packed 0xAARRGGBB value. */
+    static Color color(int argb) {
+        Color color = colors.get(argb);
+        if (color == null) {
+            color = new Color(argb, true);
+            if (colors.size() < MAX_ENTRIES) {
+                Color existing = colors.putIfAbsent(argb, color);
+                if (existing != null) {
+                    color = existing;
+                }
+            }
+        }
+        return color;
+    }
+
+    static Color color(int r, int g, int b) {
+        return color(r, g, b, 255);
+    }
+
+    static Color color(int r, int g, int b, int a) {
+        if (((r | g | b | a) & ~0xff) != 0) {
+            // Let Color report the out of range component
+            return new Color(r, g, b, a);
+        }
+        return color((a << 24) | (r << 16) | (g << 8) | b);
+    }
+
+    static Font font(String name, int style, int size) {
+        FontKey key = new FontKey(name, style, size);
+        Font font = fonts.get(key);
+        if (font == null) {
+            font = new Font(name, style, size);
+            if (fonts.size() < MAX_ENTRIES) {
+                Font existing = fonts.putIfAbsent(key, font);
+                if (existing != null) {
+                    font = existing;
+                }
+            }
+        }
+        return font;
+    }
+
+    /** Plain solid stroke of the given width, as made by new BasicStroke(width). */
+    static BasicStroke stroke(float width) {
+        int bits = Float.floatToIntBits(width);
+        BasicStroke stroke = strokes.get(bits);
+        if (stroke == null) {
+            stroke = new BasicStroke(width);
+            if (strokes.size() < MAX_ENTRIES) {
+                BasicStroke existing = strokes.putIfAbsent(bits, stroke);
+                if (existing != null) {
+                    stroke = existing;
+                }
+            }
+        }
+        return stroke;
+    }
+
+    private static final class FontKey {
+        private final String name;
+        private final int style;
+        private final int size;
+
+        private FontKey(String name, int style, int size) {
+            this.name = name;
+            this.style = style;
+            this.size = size;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof FontKey)) return false;
+            FontKey other = (FontKey) o;
+            return style == other.style && size == other.size && java.util.Objects.equals(name, other.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return (java.util.Objects.hashCode(name) * 31 + style) * 31 + size;
+        }
+    }
+}
@@ -1,25 +1,43 @@
 package com.figuremaker;
 
 import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
+import java.awt.geom.Point2D;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 
 public class GroupElement extends CanvasElement {
+    private static final Color CLIP_MASK_COLOR = new Color(255, 0, 0, 100); // Semi-transparent red
+
     private List<CanvasElement> children;
+    private List<CanvasElement> childView;
     private String groupId; // For tracking SVG groups
     private boolean isClippingMask;
     private Shape clipShape;
+    // Maps the children's coordinates into this group's parent, or null for
+    // none. Never changed in place, so copies can share it.
+    private AffineTransform transform;
+    
+    // Bounds are worked out from the children on first use after a change,
+    // and kept in the parent's coordinates. The child unions are kept apart
+    // from x/y/width/height, which setSize may still override.
+    private boolean boundsStale;
+    private Rectangle childBounds;
+    private Rectangle childPaintBounds;
     
     public GroupElement(int x, int y, int width, int height) {
         super(x, y, width, height);
-        this.children = new ArrayList<>();
+        setChildList(new ArrayList<>());
         this.isClippingMask = false;
         this.clipShape = null;
     }
     
     public GroupElement(int x, int y, int width, int height, String groupId) {
         super(x, y, width, height);
-        this.children = new ArrayList<>();
+        setChildList(new ArrayList<>());
         this.groupId = groupId;
         this.isClippingMask = false;
         this.clipShape = null;
@@ -27,26 +45,61 @@ public class GroupElement extends CanvasElement {
     
     @Override
     public void draw(Graphics g) {
+        drawVisible(g, g.getClipBounds(), new PaintCounts());
+    }
+    
+    @Override
+    public void drawVisible(Graphics g, Rectangle clip, PaintCounts counts) {
+        ensureBounds();
+        // Skip the whole subtree when the group is off-screen
+        if (clip != null && !getPaintBounds().intersects(clip)) {
+            counts.culled++;
+            return;
+        }
+        
         Graphics2D g2d = (Graphics2D) g;
+        counts.drawn++;
         
         // If this is a clipping mask, apply clipping to children
         Shape oldClip = null;
         if (isClippingMask) {
             oldClip = g2d.getClip();
-            if (clipShape != null) {
-                g2d.setClip(clipShape);
-            } else {
-                // Create a rectangular clip region
+            if (clipShape == null) {
+                // Create a rectangular clip region around the group box
                 Rectangle clipRect = new Rectangle(x, y, width, height);
-                g2d.setClip(clipRect);
+                g2d.clip(clipRect);
             }
         }
         
-        // Draw all children
-        for (CanvasElement child : children) {
-            child.draw(g);
+        // Children are drawn in their own coordinates
+        AffineTransform oldTransform = null;
+        Rectangle childClip = clip;
+        if (transform != null) {
+            oldTransform = g2d.getTransform();
+            g2d.transform(transform);
+            childClip = clip != null ? toChildSpace(clip) : null;
+        }
+        if (isClippingMask) {
+            if (clipShape != null) {
+                // Clip shapes are in the children's coordinates
+                g2d.clip(clipShape);
+            }
+            // Children outside the mask can never show
+            childClip = g2d.getClipBounds();
+        }
+        
+        // Draw the children that reach the clip
+        if (childClip == null || !childClip.isEmpty()) {
+            for (CanvasElement child : children) {
+                child.drawVisible(g, childClip, counts);
+            }
+        } else {
+            counts.culled += children.size();
         }
         
+        if (oldTransform != null) {
+            g2d.setTransform(oldTransform);
+        }
         // Restore original clip if we applied clipping
         if (isClippingMask) {
             g2d.setClip(oldClip);
@@ -55,7 +108,7 @@ public class GroupElement extends CanvasElement {
         // Draw selection border around the entire group
         if (selected) {
             g2d.setColor(Color.BLUE);
-            g2d.setStroke(new BasicStroke(2, BasicStroke.CAP_BUTT, BasicStroke.JOIN_BEVEL, 0, new float[]{5}, 0));
+            g2d.setStroke(GraphicsCache.SELECTION_STROKE);
             g2d.drawRect(x - 2, y - 2, width + 4, height + 4);
             
             // Draw resize handles
@@ -69,60 +122,252 @@ public class GroupElement extends CanvasElement {
         
         // Visual indicator for clipping mask
         if (isClippingMask && selected) {
-            g2d.setColor(new Color(255, 0, 0, 100)); // Semi-transparent red
-            g2d.setStroke(new BasicStroke(3));
+            g2d.setColor(CLIP_MASK_COLOR);
+            g2d.setStroke(GraphicsCache.stroke(3));
             g2d.drawRect(x, y, width, height);
         }
     }
     
     @Override
     public boolean contains(int px, int py) {
+        ensureBounds();
+        // The group box covers nearly every child, so test it first
+        if (super.contains(px, py)) {
+            return true;
+        }
+        int childX = px;
+        int childY = py;
+        if (transform != null) {
+            Point2D point = new Point2D.Double(px, py);
+            try {
+                transform.inverseTransform(point, point);
+            } catch (NoninvertibleTransformException e) {
+                // Flattened to nothing, so no child can be hit
+                return false;
+            }
+            childX = (int) Math.floor(point.getX());
+            childY = (int) Math.floor(point.getY());
+        }
         // Check if any child contains the point
         for (CanvasElement child : children) {
-            if (child.contains(px, py)) {
+            if (child.contains(childX, childY)) {
                 return true;
             }
         }
-        return super.contains(px, py);
+        return false;
+    }
+    
+    @Override
+    public Rectangle getBounds() {
+        ensureBounds();
+        // Some children (e.g. SVG text) hit-test outside their x/y/width/height box
+        Rectangle bounds = super.getBounds();
+        if (childBounds != null) {
+            bounds.add(childBounds);
+        }
+        return bounds;
+    }
+    
+    @Override
+    public Rectangle getPaintBounds() {
+        ensureBounds();
+        Rectangle bounds = super.getPaintBounds();
+        if (childPaintBounds != null) {
+            bounds.add(childPaintBounds);
+        }
+        return bounds;
+    }
+    
+    @Override
+    public int getX() {
+        ensureBounds();
+        return x;
+    }
+    
+    @Override
+    public int getY() {
+        ensureBounds();
+        return y;
+    }
+    
+    @Override
+    public int getWidth() {
+        ensureBounds();
+        return width;
+    }
+    
+    @Override
+    public int getHeight() {
+        ensureBounds();
+        return height;
+    }
+    
+    @Override
+    public void move(int dx, int dy) {
+        ensureBounds();
+        setPosition(x + dx, y + dy);
     }
     
     @Override
     public void setPosition(int newX, int newY) {
+        ensureBounds();
         // Calculate offset
         int dx = newX - x;
         int dy = newY - y;
         
-        // Move all children by the same offset
-        for (CanvasElement child : children) {
-            child.setPosition(child.getX() + dx, child.getY() + dy);
+        // Move the group's transform rather than every child; moving
+        // changes neither the group's size nor how it looks
+        if (dx != 0 || dy != 0) {
+            AffineTransform moved = AffineTransform.getTranslateInstance(dx, dy);
+            if (transform != null) {
+                moved.concatenate(transform);
+            }
+            transform = moved.isIdentity() ? null : moved;
+        }
+        if (childBounds != null) {
+            // New rectangles, as copies may share the old ones
+            childBounds = new Rectangle(childBounds.x + dx, childBounds.y + dy, childBounds.width, childBounds.height);
+            childPaintBounds = new Rectangle(childPaintBounds.x + dx, childPaintBounds.y + dy,
+                childPaintBounds.width, childPaintBounds.height);
         }
         
         // Update group position
         super.setPosition(newX, newY);
     }
     
+    @Override
+    public void setSize(int width, int height) {
+        ensureBounds();
+        super.setSize(width, height);
+    }
+    
     @Override
     public String getType() {
         return isClippingMask ? "clipping-mask" : "group";
     }
     
+    @Override
+    public CanvasElement copy() {
+        ensureBounds();
+        GroupElement copy = (GroupElement) super.copy();
+        copy.setChildList(new ArrayList<>(children.size()));
+        for (CanvasElement child : children) {
+            CanvasElement childCopy = child.copy();
+            childCopy.setParent(copy);
+            copy.children.add(childCopy);
+        }
+        // The cached unions are never changed in place, so they can be shared
+        return copy;
+    }
+    
     public void addChild(CanvasElement element) {
         children.add(element);
-        updateBounds();
+        element.setParent(this);
+        childChanged();
+    }
+    
+    /** Add several children at once, working bounds out only once. */
+    public void addChildren(Collection<? extends CanvasElement> elements) {
+        children.addAll(elements);
+        for (CanvasElement element : elements) {
+            element.setParent(this);
+        }
+        childChanged();
     }
     
     public void removeChild(CanvasElement element) {
-        children.remove(element);
-        updateBounds();
+        if (children.remove(element) && element.getParent() == this) {
+            element.setParent(null);
+        }
+        childChanged();
     }
     
+    /** Swap in a new child list covering the same area, e.g. after merging shapes. */
+    void replaceChildren(List<CanvasElement> newChildren) {
+        List<CanvasElement> oldChildren = children;
+        setChildList(new ArrayList<>(newChildren));
+        for (CanvasElement child : oldChildren) {
+            if (child.getParent() == this) {
+                child.setParent(null);
+            }
+        }
+        for (CanvasElement child : children) {
+            child.setParent(this);
+        }
+        childChanged();
+    }
+    
+    /**
+     * The children in drawing order, as a read-only view that follows later
+     * changes to the group. Their coordinates are the group's own, which
+     * getTransform maps into the parent's.
+     */
     public List<CanvasElement> getChildren() {
-        return new ArrayList<>(children);
+        return childView;
+    }
+    
+    /** Called by a child when it moves or changes. */
+    void childChanged() {
+        boundsStale = true;
+        // Tells this group's own parent in turn
+        invalidate();
+    }
+    
+    /**
+     * Take the children out of the group, placed in the group's parent
+     * coordinates with the group's transform baked into each (see
+     * TransformBaker). Leaves the group empty.
+     */
+    public List<CanvasElement> releaseChildren() {
+        List<CanvasElement> released = new ArrayList<>(children.size());
+        for (CanvasElement child : children) {
+            child.setParent(null);
+            released.add(transform != null ? TransformBaker.bake(child, transform) : child);
+        }
+        children.clear();
+        boundsStale = true;
+        return released;
+    }
+    
+    /**
+     * The transform from the children's coordinates to the parent's. Moving
+     * the group only changes this, so the children keep their coordinates.
+     */
+    public AffineTransform getTransform() {
+        return transform != null ? new AffineTransform(transform) : new AffineTransform();
+    }
+    
+    /** Apply a further transform on top of the current one, e.g. from SVG import. */
+    void transformBy(AffineTransform at) {
+        AffineTransform combined = new AffineTransform(at);
+        if (transform != null) {
+            combined.concatenate(transform);
+        }
+        transform = combined.isIdentity() ? null : combined;
+        boundsStale = true;
+        invalidate();
+    }
+    
+    /** A rectangle in the children's coordinates, bounded in the parent's. */
+    Rectangle toParentSpace(Rectangle r) {
+        if (transform == null) {
+            return r;
+        }
+        return transform.createTransformedShape(r).getBounds();
+    }
+    
+    private Rectangle toChildSpace(Rectangle r) {
+        try {
+            return transform.createInverse().createTransformedShape(r).getBounds();
+        } catch (NoninvertibleTransformException e) {
+            return new Rectangle();
+        }
     }
     
     public void releaseClippingMask() {
         isClippingMask = false;
         clipShape = null;
+        invalidate();
     }
     
     public boolean isClippingMask() {
@@ -131,6 +376,7 @@ public class GroupElement extends CanvasElement {
     
     public void setClippingMask(boolean isClippingMask) {
         this.isClippingMask = isClippingMask;
+        invalidate();
     }
 
     public Shape getClipShape() {
@@ -139,6 +385,7 @@ public class GroupElement extends CanvasElement {
 
     public void setClipShape(Shape clipShape) {
         this.clipShape = clipShape;
+        invalidate();
     }
     
     public String getGroupId() {
@@ -149,8 +396,22 @@ public class GroupElement extends CanvasElement {
         this.groupId = groupId;
     }
     
+    private void setChildList(List<CanvasElement> list) {
+        children = list;
+        childView = Collections.unmodifiableList(list);
+    }
+    
+    private void ensureBounds() {
+        if (boundsStale) {
+            boundsStale = false;
+            updateBounds();
+        }
+    }
+    
     private void updateBounds() {
         if (children.isEmpty()) {
+            childBounds = null;
+            childPaintBounds = null;
             return;
         }
         
@@ -159,17 +420,31 @@ public class GroupElement extends CanvasElement {
         int minY = Integer.MAX_VALUE;
         int maxX = Integer.MIN_VALUE;
         int maxY = Integer.MIN_VALUE;
+        Rectangle bounds = null;
+        Rectangle paintBounds = null;
         
         for (CanvasElement child : children) {
-            minX = Math.min(minX, child.getX());
-            minY = Math.min(minY, child.getY());
-            maxX = Math.max(maxX, child.getX() + child.getWidth());
-            maxY = Math.max(maxY, child.getY() + child.getHeight());
+            int childX = child.getX();
+            int childY = child.getY();
+            minX = Math.min(minX, childX);
+            minY = Math.min(minY, childY);
+            maxX = Math.max(maxX, childX + child.getWidth());
+            maxY = Math.max(maxY, childY + child.getHeight());
+            if (bounds == null) {
+                bounds = child.getBounds();
+                paintBounds = child.getPaintBounds();
+            } else {
+                bounds.add(child.getBounds());
+                paintBounds.add(child.getPaintBounds());
+            }
         }
         
-        x = minX;
-        y = minY;
-        width = maxX - minX;
-        height = maxY - minY;
+        Rectangle box = toParentSpace(new Rectangle(minX, minY, maxX - minX, maxY - minY));
+        x = box.x;
+        y = box.y;
+        width = box.width;
+        height = box.height;
+        childBounds = toParentSpace(bounds);
+        childPaintBounds = toParentSpace(paintBounds);
     }
 }
@@ -1,24 +1,71 @@
 package com.figuremaker;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import java.awt.*;
+import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Iterator;
+import java.util.List;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 
 public class ImageElement extends CanvasElement {
+    private static final Color PLACEHOLDER_FILL = new Color(235, 235, 235);
+    private static final String PNG_MIME_TYPE = "image/png";
+    private static final String UNREADABLE_FILE_MESSAGE = "Unable to read image file. The file format may not be supported. For SVG files, please use File > Import SVG instead.";
+    
+    /**
+     * Decoded pixels together with the encoded bytes they were read from.
+     */
+    public static class DecodedImage {
+        private final BufferedImage image;
+        private final byte[] data;
+        private final String mimeType;
+        
+        public DecodedImage(BufferedImage image, byte[] data, String mimeType) {
+            this.image = image;
+            this.data = data;
+            this.mimeType = mimeType;
+        }
+        
+        public BufferedImage getImage() {
+            return image;
+        }
+        
+        public byte[] getData() {
+            return data;
+        }
+        
+        public String getMimeType() {
+            return mimeType;
+        }
+    }
+    
     private BufferedImage image;
     private String imagePath;
+    // Bytes the image was decoded from, saved verbatim
+    private byte[] encodedData;
+    private String mimeType;
+    // Base64 data of an image saved inline that has not been decoded yet,
+    // kept so a placeholder can still be saved
+    private String pendingImageData;
+    private boolean loading;
+    // Power-of-two downsampled copies of image, built lazily; index 0 is half size
+    private List<BufferedImage> mipmaps;
     
     public ImageElement(File imageFile, int x, int y) throws IOException {
         super(x, y, 0, 0);
-        this.image = ImageIO.read(imageFile);
-        if (this.image == null) {
-            throw new IOException("Unable to read image file. The file format may not be supported. For SVG files, please use File > Import SVG instead.");
-        }
+        DecodedImage decoded = readFile(imageFile);
+        this.image = decoded.getImage();
+        this.encodedData = decoded.getData();
+        this.mimeType = decoded.getMimeType();
         this.imagePath = imageFile.getAbsolutePath();
         this.width = image.getWidth();
         this.height = image.getHeight();
@@ -30,25 +77,92 @@ public class ImageElement extends CanvasElement {
         this.imagePath = imagePath;
     }
     
+    /**
+     * Create a placeholder whose pixels will be supplied later via setDecodedImage.
+     */
+    public ImageElement(int x, int y, int width, int height, String imagePath) {
+        super(x, y, width, height);
+        this.imagePath = imagePath;
+    }
+    
+    public static DecodedImage readFile(File imageFile) throws IOException {
+        return decode(Files.readAllBytes(imageFile.toPath()), UNREADABLE_FILE_MESSAGE);
+    }
+    
+    public static DecodedImage decodeBase64(String base64) throws IOException {
+        return decode(Base64.getDecoder().decode(base64), "Unable to decode embedded image data");
+    }
+    
+    private static DecodedImage decode(byte[] data, String errorMessage) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(data))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                throw new IOException(errorMessage);
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                BufferedImage image = reader.read(0);
+                String[] mimeTypes = reader.getOriginatingProvider().getMIMETypes();
+                String mimeType = mimeTypes != null && mimeTypes.length > 0 ? mimeTypes[0] : null;
+                return new DecodedImage(image, data, mimeType);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+    
     @Override
     public void draw(Graphics g) {
-        if (image != null) {
-            g.drawImage(image, x, y, width, height, null);
-            
-            if (selected) {
-                Graphics2D g2d = (Graphics2D) g;
-                g2d.setColor(Color.BLUE);
-                g2d.setStroke(new BasicStroke(2));
-                g2d.drawRect(x, y, width, height);
+        Graphics2D g2d = (Graphics2D) g;
+        
+        if (image == null) {
+            drawPlaceholder(g2d);
+        } else {
+            if (isScreen(g2d)) {
+                // Resample from the pyramid level closest to the on-screen size
+                AffineTransform at = g2d.getTransform();
+                int screenWidth = (int) Math.ceil(width * Math.hypot(at.getScaleX(), at.getShearY()));
+                int screenHeight = (int) Math.ceil(height * Math.hypot(at.getShearX(), at.getScaleY()));
+                BufferedImage level = getLevelFor(screenWidth, screenHeight);
                 
-                // Draw resize handles
-                int handleSize = 6;
-                g2d.fillRect(x - handleSize/2, y - handleSize/2, handleSize, handleSize);
-                g2d.fillRect(x + width - handleSize/2, y - handleSize/2, handleSize, handleSize);
-                g2d.fillRect(x - handleSize/2, y + height - handleSize/2, handleSize, handleSize);
-                g2d.fillRect(x + width - handleSize/2, y + height - handleSize/2, handleSize, handleSize);
+                Object oldInterpolation = g2d.getRenderingHint(RenderingHints.KEY_INTERPOLATION);
+                g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                g2d.drawImage(level, x, y, width, height, null);
+                if (oldInterpolation != null) {
+                    g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, oldInterpolation);
+                }
+            } else {
+                // Printing and exporting always use the full-resolution pixels
+                g2d.drawImage(image, x, y, width, height, null);
             }
         }
+        
+        if (selected) {
+            g2d.setColor(Color.BLUE);
+            g2d.setStroke(GraphicsCache.stroke(2));
+            g2d.drawRect(x, y, width, height);
+            
+            // Draw resize handles
+            int handleSize = 6;
+            g2d.fillRect(x - handleSize/2, y - handleSize/2, handleSize, handleSize);
+            g2d.fillRect(x + width - handleSize/2, y - handleSize/2, handleSize, handleSize);
+            g2d.fillRect(x - handleSize/2, y + height - handleSize/2, handleSize, handleSize);
+            g2d.fillRect(x + width - handleSize/2, y + height - handleSize/2, handleSize, handleSize);
+        }
+    }
+    
+    private void drawPlaceholder(Graphics2D g2d) {
+        g2d.setColor(PLACEHOLDER_FILL);
+        g2d.fillRect(x, y, width, height);
+        g2d.setColor(Color.GRAY);
+        g2d.setStroke(GraphicsCache.stroke(1));
+        g2d.drawRect(x, y, width, height);
+        
+        Shape oldClip = g2d.getClip();
+        g2d.clipRect(x, y, width, height);
+        g2d.drawString(loading ? "Loading image..." : "Image not loaded", x + 5, y + 15);
+        g2d.setClip(oldClip);
     }
     
     @Override
@@ -56,6 +170,14 @@ public class ImageElement extends CanvasElement {
         return "image";
     }
     
+    @Override
+    public CanvasElement copy() {
+        // Pixels and encoded bytes are shared; the pyramid is rebuilt on demand
+        ImageElement copy = (ImageElement) super.copy();
+        copy.mipmaps = null;
+        return copy;
+    }
+    
     public String getImagePath() {
         return imagePath;
     }
@@ -64,15 +186,142 @@ public class ImageElement extends CanvasElement {
         return image;
     }
     
+    /**
+     * Install pixels decoded from the element's own encoded data.
+     */
+    public void setDecodedImage(DecodedImage decoded) {
+        this.image = decoded.getImage();
+        this.encodedData = decoded.getData();
+        this.mimeType = decoded.getMimeType();
+        this.pendingImageData = null;
+        this.mipmaps = null;
+        invalidate();
+    }
+    
+    public void setPendingImageData(String base64, String mimeType) {
+        this.pendingImageData = base64;
+        this.mimeType = mimeType;
+    }
+    
+    public void setPendingImageBytes(byte[] data, String mimeType) {
+        this.encodedData = data;
+        this.mimeType = mimeType;
+    }
+    
+    public boolean hasImageData() {
+        return image != null || pendingImageData != null || encodedData != null;
+    }
+    
+    /** Size of the saved data held, without encoding anything. */
+    long getEncodedLength() {
+        long length = encodedData != null ? encodedData.length : 0;
+        String base64 = pendingImageData;
+        return base64 != null ? length + base64.length() * 2L : length;
+    }
+
+    public boolean hasPendingImage() {
+        return image == null && (pendingImageData != null || encodedData != null);
+    }
+    
+    /**
+     * Decode the saved data of a placeholder. Safe to call off the EDT.
+     */
+    public DecodedImage decodePendingImage() throws IOException {
+        String base64 = pendingImageData;
+        byte[] data = encodedData;
+        if (base64 != null) {
+            return decodeBase64(base64);
+        }
+        if (data == null) {
+            throw new IOException("Image " + imagePath + " has no saved data");
+        }
+        return decode(data, "Unable to decode embedded image data");
+    }
+    
+    public String getMimeType() {
+        // Images created from bare pixels are encoded as PNG when saved
+        return mimeType != null ? mimeType : PNG_MIME_TYPE;
+    }
+    
+    /**
+     * The encoded bytes to save: the bytes the image was read from, or a
+     * PNG encoding (kept for later saves) for images created from pixels.
+     */
+    public byte[] getEncodedData() throws IOException {
+        if (image == null) {
+            if (pendingImageData != null) {
+                return Base64.getDecoder().decode(pendingImageData);
+            }
+            if (encodedData != null) {
+                return encodedData;
+            }
+            throw new IOException("Image " + imagePath + " has not been loaded");
+        }
+        if (encodedData == null) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            ImageIO.write(image, "png", baos);
+            encodedData = baos.toByteArray();
+            mimeType = PNG_MIME_TYPE;
+        }
+        return encodedData;
+    }
+    
+    public boolean isLoading() {
+        return loading;
+    }
+    
+    public void setLoading(boolean loading) {
+        this.loading = loading;
+        invalidate();
+    }
+    
+    private static boolean isScreen(Graphics2D g2d) {
+        GraphicsConfiguration config = g2d.getDeviceConfiguration();
+        return config != null && config.getDevice().getType() == GraphicsDevice.TYPE_RASTER_SCREEN;
+    }
+    
+    /**
+     * Return the smallest pyramid level that is still at least as large as
+     * the requested size, generating levels on first use.
+     */
+    private BufferedImage getLevelFor(int targetWidth, int targetHeight) {
+        BufferedImage level = image;
+        int index = 0;
+        while (level.getWidth() / 2 >= Math.max(1, targetWidth)
+                && level.getHeight() / 2 >= Math.max(1, targetHeight)) {
+            if (mipmaps == null) {
+                mipmaps = new ArrayList<>();
+            }
+            if (index >= mipmaps.size()) {
+                mipmaps.add(downsample(level));
+            }
+            level = mipmaps.get(index++);
+        }
+        return level;
+    }
+    
+    private static BufferedImage downsample(BufferedImage source) {
+        int w = Math.max(1, source.getWidth() / 2);
+        int h = Math.max(1, source.getHeight() / 2);
+        int type = source.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB_PRE : BufferedImage.TYPE_INT_RGB;
+        BufferedImage half = new BufferedImage(w, h, type);
+        Graphics2D g2d = half.createGraphics();
+        // Bilinear sampling at exactly half size averages each 2x2 block
+        g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g2d.drawImage(source, 0, 0, w, h, null);
+        g2d.dispose();
+        return half;
+    }
+    
     public String getImageAsBase64() throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        ImageIO.write(image, "png", baos);
-        return Base64.getEncoder().encodeToString(baos.toByteArray());
+        if (image == null && pendingImageData != null) {
+            return pendingImageData;
+        }
+        return Base64.getEncoder().encodeToString(getEncodedData());
     }
     
     public static BufferedImage decodeBase64Image(String base64) throws IOException {
-        byte[] bytes = Base64.getDecoder().decode(base64);
-        return ImageIO.read(new ByteArrayInputStream(bytes));
+        return decodeBase64(base64).getImage();
     }
     
     // Resize handle positions: 0=top-left, 1=top-right, 2=bottom-left, 3=bottom-right
@@ -0,0 +1,134 @@
+package com.figuremaker;
+
+import javax.swing.*;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decodes images on a pool of background threads so the EDT never waits on
+ * ImageIO. Elements are added to the canvas as placeholders and the decoded
+ * pixels are handed back on the EDT through the Listener. All bookkeeping
+ * and every callback happen on the EDT.
+ */
+public class ImageLoader {
+    public interface Listener {
+        void imageLoaded(ImageElement element, ImageElement.DecodedImage image);
+        void imageFailed(ImageElement element, Exception error);
+        void imageCancelled(ImageElement element);
+    }
+
+    public interface ProgressListener {
+        void progressChanged(int completed, int total);
+    }
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private final ExecutorService executor;
+    private final Listener listener;
+    private final List<ProgressListener> progressListeners = new ArrayList<>();
+    private final Map<ImageElement, Future<?>> pending = new IdentityHashMap<>();
+    private int completed;
+    private int total;
+
+    public ImageLoader(Listener listener) {
+        this(listener, Math.max(2, Runtime.getRuntime().availableProcessors()));
+    }
+
+    public ImageLoader(Listener listener, int workers) {
+        this.listener = listener;
+        this.executor = Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "image-decoder-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        });
+    }
+
+    /**
+     * Queue an image for decoding. Must be called on the EDT.
+     */
+    public void load(ImageElement element, Callable<ImageElement.DecodedImage> decoder) {
+        element.setLoading(true);
+        total++;
+        Future<?> future = executor.submit(() -> {
+            ImageElement.DecodedImage image = null;
+            Exception error = null;
+            try {
+                image = decoder.call();
+            } catch (Exception ex) {
+                error = ex;
+            }
+            ImageElement.DecodedImage result = image;
+            Exception failure = error;
+            SwingUtilities.invokeLater(() -> finish(element, result, failure));
+        });
+        pending.put(element, future);
+        fireProgress();
+    }
+
+    /**
+     * Abandon every queued or running decode. Placeholders stay on the canvas
+     * and the listener decides what to do with them.
+     */
+    public void cancelAll() {
+        if (pending.isEmpty()) return;
+
+        List<ImageElement> cancelled = new ArrayList<>(pending.keySet());
+        for (Future<?> future : pending.values()) {
+            future.cancel(true);
+        }
+        pending.clear();
+        completed = 0;
+        total = 0;
+
+        for (ImageElement element : cancelled) {
+            element.setLoading(false);
+            listener.imageCancelled(element);
+        }
+        fireProgress();
+    }
+
+    public boolean isBusy() {
+        return !pending.isEmpty();
+    }
+
+    public void addProgressListener(ProgressListener progressListener) {
+        progressListeners.add(progressListener);
+    }
+
+    public void removeProgressListener(ProgressListener progressListener) {
+        progressListeners.remove(progressListener);
+    }
+
+    private void finish(ImageElement element, ImageElement.DecodedImage image, Exception error) {
+        // A result that arrives after cancellation is simply dropped
+        if (pending.remove(element) == null) return;
+
+        completed++;
+        element.setLoading(false);
+        if (error == null && image != null) {
+            listener.imageLoaded(element, image);
+        } else {
+            listener.imageFailed(element, error != null ? error : new java.io.IOException("Unable to decode image"));
+        }
+
+        fireProgress();
+        if (pending.isEmpty()) {
+            completed = 0;
+            total = 0;
+        }
+    }
+
+    private void fireProgress() {
+        for (ProgressListener progressListener : new ArrayList<>(progressListeners)) {
+            progressListener.progressChanged(completed, total);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.figuremaker;
+
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Path2D;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One placement of a shared SymbolDefinition, as imported from an SVG
+ * <use>. The element holds only its position; geometry and style live in
+ * the definition.
+ */
+public class InstanceElement extends CanvasElement {
+    private final SymbolDefinition definition;
+    // Sub-pixel part of where the definition's (0, 0) sits, from 0 up to 1
+    private final float offsetX;
+    private final float offsetY;
+
+    public InstanceElement(int x, int y, int width, int height, SymbolDefinition definition,
+                           float offsetX, float offsetY) {
+        super(x, y, width, height);
+        this.definition = definition;
+        this.offsetX = offsetX;
+        this.offsetY = offsetY;
+    }
+
+    /** Place a definition with its (0, 0) at the given canvas point. */
+    static InstanceElement place(SymbolDefinition definition, double originX, double originY) {
+        int x = (int) Math.floor(originX);
+        int y = (int) Math.floor(originY);
+        float offsetX = (float) (originX - x);
+        float offsetY = (float) (originY - y);
+        return new InstanceElement(x, y,
+            (int) Math.ceil(offsetX + definition.getWidth()), (int) Math.ceil(offsetY + definition.getHeight()),
+            definition, offsetX, offsetY);
+    }
+
+    @Override
+    public void draw(Graphics g) {
+        Graphics2D g2d = (Graphics2D) g;
+        g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+
+        AffineTransform oldTransform = g2d.getTransform();
+        g2d.translate(x + offsetX, y + offsetY);
+        for (SymbolDefinition.Part part : definition.getParts()) {
+            part.draw(g2d);
+        }
+        g2d.setTransform(oldTransform);
+
+        if (selected) {
+            g2d.setColor(Color.BLUE);
+            g2d.setStroke(GraphicsCache.SELECTION_STROKE);
+            g2d.drawRect(x - 2, y - 2, width + 4, height + 4);
+        }
+    }
+
+    @Override
+    public Rectangle getPaintBounds() {
+        Rectangle bounds = super.getPaintBounds();
+        if (definition.getMaxStrokeWidth() > 0) {
+            // Allow for joins poking out past half the stroke width
+            int extent = (int) Math.ceil(definition.getMaxStrokeWidth());
+            bounds.grow(extent, extent);
+        }
+        return bounds;
+    }
+
+    /** Standalone PathElements for the definition's shapes, placed as drawn now. */
+    public List<PathElement> toPaths() {
+        List<PathElement> paths = new ArrayList<>(definition.getParts().size());
+        AffineTransform at = AffineTransform.getTranslateInstance(x + offsetX, y + offsetY);
+        for (SymbolDefinition.Part part : definition.getParts()) {
+            Path2D.Double path = new Path2D.Double(part.getShape(), at);
+            // Rebase on the shape's own bounds, as the importer does
+            Rectangle bounds = path.getBounds();
+            path.transform(AffineTransform.getTranslateInstance(-bounds.x, -bounds.y));
+            paths.add(new PathElement(path, bounds.x, bounds.y, bounds.width, bounds.height,
+                part.getFillColor(), part.getStrokeColor(), part.getStrokeWidth()));
+        }
+        return paths;
+    }
+
+    @Override
+    public String getType() {
+        return "instance";
+    }
+
+    public SymbolDefinition getDefinition() {
+        return definition;
+    }
+
+    public float getOffsetX() {
+        return offsetX;
+    }
+
+    public float getOffsetY() {
+        return offsetY;
+    }
+}
@@ -4,9 +4,14 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 
 public class MainWindow extends JFrame {
     private FigureCanvas canvas;
+    private SwingWorker<Void, Void> saveWorker;
+    private JLabel saveStatus;
+    private JCheckBoxMenuItem mergeShapesItem;
     
     public MainWindow() {
         setTitle("Figure Maker");
@@ -15,6 +20,15 @@ public class MainWindow extends JFrame {
         setLocationRelativeTo(null);
         
         initializeUI();
+        
+        // A clean exit drops the crash journal; anything else leaves it for recovery
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                canvas.getEditJournal().discard();
+            }
+        });
+        SwingUtilities.invokeLater(this::offerRecovery);
     }
     
     private void initializeUI() {
@@ -38,31 +52,77 @@ public class MainWindow extends JFrame {
         JMenuItem importSVGItem = new JMenuItem("Import SVG");
         importSVGItem.addActionListener(e -> importSVG());
         
+        mergeShapesItem = new JCheckBoxMenuItem("Merge Same-Style Shapes on Import");
+        
         JMenuItem exitItem = new JMenuItem("Exit");
-        exitItem.addActionListener(e -> System.exit(0));
+        exitItem.addActionListener(e -> {
+            canvas.getEditJournal().discard();
+            System.exit(0);
+        });
         
         fileMenu.add(newCanvasItem);
         fileMenu.add(openCanvasItem);
         fileMenu.add(saveCanvasItem);
         fileMenu.addSeparator();
         fileMenu.add(importSVGItem);
+        fileMenu.add(mergeShapesItem);
         fileMenu.addSeparator();
         fileMenu.add(exitItem);
         
         // Edit menu
         JMenu editMenu = new JMenu("Edit");
         
+        int shortcutMask = Toolkit.getDefaultToolkit().getMenuShortcutKeyMaskEx();
+        JMenuItem undoItem = new JMenuItem("Undo");
+        undoItem.addActionListener(e -> canvas.undo());
+        undoItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Z, shortcutMask));
+        
+        JMenuItem redoItem = new JMenuItem("Redo");
+        redoItem.addActionListener(e -> canvas.redo());
+        redoItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Z, shortcutMask | InputEvent.SHIFT_DOWN_MASK));
+        
+        // Name the steps when the menu opens; the items stay enabled so the
+        // shortcuts work without it
+        editMenu.addMenuListener(new javax.swing.event.MenuListener() {
+            @Override
+            public void menuSelected(javax.swing.event.MenuEvent e) {
+                UndoHistory history = canvas.getUndoHistory();
+                undoItem.setText(history.canUndo() ? history.getUndoPresentationName() : "Undo");
+                redoItem.setText(history.canRedo() ? history.getRedoPresentationName() : "Redo");
+            }
+            
+            @Override
+            public void menuDeselected(javax.swing.event.MenuEvent e) {
+            }
+            
+            @Override
+            public void menuCanceled(javax.swing.event.MenuEvent e) {
+            }
+        });
+        
         JMenuItem addImageItem = new JMenuItem("Add Image");
         addImageItem.addActionListener(e -> addImage());
         
         JMenuItem addTextBoxItem = new JMenuItem("Add Text Box");
         addTextBoxItem.addActionListener(e -> addTextBox());
         
+        editMenu.add(undoItem);
+        editMenu.add(redoItem);
+        editMenu.addSeparator();
         editMenu.add(addImageItem);
         editMenu.add(addTextBoxItem);
         
+        // View menu
+        JMenu viewMenu = new JMenu("View");
+        
+        JCheckBoxMenuItem rasterCacheItem = new JCheckBoxMenuItem("Cache Complex Shapes");
+        rasterCacheItem.addActionListener(e -> canvas.setRasterCacheEnabled(rasterCacheItem.isSelected()));
+        
+        viewMenu.add(rasterCacheItem);
+        
         menuBar.add(fileMenu);
         menuBar.add(editMenu);
+        menuBar.add(viewMenu);
         setJMenuBar(menuBar);
         
         // Create canvas
@@ -88,9 +148,72 @@ public class MainWindow extends JFrame {
         toolbar.add(addImageBtn);
         toolbar.add(addTextBtn);
         
+        // Progress of background image decoding, hidden while idle
+        JProgressBar imageProgress = new JProgressBar();
+        imageProgress.setStringPainted(true);
+        imageProgress.setVisible(false);
+        
+        JButton cancelLoadingBtn = new JButton("Cancel Loading");
+        cancelLoadingBtn.addActionListener(e -> canvas.getImageLoader().cancelAll());
+        cancelLoadingBtn.setVisible(false);
+        
+        canvas.getImageLoader().addProgressListener((completed, total) -> {
+            boolean busy = total > 0 && completed < total;
+            imageProgress.setMaximum(Math.max(1, total));
+            imageProgress.setValue(completed);
+            imageProgress.setString("Loading images " + completed + "/" + total);
+            imageProgress.setVisible(busy);
+            cancelLoadingBtn.setVisible(busy);
+            toolbar.revalidate();
+        });
+        
+        toolbar.add(imageProgress);
+        toolbar.add(cancelLoadingBtn);
+        
+        saveStatus = new JLabel("Saving...");
+        saveStatus.setVisible(false);
+        toolbar.add(saveStatus);
+        
+        // Shown while the crash journal cannot be written
+        JLabel journalStatus = new JLabel("Autosave is off");
+        journalStatus.setForeground(Color.RED);
+        journalStatus.setToolTipText("Unsaved changes would not survive a crash. Save to keep your work.");
+        journalStatus.setVisible(false);
+        canvas.getEditJournal().addStatusListener(working -> {
+            journalStatus.setVisible(!working);
+            toolbar.revalidate();
+        });
+        toolbar.add(journalStatus);
+        
         return toolbar;
     }
     
+    private void offerRecovery() {
+        EditJournal journal = canvas.getEditJournal();
+        EditJournal.Recovery recovery = journal.findRecovery();
+        if (recovery != null) {
+            String base = recovery.getBase() != null ? recovery.getBase().getName() : "an unsaved canvas";
+            int result = JOptionPane.showConfirmDialog(this,
+                "Figure Maker did not shut down cleanly. Recover unsaved changes to " + base + "?",
+                "Recover Changes", JOptionPane.YES_NO_OPTION);
+            if (result == JOptionPane.YES_OPTION) {
+                try {
+                    canvas.recover(recovery);
+                    return;
+                } catch (Exception ex) {
+                    // Keep the journal so the next start can offer it again
+                    recovery.release();
+                    JOptionPane.showMessageDialog(this,
+                        "Error recovering changes: " + ex.getMessage(),
+                        "Error", JOptionPane.ERROR_MESSAGE);
+                }
+            } else {
+                recovery.discard();
+            }
+        }
+        journal.start(null);
+    }
+    
     private void newCanvas() {
         int result = JOptionPane.showConfirmDialog(this, 
             "Create a new canvas? Any unsaved changes will be lost.",
@@ -121,6 +244,11 @@ public class MainWindow extends JFrame {
     }
     
     private void saveCanvas() {
+        if (saveWorker != null) {
+            JOptionPane.showMessageDialog(this, "The canvas is still being saved. Please wait.");
+            return;
+        }
+        
         JFileChooser fileChooser = new JFileChooser();
         fileChooser.setFileFilter(new javax.swing.filechooser.FileNameExtensionFilter(
             "Figure Maker Files (*.fmk)", "fmk"));
@@ -132,14 +260,36 @@ public class MainWindow extends JFrame {
                 file = new File(file.getAbsolutePath() + ".fmk");
             }
             
-            try {
-                canvas.saveToFile(file);
-                JOptionPane.showMessageDialog(this, "Canvas saved successfully!");
-            } catch (Exception ex) {
-                JOptionPane.showMessageDialog(this, 
-                    "Error saving canvas: " + ex.getMessage(),
-                    "Error", JOptionPane.ERROR_MESSAGE);
-            }
+            // Serialize a snapshot on a worker so editing can carry on
+            List<CanvasElement> snapshot = canvas.createSnapshot();
+            EditJournal.Mark journalMark = canvas.getEditJournal().mark();
+            File target = file;
+            saveWorker = new SwingWorker<Void, Void>() {
+                @Override
+                protected Void doInBackground() throws Exception {
+                    FigureFile.save(snapshot, target);
+                    return null;
+                }
+                
+                @Override
+                protected void done() {
+                    saveWorker = null;
+                    saveStatus.setVisible(false);
+                    try {
+                        get();
+                        // Edits made during the save now apply on top of the saved file
+                        canvas.getEditJournal().rebase(journalMark, target);
+                        JOptionPane.showMessageDialog(MainWindow.this, "Canvas saved successfully!");
+                    } catch (Exception ex) {
+                        Throwable cause = ex instanceof ExecutionException ? ex.getCause() : ex;
+                        JOptionPane.showMessageDialog(MainWindow.this, 
+                            "Error saving canvas: " + cause.getMessage(),
+                            "Error", JOptionPane.ERROR_MESSAGE);
+                    }
+                }
+            };
+            saveStatus.setVisible(true);
+            saveWorker.execute();
         }
     }
     
@@ -168,7 +318,7 @@ public class MainWindow extends JFrame {
         if (result == JFileChooser.APPROVE_OPTION) {
             File file = fileChooser.getSelectedFile();
             try {
-                canvas.importSVG(file);
+                canvas.importSVG(file, mergeShapesItem.isSelected());
                 JOptionPane.showMessageDialog(this, "SVG imported successfully!");
             } catch (Exception ex) {
                 JOptionPane.showMessageDialog(this, 
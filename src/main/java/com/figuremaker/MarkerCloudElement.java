@@ -0,0 +1,277 @@
+package com.figuremaker;
+
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Many copies of one marker shape in one style, as in a scatter plot. The
+ * marker positions are kept as x,y pairs in a single float array, relative
+ * to the element origin; each is where the marker's own (0, 0) goes.
+ *
+ * On screen and in image exports every marker is stamped from a sprite of
+ * the marker rendered once for the current scale, at quarter-pixel offsets
+ * so stamps stay within an eighth of a pixel of their true place. Printers
+ * and rotated or sheared views draw the vector shape at each point instead.
+ */
+public class MarkerCloudElement extends CanvasElement {
+    // Sprites per axis for sub-pixel placement
+    private static final int PHASES = 4;
+    private static final int MAX_SPRITE_DIMENSION = 512;
+
+    private final Path2D.Double marker;
+    private final float[] points;
+    private final Color fillColor;
+    private final Color strokeColor;
+    private final float strokeWidth;
+
+    // Sprites for the last scale drawn at, built lazily
+    private BufferedImage[] sprites;
+    private double spriteScaleX;
+    private double spriteScaleY;
+    private int spritePad;
+    private int spriteWidth;
+    private int spriteHeight;
+    private Object spriteStrokeControl;
+
+    public MarkerCloudElement(int x, int y, int width, int height, Path2D.Double marker, float[] points,
+                              Color fillColor, Color strokeColor, float strokeWidth) {
+        super(x, y, width, height);
+        this.marker = marker;
+        this.points = points;
+        this.fillColor = fillColor;
+        this.strokeColor = strokeColor;
+        this.strokeWidth = strokeWidth;
+    }
+
+    @Override
+    public void draw(Graphics g) {
+        Graphics2D g2d = (Graphics2D) g;
+        g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+
+        if (!drawStamped(g2d)) {
+            AffineTransform oldTransform = g2d.getTransform();
+            for (int i = 0; i < points.length; i += 2) {
+                g2d.setTransform(oldTransform);
+                g2d.translate(x + points[i], y + points[i + 1]);
+                if (fillColor != null) {
+                    g2d.setColor(fillColor);
+                    g2d.fill(marker);
+                }
+                if (strokeColor != null && strokeWidth > 0) {
+                    g2d.setColor(strokeColor);
+                    g2d.setStroke(GraphicsCache.stroke(strokeWidth));
+                    g2d.draw(marker);
+                }
+            }
+            g2d.setTransform(oldTransform);
+        }
+
+        if (selected) {
+            g2d.setColor(Color.BLUE);
+            g2d.setStroke(GraphicsCache.SELECTION_STROKE);
+            g2d.drawRect(x - 2, y - 2, width + 4, height + 4);
+        }
+    }
+
+    /**
+     * Stamp every marker from its sprite in device space. Returns false if
+     * the current device or transform needs vector drawing.
+     */
+    private boolean drawStamped(Graphics2D g2d) {
+        GraphicsConfiguration config = g2d.getDeviceConfiguration();
+        if (config != null && config.getDevice().getType() == GraphicsDevice.TYPE_PRINTER) {
+            return false;
+        }
+        AffineTransform at = g2d.getTransform();
+        if ((at.getType() & ~(AffineTransform.TYPE_TRANSLATION | AffineTransform.TYPE_MASK_SCALE)) != 0) {
+            return false;
+        }
+        double scaleX = at.getScaleX();
+        double scaleY = at.getScaleY();
+        if (scaleX <= 0 || scaleY <= 0) {
+            return false;
+        }
+        // Sprites follow the view's stroke control, as vector drawing would
+        Object strokeControl = g2d.getRenderingHint(RenderingHints.KEY_STROKE_CONTROL);
+        if (sprites == null || spriteScaleX != scaleX || spriteScaleY != scaleY
+                || !java.util.Objects.equals(spriteStrokeControl, strokeControl)) {
+            if (!prepareSprites(scaleX, scaleY, strokeControl)) {
+                return false;
+            }
+        }
+
+        g2d.setTransform(new AffineTransform());
+        try {
+            // Skip stamps that fall wholly outside the clip
+            Rectangle clip = g2d.getClipBounds();
+            double originX = at.getTranslateX() + x * scaleX;
+            double originY = at.getTranslateY() + y * scaleY;
+            for (int i = 0; i < points.length; i += 2) {
+                double deviceX = originX + points[i] * scaleX;
+                double deviceY = originY + points[i + 1] * scaleY;
+                int pixelX = (int) Math.floor(deviceX);
+                int pixelY = (int) Math.floor(deviceY);
+                int phaseX = (int) Math.round((deviceX - pixelX) * PHASES);
+                int phaseY = (int) Math.round((deviceY - pixelY) * PHASES);
+                if (phaseX == PHASES) {
+                    pixelX++;
+                    phaseX = 0;
+                }
+                if (phaseY == PHASES) {
+                    pixelY++;
+                    phaseY = 0;
+                }
+                int left = pixelX - spritePad;
+                int top = pixelY - spritePad;
+                if (clip != null && (left >= clip.x + clip.width || top >= clip.y + clip.height
+                        || left + spriteWidth <= clip.x || top + spriteHeight <= clip.y)) {
+                    continue;
+                }
+                g2d.drawImage(sprite(phaseX, phaseY), left, top, null);
+            }
+        } finally {
+            g2d.setTransform(at);
+        }
+        return true;
+    }
+
+    private boolean prepareSprites(double scaleX, double scaleY, Object strokeControl) {
+        java.awt.geom.Rectangle2D shape = marker.getBounds2D();
+        double stroke = strokeColor != null && strokeWidth > 0 ? strokeWidth : 0;
+        int pad = (int) Math.ceil(stroke * Math.max(scaleX, scaleY)) + 1;
+        int width = (int) Math.ceil(shape.getMaxX() * scaleX) + 2 * pad + 1;
+        int height = (int) Math.ceil(shape.getMaxY() * scaleY) + 2 * pad + 1;
+        if (width > MAX_SPRITE_DIMENSION || height > MAX_SPRITE_DIMENSION) {
+            return false;
+        }
+        sprites = new BufferedImage[PHASES * PHASES];
+        spriteScaleX = scaleX;
+        spriteScaleY = scaleY;
+        spritePad = pad;
+        spriteWidth = width;
+        spriteHeight = height;
+        spriteStrokeControl = strokeControl;
+        return true;
+    }
+
+    private BufferedImage sprite(int phaseX, int phaseY) {
+        int index = phaseY * PHASES + phaseX;
+        BufferedImage sprite = sprites[index];
+        if (sprite == null) {
+            sprite = new BufferedImage(spriteWidth, spriteHeight, BufferedImage.TYPE_INT_ARGB_PRE);
+            Graphics2D sg = sprite.createGraphics();
+            try {
+                sg.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+                if (spriteStrokeControl != null) {
+                    sg.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, spriteStrokeControl);
+                }
+                sg.translate(spritePad + (double) phaseX / PHASES, spritePad + (double) phaseY / PHASES);
+                sg.scale(spriteScaleX, spriteScaleY);
+                if (fillColor != null) {
+                    sg.setColor(fillColor);
+                    sg.fill(marker);
+                }
+                if (strokeColor != null && strokeWidth > 0) {
+                    sg.setColor(strokeColor);
+                    sg.setStroke(GraphicsCache.stroke(strokeWidth));
+                    sg.draw(marker);
+                }
+            } finally {
+                sg.dispose();
+            }
+            sprites[index] = sprite;
+        }
+        return sprite;
+    }
+
+    @Override
+    public boolean contains(int px, int py) {
+        return pointAt(px, py) >= 0;
+    }
+
+    /**
+     * Index of the topmost marker whose shape (or stroke) covers the canvas
+     * point, or -1 if none does.
+     */
+    public int pointAt(int px, int py) {
+        if (!super.contains(px, py)) {
+            return -1;
+        }
+        java.awt.geom.Rectangle2D shape = marker.getBounds2D();
+        // A little slack so thin or tiny markers stay clickable
+        double slack = Math.max(1, strokeColor != null && strokeWidth > 0 ? strokeWidth / 2 : 0);
+        double localX = px - x;
+        double localY = py - y;
+        for (int i = points.length - 2; i >= 0; i -= 2) {
+            double mx = localX - points[i];
+            double my = localY - points[i + 1];
+            if (mx >= shape.getMinX() - slack && mx <= shape.getMaxX() + slack
+                    && my >= shape.getMinY() - slack && my <= shape.getMaxY() + slack
+                    && marker.intersects(mx - slack, my - slack, slack * 2, slack * 2)) {
+                return i / 2;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public Rectangle getPaintBounds() {
+        Rectangle bounds = super.getPaintBounds();
+        if (strokeColor != null && strokeWidth > 0) {
+            // Allow for joins poking out past half the stroke width
+            int extent = (int) Math.ceil(strokeWidth);
+            bounds.grow(extent, extent);
+        }
+        return bounds;
+    }
+
+    /** One PathElement per marker, each placed where it is drawn now. */
+    public List<PathElement> splitMarkers() {
+        List<PathElement> markers = new ArrayList<>(points.length / 2);
+        for (int i = 0; i < points.length; i += 2) {
+            double mx = x + points[i];
+            double my = y + points[i + 1];
+            Path2D.Double path = new Path2D.Double(marker, AffineTransform.getTranslateInstance(mx, my));
+            // Rebase on the marker's own bounds, as the importer does
+            Rectangle bounds = path.getBounds();
+            path.transform(AffineTransform.getTranslateInstance(-bounds.x, -bounds.y));
+            markers.add(new PathElement(path, bounds.x, bounds.y, bounds.width, bounds.height,
+                fillColor, strokeColor, strokeWidth));
+        }
+        return markers;
+    }
+
+    @Override
+    public String getType() {
+        return "marker-cloud";
+    }
+
+    public Path2D.Double getMarker() {
+        return marker;
+    }
+
+    /** Marker positions as x,y pairs relative to the element origin. */
+    public float[] getPoints() {
+        return points;
+    }
+
+    public int getPointCount() {
+        return points.length / 2;
+    }
+
+    public Color getFillColor() {
+        return fillColor;
+    }
+
+    public Color getStrokeColor() {
+        return strokeColor;
+    }
+
+    public float getStrokeWidth() {
+        return strokeWidth;
+    }
+}
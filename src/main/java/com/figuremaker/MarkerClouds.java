@@ -0,0 +1,213 @@
+package com.figuremaker;
+
+import java.awt.Color;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Path2D;
+import java.awt.geom.PathIterator;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Import pass that turns long runs of adjacent, identical markers (circles,
+ * paths with the same outline and style at different places, or instances
+ * of one single-shape symbol) into one MarkerCloudElement. Markers are drawn
+ * in their original order, so overlapping markers still stack as they did.
+ */
+final class MarkerClouds {
+    // Shorter runs are left as separate elements
+    private static final int MIN_MARKERS = 32;
+    // Outlines matching to within this many units count as the same marker
+    private static final double TOLERANCE = 0.01;
+
+    private MarkerClouds() {
+    }
+
+    /** Replace marker runs at every level of the tree, in place. */
+    static void detect(List<CanvasElement> elements) {
+        List<CanvasElement> replaced = detectSiblings(elements);
+        if (replaced != elements) {
+            elements.clear();
+            elements.addAll(replaced);
+        }
+    }
+
+    private static List<CanvasElement> detectSiblings(List<CanvasElement> siblings) {
+        List<CanvasElement> result = new ArrayList<>(siblings.size());
+        List<Marker> run = new ArrayList<>();
+        boolean changed = false;
+
+        for (CanvasElement element : siblings) {
+            if (element instanceof GroupElement) {
+                GroupElement group = (GroupElement) element;
+                List<CanvasElement> children = group.getChildren();
+                List<CanvasElement> replacedChildren = detectSiblings(children);
+                if (replacedChildren != children) {
+                    group.replaceChildren(replacedChildren);
+                }
+            }
+
+            Marker marker = Marker.of(element);
+            if (marker == null || (!run.isEmpty() && !marker.sameAs(run.get(0)))) {
+                changed |= flush(run, result);
+            }
+            if (marker != null) {
+                run.add(marker);
+            } else {
+                result.add(element);
+            }
+        }
+        changed |= flush(run, result);
+        return changed ? result : siblings;
+    }
+
+    /** Move the run into result, as a cloud if it is long enough. */
+    private static boolean flush(List<Marker> run, List<CanvasElement> result) {
+        boolean cloud = run.size() >= MIN_MARKERS;
+        if (cloud) {
+            result.add(createCloud(run));
+        } else {
+            for (Marker marker : run) {
+                result.add(marker.element);
+            }
+        }
+        run.clear();
+        return cloud;
+    }
+
+    private static MarkerCloudElement createCloud(List<Marker> run) {
+        Marker first = run.get(0);
+        double minX = Double.MAX_VALUE;
+        double minY = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE;
+        double maxY = -Double.MAX_VALUE;
+        for (Marker marker : run) {
+            minX = Math.min(minX, marker.x);
+            minY = Math.min(minY, marker.y);
+            maxX = Math.max(maxX, marker.x);
+            maxY = Math.max(maxY, marker.y);
+        }
+        Rectangle2D shape = first.shape.getBounds2D();
+        int x = (int) Math.floor(minX);
+        int y = (int) Math.floor(minY);
+        int width = (int) Math.ceil(maxX + shape.getMaxX()) - x;
+        int height = (int) Math.ceil(maxY + shape.getMaxY()) - y;
+
+        float[] points = new float[run.size() * 2];
+        for (int i = 0; i < run.size(); i++) {
+            points[i * 2] = (float) (run.get(i).x - x);
+            points[i * 2 + 1] = (float) (run.get(i).y - y);
+        }
+        return new MarkerCloudElement(x, y, width, height, first.shape, points,
+            first.fillColor, first.strokeColor, first.strokeWidth);
+    }
+
+    /** One candidate marker: its outline moved to (0, 0), and where it sits. */
+    private static final class Marker {
+        private final CanvasElement element;
+        private final Path2D.Double shape;
+        private double[] coords;
+        private final double x;
+        private final double y;
+        private final Color fillColor;
+        private final Color strokeColor;
+        private final float strokeWidth;
+
+        private Marker(CanvasElement element, Path2D.Double shape, double x, double y,
+                       Color fillColor, Color strokeColor, float strokeWidth) {
+            this.element = element;
+            this.shape = shape;
+            this.x = x;
+            this.y = y;
+            this.fillColor = fillColor;
+            this.strokeColor = strokeColor;
+            this.strokeWidth = strokeWidth;
+        }
+
+        static Marker of(CanvasElement element) {
+            if (element instanceof CircleElement) {
+                CircleElement circle = (CircleElement) element;
+                if (circle.getWidth() <= 0 || circle.getHeight() <= 0) return null;
+                Path2D.Double shape = new Path2D.Double(
+                    new Ellipse2D.Double(0, 0, circle.getWidth(), circle.getHeight()));
+                return new Marker(element, shape, circle.getX(), circle.getY(),
+                    circle.getFillColor(), circle.getStrokeColor(), circle.getStrokeWidth());
+            }
+            if (element instanceof PathElement) {
+                PathElement path = (PathElement) element;
+                if (path.isCompound()) return null;
+                Rectangle2D bounds = path.getPath().getBounds2D();
+                if (bounds.isEmpty()) return null;
+                Path2D.Double shape = new Path2D.Double(path.getPath(),
+                    AffineTransform.getTranslateInstance(-bounds.getX(), -bounds.getY()));
+                return new Marker(element, shape, path.getX() + bounds.getX(), path.getY() + bounds.getY(),
+                    path.getFillColor(), path.getStrokeColor(), path.getStrokeWidth());
+            }
+            if (element instanceof InstanceElement) {
+                InstanceElement instance = (InstanceElement) element;
+                List<SymbolDefinition.Part> parts = instance.getDefinition().getParts();
+                if (parts.size() != 1) return null;
+                // A single part already starts at (0, 0), so its shape is shared as is
+                SymbolDefinition.Part part = parts.get(0);
+                return new Marker(element, part.getShape(),
+                    instance.getX() + instance.getOffsetX(), instance.getY() + instance.getOffsetY(),
+                    part.getFillColor(), part.getStrokeColor(), part.getStrokeWidth());
+            }
+            return null;
+        }
+
+        boolean sameAs(Marker other) {
+            if (!Objects.equals(fillColor, other.fillColor) || !Objects.equals(strokeColor, other.strokeColor)
+                    || Float.compare(strokeWidth, other.strokeWidth) != 0) {
+                return false;
+            }
+            if (shape == other.shape) {
+                return true;
+            }
+            double[] outline = outline();
+            double[] otherOutline = other.outline();
+            if (shape.getWindingRule() != other.shape.getWindingRule() || outline.length != otherOutline.length) {
+                return false;
+            }
+            for (int i = 0; i < outline.length; i++) {
+                if (Math.abs(outline[i] - otherOutline[i]) > TOLERANCE) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private double[] outline() {
+            if (coords == null) {
+                coords = outline(shape);
+            }
+            return coords;
+        }
+
+        /**
+         * The outline as comparable numbers: each segment type followed by
+         * its coordinates.
+         */
+        private static double[] outline(Path2D.Double shape) {
+            double[] out = new double[16];
+            int size = 0;
+            double[] c = new double[6];
+            for (PathIterator pi = shape.getPathIterator(null); !pi.isDone(); pi.next()) {
+                int type = pi.currentSegment(c);
+                int count = type == PathIterator.SEG_CLOSE ? 0 : type == PathIterator.SEG_QUADTO ? 4
+                    : type == PathIterator.SEG_CUBICTO ? 6 : 2;
+                if (size + 1 + count > out.length) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+                // Segment types differ by at least 1, far beyond the tolerance
+                out[size++] = type;
+                System.arraycopy(c, 0, out, size, count);
+                size += count;
+            }
+            return Arrays.copyOf(out, size);
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package com.figuremaker;
+
+import java.awt.geom.Path2D;
+import java.awt.geom.PathIterator;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Compact binary encoding of path geometry for figure files.
+ *
+ * Layout: one header byte (low nibble = decimal places kept, or 15 for full
+ * doubles; bit 4 = even-odd winding), the segment count as a varint, one
+ * PathIterator segment type byte per segment, then the coordinates. Quantized
+ * coordinates are written as zigzag varints of the difference from the
+ * previous x or y, so neighbouring points usually take one or two bytes;
+ * full precision coordinates are written as raw doubles.
+ */
+final class PathCodec {
+    private static final int FULL = 15;
+    private static final int EVEN_ODD = 0x10;
+    private static final int MAX_PRECISION = 9;
+    private static final int[] COORDS_PER_SEGMENT = {2, 2, 4, 6, 0};
+
+    private PathCodec() {
+    }
+
+    /**
+     * Append the encoding of a path. Precision is the number of decimal places
+     * kept, or FigureFile.FULL_PATH_PRECISION to keep every bit.
+     */
+    static void encode(Path2D.Double path, int precision, ByteArrayOutputStream out) {
+        if (precision != FigureFile.FULL_PATH_PRECISION && (precision < 0 || precision > MAX_PRECISION)) {
+            throw new IllegalArgumentException("Path precision must be 0-" + MAX_PRECISION + ": " + precision);
+        }
+        int segments = 0;
+        int coordinates = 0;
+        for (PathIterator pi = path.getPathIterator(null); !pi.isDone(); pi.next()) {
+            segments++;
+        }
+
+        byte[] types = new byte[segments];
+        double[] coords = new double[segments * 6];
+        double[] segment = new double[6];
+        int index = 0;
+        for (PathIterator pi = path.getPathIterator(null); !pi.isDone(); pi.next()) {
+            int type = pi.currentSegment(segment);
+            types[index++] = (byte) type;
+            int count = COORDS_PER_SEGMENT[type];
+            System.arraycopy(segment, 0, coords, coordinates, count);
+            coordinates += count;
+        }
+
+        boolean full = precision == FigureFile.FULL_PATH_PRECISION;
+        byte[] buffer = new byte[1 + 5 + segments + coordinates * (full ? 8 : 10)];
+        int pos = 0;
+        buffer[pos++] = (byte) ((full ? FULL : precision)
+            | (path.getWindingRule() == Path2D.WIND_EVEN_ODD ? EVEN_ODD : 0));
+        pos = writeVarint(buffer, pos, segments);
+        System.arraycopy(types, 0, buffer, pos, segments);
+        pos += segments;
+
+        if (full) {
+            for (int i = 0; i < coordinates; i++) {
+                long bits = Double.doubleToRawLongBits(coords[i]);
+                for (int shift = 56; shift >= 0; shift -= 8) {
+                    buffer[pos++] = (byte) (bits >>> shift);
+                }
+            }
+        } else {
+            double scale = Math.pow(10, precision);
+            long previousX = 0;
+            long previousY = 0;
+            for (int i = 0; i < coordinates; i += 2) {
+                long x = Math.round(coords[i] * scale);
+                long y = Math.round(coords[i + 1] * scale);
+                pos = writeVarint(buffer, pos, zigzag(x - previousX));
+                pos = writeVarint(buffer, pos, zigzag(y - previousY));
+                previousX = x;
+                previousY = y;
+            }
+        }
+        out.write(buffer, 0, pos);
+    }
+
+    /**
+     * Rebuild a path from its encoding at the given offset. The Path2D is
+     * sized up front, so its arrays are filled without regrowing.
+     */
+    static Path2D.Double decode(byte[] data, int offset) throws IOException {
+        try {
+            Input in = new Input(data, offset);
+            int header = in.readByte();
+            int precision = header & 0x0f;
+            if (precision > MAX_PRECISION && precision != FULL) {
+                throw new IOException("Unknown path precision " + precision);
+            }
+            int windingRule = (header & EVEN_ODD) != 0 ? Path2D.WIND_EVEN_ODD : Path2D.WIND_NON_ZERO;
+            long segments = in.readVarint();
+            if (segments < 0 || segments > data.length - in.pos) {
+                throw new IOException("Damaged path geometry");
+            }
+            int typesStart = in.pos;
+            in.pos += (int) segments;
+
+            int coordinates = 0;
+            for (int i = 0; i < segments; i++) {
+                int type = data[typesStart + i];
+                if (type < 0 || type >= COORDS_PER_SEGMENT.length) {
+                    throw new IOException("Damaged path geometry");
+                }
+                coordinates += COORDS_PER_SEGMENT[type];
+            }
+
+            Path2D.Double path = new Path2D.Double(windingRule, Math.max((int) segments, coordinates / 2));
+            double[] c = new double[6];
+            boolean full = precision == FULL;
+            double scale = full ? 1 : Math.pow(10, precision);
+            long x = 0;
+            long y = 0;
+            for (int i = 0; i < segments; i++) {
+                int type = data[typesStart + i];
+                int count = COORDS_PER_SEGMENT[type];
+                for (int k = 0; k < count; k += 2) {
+                    if (full) {
+                        c[k] = Double.longBitsToDouble(in.readLong());
+                        c[k + 1] = Double.longBitsToDouble(in.readLong());
+                    } else {
+                        x += unzigzag(in.readVarint());
+                        y += unzigzag(in.readVarint());
+                        c[k] = x / scale;
+                        c[k + 1] = y / scale;
+                    }
+                }
+                switch (type) {
+                    case PathIterator.SEG_MOVETO: path.moveTo(c[0], c[1]); break;
+                    case PathIterator.SEG_LINETO: path.lineTo(c[0], c[1]); break;
+                    case PathIterator.SEG_QUADTO: path.quadTo(c[0], c[1], c[2], c[3]); break;
+                    case PathIterator.SEG_CUBICTO: path.curveTo(c[0], c[1], c[2], c[3], c[4], c[5]); break;
+                    default: path.closePath(); break;
+                }
+            }
+            return path;
+        } catch (ArrayIndexOutOfBoundsException | java.awt.geom.IllegalPathStateException e) {
+            throw new IOException("Damaged path geometry", e);
+        }
+    }
+
+    /**
+     * Append a float array (such as marker positions) as its length followed
+     * by the raw float bits, so positions come back exactly.
+     */
+    static void encodeFloats(float[] values, ByteArrayOutputStream out) {
+        byte[] buffer = new byte[5 + values.length * 4];
+        int pos = writeVarint(buffer, 0, values.length);
+        for (float value : values) {
+            int bits = Float.floatToRawIntBits(value);
+            buffer[pos++] = (byte) (bits >>> 24);
+            buffer[pos++] = (byte) (bits >>> 16);
+            buffer[pos++] = (byte) (bits >>> 8);
+            buffer[pos++] = (byte) bits;
+        }
+        out.write(buffer, 0, pos);
+    }
+
+    static float[] decodeFloats(byte[] data, int offset) throws IOException {
+        try {
+            Input in = new Input(data, offset);
+            long length = in.readVarint();
+            if (length < 0 || length > (data.length - in.pos) / 4) {
+                throw new IOException("Damaged point data");
+            }
+            float[] values = new float[(int) length];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = Float.intBitsToFloat((in.readByte() << 24) | (in.readByte() << 16)
+                    | (in.readByte() << 8) | in.readByte());
+            }
+            return values;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Damaged point data", e);
+        }
+    }
+
+    /**
+     * Append a primitive layer's shapes: the count as a varint, one kind byte
+     * per shape, then each column in turn (x, y, width, height and stroke
+     * width as raw float bits, fill and stroke as ARGB ints), so similar
+     * values sit together and compress well.
+     */
+    static void encodePrimitives(PrimitiveLayerElement layer, ByteArrayOutputStream out) {
+        int count = layer.getShapeCount();
+        // Columns go out through a small buffer, as a layer can be very large
+        byte[] buffer = new byte[8192];
+        int pos = writeVarint(buffer, 0, count);
+        out.write(buffer, 0, pos);
+        out.write(layer.getKinds(), 0, count);
+        pos = 0;
+        float[][] floatColumns = {layer.getXs(), layer.getYs(), layer.getWidths(), layer.getHeights(),
+            layer.getStrokeWidths()};
+        for (float[] column : floatColumns) {
+            for (float value : column) {
+                if (pos == buffer.length) {
+                    out.write(buffer, 0, pos);
+                    pos = 0;
+                }
+                pos = writeInt(buffer, pos, Float.floatToRawIntBits(value));
+            }
+        }
+        for (int[] column : new int[][] {layer.getFills(), layer.getStrokes()}) {
+            for (int value : column) {
+                if (pos == buffer.length) {
+                    out.write(buffer, 0, pos);
+                    pos = 0;
+                }
+                pos = writeInt(buffer, pos, value);
+            }
+        }
+        out.write(buffer, 0, pos);
+    }
+
+    static PrimitiveLayerElement decodePrimitives(byte[] data, int offset, int x, int y, int width, int height)
+            throws IOException {
+        try {
+            Input in = new Input(data, offset);
+            long length = in.readVarint();
+            if (length < 0 || length > (data.length - in.pos) / (1 + 7 * 4)) {
+                throw new IOException("Damaged primitive data");
+            }
+            int count = (int) length;
+            byte[] kinds = java.util.Arrays.copyOfRange(data, in.pos, in.pos + count);
+            in.pos += count;
+            float[][] floatColumns = new float[5][count];
+            for (float[] column : floatColumns) {
+                for (int i = 0; i < count; i++) {
+                    column[i] = Float.intBitsToFloat(in.readInt());
+                }
+            }
+            int[][] intColumns = new int[2][count];
+            for (int[] column : intColumns) {
+                for (int i = 0; i < count; i++) {
+                    column[i] = in.readInt();
+                }
+            }
+            return new PrimitiveLayerElement(x, y, width, height, kinds, floatColumns[0], floatColumns[1],
+                floatColumns[2], floatColumns[3], intColumns[0], intColumns[1], floatColumns[4]);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Damaged primitive data", e);
+        }
+    }
+
+    private static final class Input {
+        private final byte[] data;
+        private int pos;
+
+        private Input(byte[] data, int pos) {
+            this.data = data;
+            this.pos = pos;
+        }
+
+        private int readByte() {
+            return data[pos++] & 0xff;
+        }
+
+        private long readVarint() {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[pos++];
+                value |= (long) (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0 && shift < 64);
+            return value;
+        }
+
+        private int readInt() {
+            return (readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+        }
+
+        private long readLong() {
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (data[pos++] & 0xff);
+            }
+            return value;
+        }
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static int writeInt(byte[] buffer, int pos, int value) {
+        buffer[pos++] = (byte) (value >>> 24);
+        buffer[pos++] = (byte) (value >>> 16);
+        buffer[pos++] = (byte) (value >>> 8);
+        buffer[pos++] = (byte) value;
+        return pos;
+    }
+
+    private static int writeVarint(byte[] buffer, int pos, long value) {
+        while ((value & ~0x7fL) != 0) {
+            buffer[pos++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        buffer[pos++] = (byte) value;
+        return pos;
+    }
+}
@@ -0,0 +1,399 @@
+package com.figuremaker;
+
+import java.awt.geom.Path2D;
+
+/**
+ * Hand-written scanner for SVG path data, shared by the SVG importer and the
+ * figure file loader. Numbers are parsed in place without intermediate
+ * strings, including the compact forms "1.5.5" (1.5 and .5) and "-1-2", and
+ * exponents. Every SVG command is supported, with implicit repeats.
+ *
+ * As SVG requires, a syntax error ends the path: the segments before it are
+ * kept and the rest of the data is ignored.
+ */
+final class PathDataParser {
+
+    // Powers of ten that are exact doubles, for the fast number path
+    private static final double[] POW10 = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+        1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final int MAX_DIGITS = 18;
+
+    private final CharSequence data;
+    private final int length;
+    private final Path2D.Double path;
+    private int pos;
+
+    private double currentX, currentY;
+    private double startX, startY;
+    // Last control point, reflected by S and T
+    private double controlX, controlY;
+    private char previous;
+
+    private PathDataParser(CharSequence data, Path2D.Double path) {
+        this.data = data;
+        this.length = data.length();
+        this.path = path;
+    }
+
+    static Path2D.Double parse(CharSequence data) {
+        Path2D.Double path = new Path2D.Double();
+        PathDataParser parser = new PathDataParser(data, path);
+        try {
+            parser.run();
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error in path data at index " + parser.pos + ": " +
+                data.subSequence(0, Math.min(80, data.length())) + (data.length() > 80 ? "..." : ""));
+        }
+        return path;
+    }
+
+    private void run() {
+        char command = 0;
+        while (true) {
+            skipSeparators();
+            if (pos >= length) return;
+
+            char c = data.charAt(pos);
+            if (isCommand(c)) {
+                command = c;
+                pos++;
+                if (previous == 0 && command != 'M' && command != 'm') {
+                    throw new IllegalArgumentException();
+                }
+            } else if (!startsNumber(c) || command == 0 || command == 'Z' || command == 'z') {
+                throw new IllegalArgumentException();
+            } else if (command == 'M') {
+                // Extra coordinate pairs after a moveto are implicit linetos
+                command = 'L';
+            } else if (command == 'm') {
+                command = 'l';
+            }
+            segment(command);
+        }
+    }
+
+    private void segment(char command) {
+        boolean relative = Character.isLowerCase(command);
+        double baseX = relative ? currentX : 0;
+        double baseY = relative ? currentY : 0;
+        char type = Character.toUpperCase(command);
+
+        switch (type) {
+            case 'M':
+                currentX = baseX + readNumber();
+                currentY = baseY + readNumber();
+                startX = currentX;
+                startY = currentY;
+                path.moveTo(currentX, currentY);
+                break;
+            case 'L':
+                currentX = baseX + readNumber();
+                currentY = baseY + readNumber();
+                path.lineTo(currentX, currentY);
+                break;
+            case 'H':
+                currentX = baseX + readNumber();
+                path.lineTo(currentX, currentY);
+                break;
+            case 'V':
+                currentY = baseY + readNumber();
+                path.lineTo(currentX, currentY);
+                break;
+            case 'C': {
+                double x1 = baseX + readNumber();
+                double y1 = baseY + readNumber();
+                controlX = baseX + readNumber();
+                controlY = baseY + readNumber();
+                currentX = baseX + readNumber();
+                currentY = baseY + readNumber();
+                path.curveTo(x1, y1, controlX, controlY, currentX, currentY);
+                break;
+            }
+            case 'S': {
+                double x1 = currentX;
+                double y1 = currentY;
+                if (previous == 'C' || previous == 'S') {
+                    x1 = 2 * currentX - controlX;
+                    y1 = 2 * currentY - controlY;
+                }
+                controlX = baseX + readNumber();
+                controlY = baseY + readNumber();
+                currentX = baseX + readNumber();
+                currentY = baseY + readNumber();
+                path.curveTo(x1, y1, controlX, controlY, currentX, currentY);
+                break;
+            }
+            case 'Q':
+                controlX = baseX + readNumber();
+                controlY = baseY + readNumber();
+                currentX = baseX + readNumber();
+                currentY = baseY + readNumber();
+                path.quadTo(controlX, controlY, currentX, currentY);
+                break;
+            case 'T':
+                if (previous == 'Q' || previous == 'T') {
+                    controlX = 2 * currentX - controlX;
+                    controlY = 2 * currentY - controlY;
+                } else {
+                    controlX = currentX;
+                    controlY = currentY;
+                }
+                currentX = baseX + readNumber();
+                currentY = baseY + readNumber();
+                path.quadTo(controlX, controlY, currentX, currentY);
+                break;
+            case 'A': {
+                double rx = readNumber();
+                double ry = readNumber();
+                double xAxisRotation = readNumber();
+                boolean largeArcFlag = readFlag();
+                boolean sweepFlag = readFlag();
+                double x = baseX + readNumber();
+                double y = baseY + readNumber();
+                arcToBezier(path, currentX, currentY, x, y, rx, ry, xAxisRotation, largeArcFlag, sweepFlag);
+                currentX = x;
+                currentY = y;
+                break;
+            }
+            case 'Z':
+                path.closePath();
+                currentX = startX;
+                currentY = startY;
+                break;
+            default:
+                throw new IllegalArgumentException();
+        }
+        previous = type;
+    }
+
+    /**
+     * Convert an SVG arc to cubic Bezier curves.
+     * Based on the SVG specification: https://www.w3.org/TR/SVG/implnotes.html#ArcImplementationNotes
+     */
+    private static void arcToBezier(Path2D.Double path, double x1, double y1, double x2, double y2,
+                                    double rx, double ry, double angle, boolean largeArcFlag, boolean sweepFlag) {
+        // Handle degenerate cases
+        if (x1 == x2 && y1 == y2) {
+            return; // Start and end points are the same
+        }
+        
+        if (rx == 0 || ry == 0) {
+            path.lineTo(x2, y2); // Radii are zero, draw a line
+            return;
+        }
+        
+        // Ensure radii are positive
+        rx = Math.abs(rx);
+        ry = Math.abs(ry);
+        
+        // Convert angle from degrees to radians
+        double angleRad = Math.toRadians(angle);
+        double cosAngle = Math.cos(angleRad);
+        double sinAngle = Math.sin(angleRad);
+        
+        // Step 1: Compute (x1', y1')
+        double dx = (x1 - x2) / 2.0;
+        double dy = (y1 - y2) / 2.0;
+        double x1Prime = cosAngle * dx + sinAngle * dy;
+        double y1Prime = -sinAngle * dx + cosAngle * dy;
+        
+        // Step 2: Correct radii if needed
+        double lambda = (x1Prime * x1Prime) / (rx * rx) + (y1Prime * y1Prime) / (ry * ry);
+        if (lambda > 1) {
+            rx *= Math.sqrt(lambda);
+            ry *= Math.sqrt(lambda);
+        }
+        
+        // Step 3: Compute center point (cx', cy')
+        double sign = (largeArcFlag != sweepFlag) ? 1 : -1;
+        double sq = Math.max(0, (rx * rx * ry * ry - rx * rx * y1Prime * y1Prime - ry * ry * x1Prime * x1Prime) 
+                             / (rx * rx * y1Prime * y1Prime + ry * ry * x1Prime * x1Prime));
+        double coef = sign * Math.sqrt(sq);
+        double cxPrime = coef * rx * y1Prime / ry;
+        double cyPrime = -coef * ry * x1Prime / rx;
+        
+        // Step 4: Compute center point (cx, cy)
+        double cx = cosAngle * cxPrime - sinAngle * cyPrime + (x1 + x2) / 2.0;
+        double cy = sinAngle * cxPrime + cosAngle * cyPrime + (y1 + y2) / 2.0;
+        
+        // Step 5: Compute angles
+        double theta1 = Math.atan2((y1Prime - cyPrime) / ry, (x1Prime - cxPrime) / rx);
+        double dTheta = Math.atan2((-y1Prime - cyPrime) / ry, (-x1Prime - cxPrime) / rx) - theta1;
+        
+        // Adjust dTheta based on sweep flag
+        if (sweepFlag && dTheta < 0) {
+            dTheta += 2 * Math.PI;
+        } else if (!sweepFlag && dTheta > 0) {
+            dTheta -= 2 * Math.PI;
+        }
+        
+        // Handle degenerate case where arc spans 0 radians
+        if (Math.abs(dTheta) < 1e-10) {
+            return;
+        }
+        
+        // Convert arc to cubic Bezier curves
+        int segments = Math.max(1, (int) Math.ceil(Math.abs(dTheta) / (Math.PI / 2.0)));
+        double delta = dTheta / segments;
+        
+        // Calculate tangent factor, with guard against division by zero
+        double sinHalfDelta = Math.sin(delta / 2.0);
+        if (Math.abs(sinHalfDelta) < 1e-10) {
+            return; // Degenerate arc
+        }
+        double t = (8.0 / 3.0) * Math.sin(delta / 4.0) * Math.sin(delta / 4.0) / sinHalfDelta;
+        
+        for (int i = 0; i < segments; i++) {
+            double theta = theta1 + i * delta;
+            double thetaNext = theta + delta;
+            
+            double cos1 = Math.cos(theta);
+            double sin1 = Math.sin(theta);
+            double cos2 = Math.cos(thetaNext);
+            double sin2 = Math.sin(thetaNext);
+            
+            // First control point
+            double cp1x = cos1 - sin1 * t;
+            double cp1y = sin1 + cos1 * t;
+            
+            // Second control point
+            double cp2x = cos2 + sin2 * t;
+            double cp2y = sin2 - cos2 * t;
+            
+            // Transform back to original coordinate system
+            double cp1xTransformed = rx * cp1x;
+            double cp1yTransformed = ry * cp1y;
+            double cp2xTransformed = rx * cp2x;
+            double cp2yTransformed = ry * cp2y;
+            double endXTransformed = rx * cos2;
+            double endYTransformed = ry * sin2;
+            
+            // Apply rotation and translation
+            double cp1xFinal = cosAngle * cp1xTransformed - sinAngle * cp1yTransformed + cx;
+            double cp1yFinal = sinAngle * cp1xTransformed + cosAngle * cp1yTransformed + cy;
+            double cp2xFinal = cosAngle * cp2xTransformed - sinAngle * cp2yTransformed + cx;
+            double cp2yFinal = sinAngle * cp2xTransformed + cosAngle * cp2yTransformed + cy;
+            double endXFinal = cosAngle * endXTransformed - sinAngle * endYTransformed + cx;
+            double endYFinal = sinAngle * endXTransformed + cosAngle * endYTransformed + cy;
+            
+            path.curveTo(cp1xFinal, cp1yFinal, cp2xFinal, cp2yFinal, endXFinal, endYFinal);
+        }
+    }
+
+    private void skipSeparators() {
+        while (pos < length) {
+            char c = data.charAt(pos);
+            if (c == ' ' || c == ',' || c == '\t' || c == '\n' || c == '\r' || c == '\f') {
+                pos++;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private boolean readFlag() {
+        skipSeparators();
+        // Flags are single characters and may be run together: "a1 1 0 104 4"
+        if (pos < length) {
+            char c = data.charAt(pos);
+            if (c == '0' || c == '1') {
+                pos++;
+                return c == '1';
+            }
+        }
+        throw new IllegalArgumentException();
+    }
+
+    private double readNumber() {
+        skipSeparators();
+        int start = pos;
+        boolean negative = false;
+        if (pos < length && (data.charAt(pos) == '-' || data.charAt(pos) == '+')) {
+            negative = data.charAt(pos) == '-';
+            pos++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean anyDigits = false;
+        boolean truncated = false;
+
+        while (pos < length && isDigit(data.charAt(pos))) {
+            anyDigits = true;
+            if (digits < MAX_DIGITS) {
+                mantissa = mantissa * 10 + (data.charAt(pos) - '0');
+                if (mantissa != 0) digits++;
+            } else {
+                exponent++;
+                truncated = true;
+            }
+            pos++;
+        }
+        // A second '.' starts the next number, so "1.5.5" is 1.5 then .5
+        if (pos < length && data.charAt(pos) == '.') {
+            pos++;
+            while (pos < length && isDigit(data.charAt(pos))) {
+                anyDigits = true;
+                if (digits < MAX_DIGITS) {
+                    mantissa = mantissa * 10 + (data.charAt(pos) - '0');
+                    if (mantissa != 0) digits++;
+                    exponent--;
+                } else {
+                    truncated = true;
+                }
+                pos++;
+            }
+        }
+        if (!anyDigits) throw new IllegalArgumentException();
+
+        if (pos < length && (data.charAt(pos) == 'e' || data.charAt(pos) == 'E')) {
+            pos++;
+            boolean negativeExponent = false;
+            if (pos < length && (data.charAt(pos) == '-' || data.charAt(pos) == '+')) {
+                negativeExponent = data.charAt(pos) == '-';
+                pos++;
+            }
+            if (pos >= length || !isDigit(data.charAt(pos))) throw new IllegalArgumentException();
+            int value = 0;
+            while (pos < length && isDigit(data.charAt(pos))) {
+                if (value < 10000) value = value * 10 + (data.charAt(pos) - '0');
+                pos++;
+            }
+            exponent += negativeExponent ? -value : value;
+        }
+
+        double result;
+        if (mantissa == 0) {
+            result = 0;
+        } else if (!truncated && mantissa < (1L << 53) && exponent >= -22 && exponent <= 22) {
+            // Both operands are exact, so one rounding gives the correct double
+            result = exponent >= 0 ? mantissa * POW10[exponent] : mantissa / POW10[-exponent];
+        } else {
+            // Too many digits for the fast path; rare outside long decimal tails
+            return Double.parseDouble(data.subSequence(start, pos).toString());
+        }
+        return negative ? -result : result;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean startsNumber(char c) {
+        return isDigit(c) || c == '.' || c == '-' || c == '+';
+    }
+
+    private static boolean isCommand(char c) {
+        switch (c) {
+            case 'M': case 'm': case 'L': case 'l': case 'H': case 'h': case 'V': case 'v':
+            case 'C': case 'c': case 'S': case 's': case 'Q': case 'q': case 'T': case 't':
+            case 'A': case 'a': case 'Z': case 'z':
+                return true;
+            default:
+                return false;
+        }
+    }
+}
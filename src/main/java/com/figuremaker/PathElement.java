@@ -2,13 +2,19 @@ package com.figuremaker;
 
 import java.awt.*;
 import java.awt.geom.Path2D;
+import java.awt.geom.PathIterator;
 import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.List;
 
 public class PathElement extends CanvasElement {
     private Path2D.Double path;
     private Color fillColor;
     private Color strokeColor;
     private float strokeWidth;
+    private int segmentCount = -1;
+    // Segment index where each merged part ends, or null for a single shape
+    private int[] partEnds;
     
     public PathElement(Path2D.Double path, int x, int y, int width, int height, 
                        Color fillColor, Color strokeColor, float strokeWidth) {
@@ -19,6 +25,17 @@ public class PathElement extends CanvasElement {
         this.strokeWidth = strokeWidth;
     }
     
+    /**
+     * A compound path made of several shapes that share one style. partEnds
+     * holds the exclusive end segment of each part, in order, so the parts
+     * can be split out again.
+     */
+    PathElement(Path2D.Double path, int x, int y, int width, int height,
+                Color fillColor, Color strokeColor, float strokeWidth, int[] partEnds) {
+        this(path, x, y, width, height, fillColor, strokeColor, strokeWidth);
+        this.partEnds = partEnds != null && partEnds.length > 1 ? partEnds : null;
+    }
+    
     @Override
     public void draw(Graphics g) {
         Graphics2D g2d = (Graphics2D) g;
@@ -39,7 +56,7 @@ public class PathElement extends CanvasElement {
         // Draw stroke
         if (strokeColor != null && strokeWidth > 0) {
             g2d.setColor(strokeColor);
-            g2d.setStroke(new BasicStroke(strokeWidth));
+            g2d.setStroke(GraphicsCache.stroke(strokeWidth));
             g2d.draw(path);
         }
         
@@ -49,11 +66,22 @@ public class PathElement extends CanvasElement {
         // Draw selection border
         if (selected) {
             g2d.setColor(Color.BLUE);
-            g2d.setStroke(new BasicStroke(2, BasicStroke.CAP_BUTT, BasicStroke.JOIN_BEVEL, 0, new float[]{5}, 0));
+            g2d.setStroke(GraphicsCache.SELECTION_STROKE);
             g2d.drawRect(x - 2, y - 2, width + 4, height + 4);
         }
     }
     
+    @Override
+    public Rectangle getPaintBounds() {
+        Rectangle bounds = super.getPaintBounds();
+        if (strokeColor != null && strokeWidth > 0) {
+            // Allow for joins poking out past half the stroke width
+            int extent = (int) Math.ceil(strokeWidth);
+            bounds.grow(extent, extent);
+        }
+        return bounds;
+    }
+    
     @Override
     public String getType() {
         return "path";
@@ -63,6 +91,68 @@ public class PathElement extends CanvasElement {
         return path;
     }
     
+    public int getSegmentCount() {
+        if (segmentCount < 0) {
+            int count = 0;
+            for (PathIterator pi = path.getPathIterator(null); !pi.isDone(); pi.next()) {
+                count++;
+            }
+            segmentCount = count;
+        }
+        return segmentCount;
+    }
+    
+    public boolean isCompound() {
+        return partEnds != null;
+    }
+    
+    int[] getPartEnds() {
+        return partEnds;
+    }
+    
+    /**
+     * Split a compound path back into one PathElement per part, each placed
+     * where it sits now. A single shape returns just itself.
+     */
+    public List<PathElement> splitParts() {
+        List<PathElement> parts = new ArrayList<>();
+        if (partEnds == null) {
+            parts.add(this);
+            return parts;
+        }
+        double[] c = new double[6];
+        int segment = 0;
+        int part = 0;
+        Path2D.Double current = new Path2D.Double(path.getWindingRule());
+        for (PathIterator pi = path.getPathIterator(null); !pi.isDone(); pi.next()) {
+            switch (pi.currentSegment(c)) {
+                case PathIterator.SEG_MOVETO: current.moveTo(c[0], c[1]); break;
+                case PathIterator.SEG_LINETO: current.lineTo(c[0], c[1]); break;
+                case PathIterator.SEG_QUADTO: current.quadTo(c[0], c[1], c[2], c[3]); break;
+                case PathIterator.SEG_CUBICTO: current.curveTo(c[0], c[1], c[2], c[3], c[4], c[5]); break;
+                default: current.closePath(); break;
+            }
+            segment++;
+            if (part < partEnds.length && segment == partEnds[part]) {
+                parts.add(partElement(current));
+                current = new Path2D.Double(path.getWindingRule());
+                part++;
+            }
+        }
+        if (current.getCurrentPoint() != null) {
+            parts.add(partElement(current));
+        }
+        return parts;
+    }
+    
+    private PathElement partElement(Path2D.Double partPath) {
+        // Rebase the part on its own bounds, as the importer does
+        Rectangle bounds = partPath.getBounds();
+        partPath.transform(java.awt.geom.AffineTransform.getTranslateInstance(-bounds.x, -bounds.y));
+        return new PathElement(partPath, x + bounds.x, y + bounds.y, bounds.width, bounds.height,
+            fillColor, strokeColor, strokeWidth);
+    }
+    
     public Color getFillColor() {
         return fillColor;
     }
@@ -0,0 +1,274 @@
+package com.figuremaker;
+
+import java.awt.*;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Many simple shapes (rectangles and ellipses, each with its own style) in
+ * one element, kept column by column in primitive arrays rather than as one
+ * object per shape, so documents with huge numbers of them stay small. Shape
+ * boxes are relative to the element origin; colours are ARGB, with a zero
+ * alpha meaning none.
+ *
+ * Paint and hit-testing run over the arrays directly. Each shape is drawn
+ * with the same calls RectElement and CircleElement use, so a layer looks
+ * exactly like the elements it replaced. Standalone elements for single
+ * shapes are made on demand.
+ */
+public class PrimitiveLayerElement extends CanvasElement {
+    public static final byte RECT = 0;
+    public static final byte ELLIPSE = 1;
+
+    private final byte[] kinds;
+    private final float[] xs;
+    private final float[] ys;
+    private final float[] widths;
+    private final float[] heights;
+    private final int[] fills;
+    private final int[] strokes;
+    private final float[] strokeWidths;
+    private final float maxStrokeWidth;
+
+    /** The arrays all hold one entry per shape and are not copied. */
+    public PrimitiveLayerElement(int x, int y, int width, int height, byte[] kinds,
+                                 float[] xs, float[] ys, float[] widths, float[] heights,
+                                 int[] fills, int[] strokes, float[] strokeWidths) {
+        super(x, y, width, height);
+        int count = kinds.length;
+        if (xs.length != count || ys.length != count || widths.length != count || heights.length != count
+                || fills.length != count || strokes.length != count || strokeWidths.length != count) {
+            throw new IllegalArgumentException("Primitive columns differ in length");
+        }
+        this.kinds = kinds;
+        this.xs = xs;
+        this.ys = ys;
+        this.widths = widths;
+        this.heights = heights;
+        this.fills = fills;
+        this.strokes = strokes;
+        this.strokeWidths = strokeWidths;
+        float maxStroke = 0;
+        for (int i = 0; i < count; i++) {
+            if (hasStroke(i)) {
+                maxStroke = Math.max(maxStroke, strokeWidths[i]);
+            }
+        }
+        this.maxStrokeWidth = maxStroke;
+    }
+
+    @Override
+    public void draw(Graphics g) {
+        drawShapes((Graphics2D) g, g.getClipBounds());
+    }
+
+    @Override
+    public void drawVisible(Graphics g, Rectangle clip, PaintCounts counts) {
+        if (clip != null && !getPaintBounds().intersects(clip)) {
+            counts.culled++;
+            return;
+        }
+        drawShapes((Graphics2D) g, clip);
+        counts.drawn++;
+    }
+
+    private void drawShapes(Graphics2D g2d, Rectangle clip) {
+        // The clip in layer coordinates, widened so strokes are not cut off
+        float pad = (float) Math.ceil(maxStrokeWidth);
+        float clipLeft = -Float.MAX_VALUE;
+        float clipTop = -Float.MAX_VALUE;
+        float clipRight = Float.MAX_VALUE;
+        float clipBottom = Float.MAX_VALUE;
+        if (clip != null) {
+            clipLeft = clip.x - x - pad;
+            clipTop = clip.y - y - pad;
+            clipRight = clip.x + clip.width - x + pad;
+            clipBottom = clip.y + clip.height - y + pad;
+        }
+
+        // Colours and strokes are only looked up when they change
+        int currentArgb = 0;
+        float currentStrokeWidth = -1;
+        boolean antialiased = false;
+        Rectangle2D.Float rect = null;
+        Ellipse2D.Float ellipse = null;
+        for (int i = 0; i < kinds.length; i++) {
+            float sx = xs[i];
+            float sy = ys[i];
+            float sw = widths[i];
+            float sh = heights[i];
+            if (sx > clipRight || sy > clipBottom || sx + sw < clipLeft || sy + sh < clipTop) {
+                continue;
+            }
+            boolean isEllipse = kinds[i] == ELLIPSE;
+            if (isEllipse && !antialiased) {
+                g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+                antialiased = true;
+            }
+
+            // Whole-unit boxes, the usual case, take the integer fast paths
+            Shape shape = null;
+            int ix = (int) sx;
+            int iy = (int) sy;
+            int iw = (int) sw;
+            int ih = (int) sh;
+            if (ix != sx || iy != sy || iw != sw || ih != sh) {
+                if (isEllipse) {
+                    ellipse = ellipse != null ? ellipse : new Ellipse2D.Float();
+                    ellipse.setFrame(x + sx, y + sy, sw, sh);
+                    shape = ellipse;
+                } else {
+                    rect = rect != null ? rect : new Rectangle2D.Float();
+                    rect.setRect(x + sx, y + sy, sw, sh);
+                    shape = rect;
+                }
+            }
+            ix += x;
+            iy += y;
+
+            int fill = fills[i];
+            if (fill >>> 24 != 0) {
+                if (fill != currentArgb) {
+                    g2d.setColor(GraphicsCache.color(fill));
+                    currentArgb = fill;
+                }
+                if (shape != null) {
+                    g2d.fill(shape);
+                } else if (isEllipse) {
+                    g2d.fillOval(ix, iy, iw, ih);
+                } else {
+                    g2d.fillRect(ix, iy, iw, ih);
+                }
+            }
+            if (hasStroke(i)) {
+                int stroke = strokes[i];
+                if (stroke != currentArgb) {
+                    g2d.setColor(GraphicsCache.color(stroke));
+                    currentArgb = stroke;
+                }
+                if (strokeWidths[i] != currentStrokeWidth) {
+                    g2d.setStroke(GraphicsCache.stroke(strokeWidths[i]));
+                    currentStrokeWidth = strokeWidths[i];
+                }
+                if (shape != null) {
+                    g2d.draw(shape);
+                } else if (isEllipse) {
+                    g2d.drawOval(ix, iy, iw, ih);
+                } else {
+                    g2d.drawRect(ix, iy, iw, ih);
+                }
+            }
+        }
+
+        if (selected) {
+            g2d.setColor(Color.BLUE);
+            g2d.setStroke(GraphicsCache.SELECTION_STROKE);
+            g2d.drawRect(x - 2, y - 2, width + 4, height + 4);
+        }
+    }
+
+    @Override
+    public boolean contains(int px, int py) {
+        return shapeAt(px, py) >= 0;
+    }
+
+    /**
+     * Index of the topmost shape whose box holds the canvas point, edges
+     * included as for other elements, or -1 if none does.
+     */
+    public int shapeAt(int px, int py) {
+        if (!super.contains(px, py)) {
+            return -1;
+        }
+        float localX = px - x;
+        float localY = py - y;
+        for (int i = kinds.length - 1; i >= 0; i--) {
+            if (localX >= xs[i] && localX <= xs[i] + widths[i]
+                    && localY >= ys[i] && localY <= ys[i] + heights[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public Rectangle getPaintBounds() {
+        Rectangle bounds = super.getPaintBounds();
+        if (maxStrokeWidth > 0) {
+            // Allow for joins poking out past half the stroke width
+            int extent = (int) Math.ceil(maxStrokeWidth);
+            bounds.grow(extent, extent);
+        }
+        return bounds;
+    }
+
+    /** A standalone RectElement or CircleElement for one shape, placed as drawn now. */
+    public CanvasElement toElement(int index) {
+        int sx = x + Math.round(xs[index]);
+        int sy = y + Math.round(ys[index]);
+        int sw = Math.round(widths[index]);
+        int sh = Math.round(heights[index]);
+        Color fill = fills[index] >>> 24 != 0 ? GraphicsCache.color(fills[index]) : null;
+        Color stroke = strokes[index] >>> 24 != 0 ? GraphicsCache.color(strokes[index]) : null;
+        if (kinds[index] == ELLIPSE) {
+            return new CircleElement(sx, sy, sw, sh, fill, stroke, strokeWidths[index]);
+        }
+        return new RectElement(sx, sy, sw, sh, fill, stroke, strokeWidths[index]);
+    }
+
+    /** One standalone element per shape, in drawing order. */
+    public List<CanvasElement> splitShapes() {
+        List<CanvasElement> shapes = new ArrayList<>(kinds.length);
+        for (int i = 0; i < kinds.length; i++) {
+            shapes.add(toElement(i));
+        }
+        return shapes;
+    }
+
+    private boolean hasStroke(int index) {
+        return strokes[index] >>> 24 != 0 && strokeWidths[index] > 0;
+    }
+
+    @Override
+    public String getType() {
+        return "primitive-layer";
+    }
+
+    public int getShapeCount() {
+        return kinds.length;
+    }
+
+    byte[] getKinds() {
+        return kinds;
+    }
+
+    float[] getXs() {
+        return xs;
+    }
+
+    float[] getYs() {
+        return ys;
+    }
+
+    float[] getWidths() {
+        return widths;
+    }
+
+    float[] getHeights() {
+        return heights;
+    }
+
+    int[] getFills() {
+        return fills;
+    }
+
+    int[] getStrokes() {
+        return strokes;
+    }
+
+    float[] getStrokeWidths() {
+        return strokeWidths;
+    }
+}
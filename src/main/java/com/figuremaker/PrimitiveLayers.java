@@ -0,0 +1,122 @@
+package com.figuremaker;
+
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Import pass that packs long runs of adjacent rectangles and circles, in
+ * any mix of styles, into one PrimitiveLayerElement. Shapes keep their
+ * order, so they stack as they did. Runs the marker pass has already turned
+ * into clouds are left alone. A packed shape can only be picked on its own
+ * after ungrouping, so runs are packed only when the user asks for merging
+ * on import, or when they are too long to edit shape by shape anyway.
+ */
+final class PrimitiveLayers {
+    // Shorter runs are left as separate elements
+    static final int MIN_SHAPES = 256;
+    // Packed even when merging was not asked for
+    static final int MIN_SHAPES_UNASKED = 10000;
+
+    private PrimitiveLayers() {
+    }
+
+    /**
+     * Replace runs of at least minShapes shapes at every level of the tree,
+     * in place.
+     */
+    static void detect(List<CanvasElement> elements, int minShapes) {
+        List<CanvasElement> replaced = detectSiblings(elements, minShapes);
+        if (replaced != elements) {
+            elements.clear();
+            elements.addAll(replaced);
+        }
+    }
+
+    private static List<CanvasElement> detectSiblings(List<CanvasElement> siblings, int minShapes) {
+        List<CanvasElement> result = new ArrayList<>(siblings.size());
+        List<CanvasElement> run = new ArrayList<>();
+        boolean changed = false;
+
+        for (CanvasElement element : siblings) {
+            if (element instanceof GroupElement) {
+                GroupElement group = (GroupElement) element;
+                List<CanvasElement> children = group.getChildren();
+                List<CanvasElement> replacedChildren = detectSiblings(children, minShapes);
+                if (replacedChildren != children) {
+                    group.replaceChildren(replacedChildren);
+                }
+            }
+
+            if (element instanceof RectElement || element instanceof CircleElement) {
+                run.add(element);
+            } else {
+                changed |= flush(run, result, minShapes);
+                result.add(element);
+            }
+        }
+        changed |= flush(run, result, minShapes);
+        return changed ? result : siblings;
+    }
+
+    /** Move the run into result, as a layer if it is long enough. */
+    private static boolean flush(List<CanvasElement> run, List<CanvasElement> result, int minShapes) {
+        boolean layer = run.size() >= minShapes;
+        if (layer) {
+            result.add(createLayer(run));
+        } else {
+            result.addAll(run);
+        }
+        run.clear();
+        return layer;
+    }
+
+    private static PrimitiveLayerElement createLayer(List<CanvasElement> shapes) {
+        int minX = Integer.MAX_VALUE;
+        int minY = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE;
+        int maxY = Integer.MIN_VALUE;
+        for (CanvasElement shape : shapes) {
+            minX = Math.min(minX, shape.getX());
+            minY = Math.min(minY, shape.getY());
+            maxX = Math.max(maxX, shape.getX() + shape.getWidth());
+            maxY = Math.max(maxY, shape.getY() + shape.getHeight());
+        }
+
+        int count = shapes.size();
+        byte[] kinds = new byte[count];
+        float[] xs = new float[count];
+        float[] ys = new float[count];
+        float[] widths = new float[count];
+        float[] heights = new float[count];
+        int[] fills = new int[count];
+        int[] strokes = new int[count];
+        float[] strokeWidths = new float[count];
+        for (int i = 0; i < count; i++) {
+            CanvasElement shape = shapes.get(i);
+            xs[i] = shape.getX() - minX;
+            ys[i] = shape.getY() - minY;
+            widths[i] = shape.getWidth();
+            heights[i] = shape.getHeight();
+            if (shape instanceof CircleElement) {
+                CircleElement circle = (CircleElement) shape;
+                kinds[i] = PrimitiveLayerElement.ELLIPSE;
+                fills[i] = argb(circle.getFillColor());
+                strokes[i] = argb(circle.getStrokeColor());
+                strokeWidths[i] = circle.getStrokeWidth();
+            } else {
+                RectElement rect = (RectElement) shape;
+                kinds[i] = PrimitiveLayerElement.RECT;
+                fills[i] = argb(rect.getFillColor());
+                strokes[i] = argb(rect.getStrokeColor());
+                strokeWidths[i] = rect.getStrokeWidth();
+            }
+        }
+        return new PrimitiveLayerElement(minX, minY, maxX - minX, maxY - minY, kinds,
+            xs, ys, widths, heights, fills, strokes, strokeWidths);
+    }
+
+    private static int argb(Color color) {
+        return color != null ? color.getRGB() : 0;
+    }
+}
@@ -0,0 +1,207 @@
+package com.figuremaker;
+
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of pre-rendered sprites for expensive elements (complex paths,
+ * groups and primitive layers). A sprite is keyed by element identity and
+ * reused while the element's revision, the device scale and its sub-pixel
+ * offset are unchanged, so unchanged frames become a single image blit.
+ * Sprites are evicted least-recently-used once the memory budget is exceeded.
+ */
+public class RasterCache {
+    public static final long DEFAULT_BUDGET_BYTES = 128L * 1024 * 1024;
+
+    // Paths simpler than this draw faster than a blit of their bounds
+    private static final int MIN_PATH_SEGMENTS = 64;
+    private static final int MAX_SPRITE_DIMENSION = 4096;
+    private static final double OFFSET_TOLERANCE = 0.01;
+
+    private static class Sprite {
+        private final BufferedImage image;
+        private final Rectangle bounds;
+        private final int revision;
+        private final double scaleX;
+        private final double scaleY;
+        private final double fractionX;
+        private final double fractionY;
+
+        private Sprite(BufferedImage image, Rectangle bounds, int revision,
+                       double scaleX, double scaleY, double fractionX, double fractionY) {
+            this.image = image;
+            this.bounds = bounds;
+            this.revision = revision;
+            this.scaleX = scaleX;
+            this.scaleY = scaleY;
+            this.fractionX = fractionX;
+            this.fractionY = fractionY;
+        }
+
+        private long sizeInBytes() {
+            return (long) image.getWidth() * image.getHeight() * 4;
+        }
+    }
+
+    // Access-ordered so iteration starts at the least recently used sprite
+    private final LinkedHashMap<CanvasElement, Sprite> sprites = new LinkedHashMap<>(16, 0.75f, true);
+    private long budgetBytes;
+    private long usedBytes;
+    private long hits;
+    private long misses;
+
+    public RasterCache() {
+        this(DEFAULT_BUDGET_BYTES);
+    }
+
+    public RasterCache(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+    /**
+     * Whether an element is expensive enough to be worth caching.
+     */
+    public static boolean isCacheable(CanvasElement element) {
+        if (element instanceof GroupElement || element instanceof PrimitiveLayerElement) {
+            return true;
+        }
+        if (element instanceof PathElement) {
+            return ((PathElement) element).getSegmentCount() >= MIN_PATH_SEGMENTS;
+        }
+        return false;
+    }
+
+    /**
+     * Draw the element from its cached sprite, rendering the sprite first if
+     * it is missing or stale. Returns false if the element cannot be cached
+     * under the current transform, in which case the caller should draw it.
+     */
+    public boolean draw(Graphics2D g, CanvasElement element) {
+        AffineTransform at = g.getTransform();
+        // Sprites are only valid for axis-aligned scale and translation
+        if ((at.getType() & ~(AffineTransform.TYPE_TRANSLATION | AffineTransform.TYPE_MASK_SCALE)) != 0) {
+            return false;
+        }
+        double scaleX = at.getScaleX();
+        double scaleY = at.getScaleY();
+        if (scaleX <= 0 || scaleY <= 0) {
+            return false;
+        }
+
+        Rectangle bounds = element.getPaintBounds();
+        double deviceX = at.getTranslateX() + bounds.x * scaleX;
+        double deviceY = at.getTranslateY() + bounds.y * scaleY;
+        int pixelX = (int) Math.floor(deviceX);
+        int pixelY = (int) Math.floor(deviceY);
+        double fractionX = deviceX - pixelX;
+        double fractionY = deviceY - pixelY;
+
+        Sprite sprite = sprites.get(element);
+        if (sprite == null || !matches(sprite, element, bounds, scaleX, scaleY, fractionX, fractionY)) {
+            if (sprite != null) {
+                remove(element);
+            }
+            sprite = render(element, bounds, scaleX, scaleY, fractionX, fractionY);
+            if (sprite == null) {
+                return false;
+            }
+            misses++;
+            sprites.put(element, sprite);
+            usedBytes += sprite.sizeInBytes();
+            evictOverBudget(element);
+        } else {
+            hits++;
+        }
+
+        g.setTransform(new AffineTransform());
+        g.drawImage(sprite.image, pixelX, pixelY, null);
+        g.setTransform(at);
+        return true;
+    }
+
+    public void invalidate(CanvasElement element) {
+        remove(element);
+    }
+
+    public void clear() {
+        sprites.clear();
+        usedBytes = 0;
+    }
+
+    public void setBudgetBytes(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+        evictOverBudget(null);
+    }
+
+    public long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    public long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public long getHitCount() {
+        return hits;
+    }
+
+    public long getMissCount() {
+        return misses;
+    }
+
+    private boolean matches(Sprite sprite, CanvasElement element, Rectangle bounds,
+                            double scaleX, double scaleY, double fractionX, double fractionY) {
+        return sprite.revision == element.getRevision()
+            && sprite.bounds.width == bounds.width
+            && sprite.bounds.height == bounds.height
+            && sprite.scaleX == scaleX
+            && sprite.scaleY == scaleY
+            && Math.abs(sprite.fractionX - fractionX) < OFFSET_TOLERANCE
+            && Math.abs(sprite.fractionY - fractionY) < OFFSET_TOLERANCE;
+    }
+
+    private Sprite render(CanvasElement element, Rectangle bounds,
+                          double scaleX, double scaleY, double fractionX, double fractionY) {
+        int width = (int) Math.ceil(bounds.width * scaleX + fractionX) + 1;
+        int height = (int) Math.ceil(bounds.height * scaleY + fractionY) + 1;
+        if (width <= 0 || height <= 0
+                || width > MAX_SPRITE_DIMENSION || height > MAX_SPRITE_DIMENSION
+                || (long) width * height * 4 > budgetBytes / 4) {
+            return null;
+        }
+
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+        Graphics2D sg = image.createGraphics();
+        try {
+            sg.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            sg.translate(fractionX, fractionY);
+            sg.scale(scaleX, scaleY);
+            sg.translate(-bounds.x, -bounds.y);
+            element.draw(sg);
+        } finally {
+            sg.dispose();
+        }
+        return new Sprite(image, bounds, element.getRevision(), scaleX, scaleY, fractionX, fractionY);
+    }
+
+    private void remove(CanvasElement element) {
+        Sprite sprite = sprites.remove(element);
+        if (sprite != null) {
+            usedBytes -= sprite.sizeInBytes();
+        }
+    }
+
+    private void evictOverBudget(CanvasElement keep) {
+        Iterator<Map.Entry<CanvasElement, Sprite>> it = sprites.entrySet().iterator();
+        while (usedBytes > budgetBytes && it.hasNext()) {
+            Map.Entry<CanvasElement, Sprite> eldest = it.next();
+            if (eldest.getKey() == keep) continue;
+            usedBytes -= eldest.getValue().sizeInBytes();
+            it.remove();
+        }
+    }
+}
@@ -7,11 +7,15 @@ import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
+import javax.xml.stream.XMLStreamException;
+
 import java.awt.*;
+import java.awt.geom.AffineTransform;
 import java.awt.geom.Area;
 import java.awt.geom.Ellipse2D;
 import java.awt.geom.Path2D;
 import java.awt.geom.Rectangle2D;
+import java.awt.geom.RectangularShape;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
@@ -25,8 +29,11 @@ public class SVGParser {
 
     private static final String CLIP_UNITS_USER_SPACE = "userSpaceOnUse";
     private static final String CLIP_UNITS_OBJECT_BOUNDING_BOX = "objectBoundingBox";
+    private static final String XLINK_NAMESPACE = "http://www.w3.org/1999/xlink";
+    private static final Pattern TRANSFORM_PATTERN =
+        Pattern.compile("(matrix|translate|scale|rotate|skewX|skewY)\\s*\\(([^)]*)\\)");
 
-    private static class ClipPathDef {
+    static class ClipPathDef {
         private final Shape shape;
         private final String units;
 
@@ -35,15 +42,91 @@ public class SVGParser {
             this.units = units;
         }
     }
+
+    /**
+     * Attribute access shared by the DOM and streaming importers. Missing
+     * attributes read as an empty string, like Element.getAttribute.
+     */
+    interface Attributes {
+        String getAttribute(String name);
+    }
+
+    /**
+     * A small element tree, used for defs and clip paths so both importers
+     * resolve them the same way.
+     */
+    interface SVGNode extends Attributes {
+        String getTagName();
+        List<? extends SVGNode> getChildElements();
+    }
+
+    private static class DomNode implements SVGNode {
+        private final Element element;
+
+        private DomNode(Element element) {
+            this.element = element;
+        }
+
+        @Override
+        public String getAttribute(String name) {
+            return element.getAttribute(name);
+        }
+
+        @Override
+        public String getTagName() {
+            return element.getTagName();
+        }
+
+        @Override
+        public List<DomNode> getChildElements() {
+            List<DomNode> result = new ArrayList<>();
+            NodeList children = element.getChildNodes();
+            for (int i = 0; i < children.getLength(); i++) {
+                Node child = children.item(i);
+                if (child instanceof Element) {
+                    result.add(new DomNode((Element) child));
+                }
+            }
+            return result;
+        }
+    }
     
-    // Pre-compiled patterns for detecting unsupported SVG path commands
-    // Note: Arc commands are now supported
-    private static final Pattern SMOOTH_CURVE_PATTERN = Pattern.compile("([,\\s\\d]|^)[Ss]([,\\s\\d].*|$)");
-    private static final Pattern SMOOTH_QUAD_PATTERN = Pattern.compile("([,\\s\\d]|^)[Tt]([,\\s\\d].*|$)");
-    
+    /**
+     * Import an SVG file. The streaming importer is tried first; documents it
+     * cannot read (e.g. entities declared only in an external DTD) are parsed
+     * again through a full Batik DOM.
+     */
     public static List<CanvasElement> parseSVG(File svgFile) throws Exception {
+        return parseSVG(svgFile, false);
+    }
+
+    /**
+     * Import an SVG file, optionally merging runs of adjacent shapes that
+     * share a style into compound paths (see ShapeCoalescer) and packing
+     * long runs of rectangles and circles into primitive layers (see
+     * PrimitiveLayers). Long runs of identical markers always become marker
+     * clouds (see MarkerClouds), and very long shape runs are always packed.
+     */
+    public static List<CanvasElement> parseSVG(File svgFile, boolean mergeShapes) throws Exception {
+        List<CanvasElement> elements;
+        try {
+            elements = StreamingSVGParser.parse(svgFile);
+        } catch (XMLStreamException e) {
+            System.err.println("Streaming SVG import failed, falling back to DOM: " + e.getMessage());
+            elements = parseSVGDocument(svgFile);
+        }
+        MarkerClouds.detect(elements);
+        PrimitiveLayers.detect(elements, mergeShapes ? PrimitiveLayers.MIN_SHAPES : PrimitiveLayers.MIN_SHAPES_UNASKED);
+        if (mergeShapes) {
+            ShapeCoalescer.coalesce(elements);
+        }
+        return elements;
+    }
+
+    private static List<CanvasElement> parseSVGDocument(File svgFile) throws Exception {
         List<CanvasElement> elements = new ArrayList<>();
         Map<String, ClipPathDef> clipPaths = new HashMap<>();
+        SymbolTable symbols = new SymbolTable();
         
         // Create a DOM document from the SVG file
         String parser = XMLResourceDescriptor.getXMLParserClassName();
@@ -54,52 +137,62 @@ public class SVGParser {
         Element svgRoot = doc.getDocumentElement();
         
         // Parse all child elements
-        parseElement(svgRoot, elements, 0, 0, clipPaths);
+        parseElement(svgRoot, elements, 0, 0, clipPaths, symbols);
         
         return elements;
     }
     
-    private static void parseElement(Element element, List<CanvasElement> elements, int offsetX, int offsetY, Map<String, ClipPathDef> clipPaths) {
+    private static void parseElement(Element element, List<CanvasElement> elements, int offsetX, int offsetY,
+                                     Map<String, ClipPathDef> clipPaths, SymbolTable symbols) {
         String tagName = element.getTagName().toLowerCase();
         
         // Parse transform attribute if present
         String transform = element.getAttribute("transform");
-        int[] translation = parseTransform(transform);
-        int currentOffsetX = offsetX + translation[0];
-        int currentOffsetY = offsetY + translation[1];
+        AffineTransform placement = parsePlacement(tagName, transform, offsetX, offsetY);
+        int currentOffsetX = 0;
+        int currentOffsetY = 0;
+        List<CanvasElement> placed = elements;
+        if (placement != null) {
+            // Parse in the element's own coordinates and place the results
+            placed = new ArrayList<>(1);
+        } else {
+            int[] translation = parseTransform(transform);
+            currentOffsetX = offsetX + translation[0];
+            currentOffsetY = offsetY + translation[1];
+        }
         
         switch (tagName) {
             case "rect":
-                parseRect(element, elements, currentOffsetX, currentOffsetY);
+                parseRect(element::getAttribute, placed, currentOffsetX, currentOffsetY);
                 break;
             case "circle":
-                parseCircle(element, elements, currentOffsetX, currentOffsetY);
+                parseCircle(element::getAttribute, placed, currentOffsetX, currentOffsetY);
                 break;
             case "ellipse":
-                parseEllipse(element, elements, currentOffsetX, currentOffsetY);
+                parseEllipse(element::getAttribute, placed, currentOffsetX, currentOffsetY);
                 break;
             case "path":
-                parsePath(element, elements, currentOffsetX, currentOffsetY);
+                parsePath(element::getAttribute, placed, currentOffsetX, currentOffsetY);
                 break;
             case "text":
-                parseText(element, elements, currentOffsetX, currentOffsetY);
+                parseText(element::getAttribute, element.getTextContent(), elements, currentOffsetX, currentOffsetY);
                 break;
             case "g":
                 // Parse group element
-                parseGroup(element, elements, currentOffsetX, currentOffsetY, clipPaths);
+                parseGroup(element, placed, currentOffsetX, currentOffsetY, clipPaths, symbols);
                 break;
             case "defs":
-                // Parse definitions (e.g., clipPath)
-                NodeList defChildren = element.getChildNodes();
-                for (int i = 0; i < defChildren.getLength(); i++) {
-                    Node child = defChildren.item(i);
-                    if (child instanceof Element) {
-                        parseDefsElement((Element) child, clipPaths, currentOffsetX, currentOffsetY);
-                    }
-                }
+            case "symbol":
+                // Parse definitions (e.g., clipPath, or shapes for <use>)
+                parseDefsElement(new DomNode(element), clipPaths, symbols, currentOffsetX, currentOffsetY);
+                break;
+            case "use":
+                parseUse(name -> name.equals("xlink:href") ? element.getAttributeNS(XLINK_NAMESPACE, "href")
+                    : element.getAttribute(name), placed, currentOffsetX, currentOffsetY, symbols);
                 break;
             case "clippath":
-                parseClipPath(element, clipPaths, currentOffsetX, currentOffsetY);
+                // parseClipPath applies the clipPath's own transform
+                parseClipPath(new DomNode(element), clipPaths, offsetX, offsetY);
                 break;
             case "svg":
                 // Recursively parse SVG root children without creating a group
@@ -107,77 +200,35 @@ public class SVGParser {
                 for (int i = 0; i < children.getLength(); i++) {
                     Node child = children.item(i);
                     if (child instanceof Element) {
-                        parseElement((Element) child, elements, currentOffsetX, currentOffsetY, clipPaths);
+                        parseElement((Element) child, elements, currentOffsetX, currentOffsetY, clipPaths, symbols);
                     }
                 }
                 break;
         }
+        
+        if (placement != null) {
+            for (CanvasElement child : placed) {
+                elements.add(TransformBaker.bake(child, placement));
+            }
+        }
     }
     
-    private static void parseGroup(Element groupElement, List<CanvasElement> elements, int offsetX, int offsetY, Map<String, ClipPathDef> clipPaths) {
+    private static void parseGroup(Element groupElement, List<CanvasElement> elements, int offsetX, int offsetY,
+                                   Map<String, ClipPathDef> clipPaths, SymbolTable symbols) {
         try {
-            // Get group ID if present
-            String id = groupElement.getAttribute("id");
-            
-            // Check if this is a clipping mask
-            String clipPath = groupElement.getAttribute("clip-path");
-            String clipPathRef = parseClipPathRef(clipPath);
-            boolean isClippingMask = clipPathRef != null && !clipPathRef.isEmpty();
-            
             // Parse all children into a temporary list
             List<CanvasElement> groupChildren = new ArrayList<>();
             NodeList children = groupElement.getChildNodes();
             for (int i = 0; i < children.getLength(); i++) {
                 Node child = children.item(i);
                 if (child instanceof Element) {
-                    parseElement((Element) child, groupChildren, offsetX, offsetY, clipPaths);
+                    parseElement((Element) child, groupChildren, offsetX, offsetY, clipPaths, symbols);
                 }
             }
             
-            // If group has children, create a GroupElement
-            if (!groupChildren.isEmpty()) {
-                // Calculate bounding box
-                int minX = Integer.MAX_VALUE;
-                int minY = Integer.MAX_VALUE;
-                int maxX = Integer.MIN_VALUE;
-                int maxY = Integer.MIN_VALUE;
-                
-                for (CanvasElement child : groupChildren) {
-                    minX = Math.min(minX, child.getX());
-                    minY = Math.min(minY, child.getY());
-                    maxX = Math.max(maxX, child.getX() + child.getWidth());
-                    maxY = Math.max(maxY, child.getY() + child.getHeight());
-                }
-                
-                GroupElement group = new GroupElement(minX, minY, maxX - minX, maxY - minY, id);
-                group.setClippingMask(isClippingMask);
-                if (isClippingMask) {
-                    ClipPathDef clipDef = clipPaths.get(clipPathRef);
-                    Shape clipShape = null;
-                    if (clipDef != null && clipDef.shape != null) {
-                        if (CLIP_UNITS_OBJECT_BOUNDING_BOX.equals(clipDef.units)) {
-                            java.awt.geom.AffineTransform at = new java.awt.geom.AffineTransform();
-                            at.translate(group.getX(), group.getY());
-                            at.scale(group.getWidth(), group.getHeight());
-                            clipShape = at.createTransformedShape(clipDef.shape);
-                        } else {
-                            if (offsetX != 0 || offsetY != 0) {
-                                java.awt.geom.AffineTransform at = java.awt.geom.AffineTransform.getTranslateInstance(offsetX, offsetY);
-                                clipShape = at.createTransformedShape(clipDef.shape);
-                            } else {
-                                clipShape = clipDef.shape;
-                            }
-                        }
-                    }
-                    if (clipShape != null) {
-                        group.setClipShape(clipShape);
-                    }
-                }
-                
-                for (CanvasElement child : groupChildren) {
-                    group.addChild(child);
-                }
-                
+            GroupElement group = createGroup(groupElement.getAttribute("id"), groupElement.getAttribute("clip-path"),
+                groupChildren, offsetX, offsetY, clipPaths);
+            if (group != null) {
                 elements.add(group);
             }
         } catch (Exception e) {
@@ -185,20 +236,84 @@ public class SVGParser {
         }
     }
 
-    private static void parseDefsElement(Element element, Map<String, ClipPathDef> clipPaths, int offsetX, int offsetY) {
+    /**
+     * Wrap parsed children in a GroupElement, resolving its clip-path against
+     * the clip paths defined so far. Returns null for an empty group.
+     */
+    static GroupElement createGroup(String id, String clipPath, List<CanvasElement> groupChildren,
+                                    int offsetX, int offsetY, Map<String, ClipPathDef> clipPaths) {
+        // Check if this is a clipping mask
+        String clipPathRef = parseClipPathRef(clipPath);
+        boolean isClippingMask = clipPathRef != null && !clipPathRef.isEmpty();
+        ClipPathDef clipDef = isClippingMask ? clipPaths.get(clipPathRef) : null;
+        return createGroup(id, isClippingMask, clipDef, groupChildren, offsetX, offsetY);
+    }
+
+    /**
+     * Same as above with the clip path already looked up, for callers that
+     * build the group after later definitions may have changed the table.
+     */
+    static GroupElement createGroup(String id, boolean isClippingMask, ClipPathDef clipDef,
+                                    List<CanvasElement> groupChildren, int offsetX, int offsetY) {
+        // If group has children, create a GroupElement
+        if (groupChildren.isEmpty()) return null;
+
+        // Calculate bounding box
+        int minX = Integer.MAX_VALUE;
+        int minY = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE;
+        int maxY = Integer.MIN_VALUE;
+        
+        for (CanvasElement child : groupChildren) {
+            minX = Math.min(minX, child.getX());
+            minY = Math.min(minY, child.getY());
+            maxX = Math.max(maxX, child.getX() + child.getWidth());
+            maxY = Math.max(maxY, child.getY() + child.getHeight());
+        }
+        
+        GroupElement group = new GroupElement(minX, minY, maxX - minX, maxY - minY, id);
+        group.setClippingMask(isClippingMask);
+        if (isClippingMask) {
+            Shape clipShape = null;
+            if (clipDef != null && clipDef.shape != null) {
+                if (CLIP_UNITS_OBJECT_BOUNDING_BOX.equals(clipDef.units)) {
+                    java.awt.geom.AffineTransform at = new java.awt.geom.AffineTransform();
+                    at.translate(group.getX(), group.getY());
+                    at.scale(group.getWidth(), group.getHeight());
+                    clipShape = at.createTransformedShape(clipDef.shape);
+                } else {
+                    if (offsetX != 0 || offsetY != 0) {
+                        java.awt.geom.AffineTransform at = java.awt.geom.AffineTransform.getTranslateInstance(offsetX, offsetY);
+                        clipShape = at.createTransformedShape(clipDef.shape);
+                    } else {
+                        clipShape = clipDef.shape;
+                    }
+                }
+            }
+            if (clipShape != null) {
+                group.setClipShape(clipShape);
+            }
+        }
+        
+        group.addChildren(groupChildren);
+        
+        return group;
+    }
+
+    static void parseDefsElement(SVGNode element, Map<String, ClipPathDef> clipPaths, SymbolTable symbols,
+                                 int offsetX, int offsetY) {
         String tagName = element.getTagName().toLowerCase();
 
         switch (tagName) {
             case "defs": {
-                NodeList children = element.getChildNodes();
-                for (int i = 0; i < children.getLength(); i++) {
-                    Node child = children.item(i);
-                    if (child instanceof Element) {
-                        parseDefsElement((Element) child, clipPaths, offsetX, offsetY);
-                    }
+                for (SVGNode child : element.getChildElements()) {
+                    parseDefsElement(child, clipPaths, symbols, offsetX, offsetY);
                 }
                 break;
             }
+            case "symbol":
+                symbols.define(element);
+                break;
             case "clippath":
                 parseClipPath(element, clipPaths, offsetX, offsetY);
                 break;
@@ -208,18 +323,15 @@ public class SVGParser {
             case "path":
             case "g": {
                 String id = element.getAttribute("id");
-                Shape shape = parseClipShapeElement(element, offsetX, offsetY);
+                Shape shape = parseClipShapeElement(element, AffineTransform.getTranslateInstance(offsetX, offsetY));
                 if (id != null && !id.isEmpty() && shape != null) {
                     clipPaths.put(id, new ClipPathDef(shape, CLIP_UNITS_USER_SPACE));
                 }
+                symbols.define(element);
 
                 if (tagName.equals("g")) {
-                    NodeList children = element.getChildNodes();
-                    for (int i = 0; i < children.getLength(); i++) {
-                        Node child = children.item(i);
-                        if (child instanceof Element) {
-                            parseDefsElement((Element) child, clipPaths, offsetX, offsetY);
-                        }
+                    for (SVGNode child : element.getChildElements()) {
+                        parseDefsElement(child, clipPaths, symbols, offsetX, offsetY);
                     }
                 }
                 break;
@@ -229,7 +341,7 @@ public class SVGParser {
         }
     }
     
-    private static void parseRect(Element rectElement, List<CanvasElement> elements, int offsetX, int offsetY) {
+    static void parseRect(Attributes rectElement, List<CanvasElement> elements, int offsetX, int offsetY) {
         try {
             double x = parseLength(rectElement.getAttribute("x"));
             double y = parseLength(rectElement.getAttribute("y"));
@@ -276,7 +388,7 @@ public class SVGParser {
         }
     }
     
-    private static void parseCircle(Element circleElement, List<CanvasElement> elements, int offsetX, int offsetY) {
+    static void parseCircle(Attributes circleElement, List<CanvasElement> elements, int offsetX, int offsetY) {
         try {
             double cx = parseLength(circleElement.getAttribute("cx"));
             double cy = parseLength(circleElement.getAttribute("cy"));
@@ -322,7 +434,7 @@ public class SVGParser {
         }
     }
     
-    private static void parseEllipse(Element ellipseElement, List<CanvasElement> elements, int offsetX, int offsetY) {
+    static void parseEllipse(Attributes ellipseElement, List<CanvasElement> elements, int offsetX, int offsetY) {
         try {
             double cx = parseLength(ellipseElement.getAttribute("cx"));
             double cy = parseLength(ellipseElement.getAttribute("cy"));
@@ -370,26 +482,37 @@ public class SVGParser {
         }
     }
     
-    private static void parsePath(Element pathElement, List<CanvasElement> elements, int offsetX, int offsetY) {
+    /**
+     * Place the definition a <use> element refers to. Only references to
+     * symbols and defs content read before the <use> are resolved.
+     */
+    static void parseUse(Attributes useElement, List<CanvasElement> elements, int offsetX, int offsetY,
+                         SymbolTable symbols) {
         try {
-            String d = pathElement.getAttribute("d");
-            if (d == null || d.isEmpty()) return;
-            
-            // Check for unsupported commands using pre-compiled patterns
-            // Note: Arc (A) commands are now supported
-            String unsupportedCmd = "";
-            if (SMOOTH_CURVE_PATTERN.matcher(d).find()) {
-                unsupportedCmd = "Smooth curve (S)";
-            } else if (SMOOTH_QUAD_PATTERN.matcher(d).find()) {
-                unsupportedCmd = "Smooth quadratic (T)";
-            }
-            
-            if (!unsupportedCmd.isEmpty()) {
-                System.err.println("Warning: Skipping path with unsupported command: " + unsupportedCmd + ". " +
-                    "Path data: " + d.substring(0, Math.min(80, d.length())) + 
-                    (d.length() > 80 ? "..." : ""));
-                return;
+            InstanceElement instance = symbols.instantiate(useElement, offsetX, offsetY);
+            if (instance != null) {
+                elements.add(instance);
             }
+        } catch (Exception e) {
+            System.err.println("Error parsing use element: " + e.getMessage());
+        }
+    }
+
+    static void parsePath(Attributes pathElement, List<CanvasElement> elements, int offsetX, int offsetY) {
+        PathElement pathElem = createPath(pathElement, offsetX, offsetY);
+        if (pathElem != null) {
+            elements.add(pathElem);
+        }
+    }
+
+    /**
+     * Build the PathElement for a path element, or null if it is skipped.
+     * Uses no shared state, so paths can be built on several threads.
+     */
+    static PathElement createPath(Attributes pathElement, int offsetX, int offsetY) {
+        try {
+            String d = pathElement.getAttribute("d");
+            if (d == null || d.isEmpty()) return null;
             
             Color fillColor = parseColor(pathElement.getAttribute("fill"));
             Color strokeColor = parseColor(pathElement.getAttribute("stroke"));
@@ -415,7 +538,8 @@ public class SVGParser {
             fillColor = applyOpacity(fillColor, fillOpacity);
             strokeColor = applyOpacity(strokeColor, strokeOpacity);
             
-            Path2D.Double path = parseSVGPath(d);
+            Path2D.Double path = PathDataParser.parse(d);
+            if (path.getCurrentPoint() == null) return null;
             
             // Calculate bounding box
             Rectangle bounds = path.getBounds();
@@ -435,18 +559,17 @@ public class SVGParser {
                 strokeColor,
                 strokeWidth
             );
-            elements.add(pathElem);
+            return pathElem;
         } catch (Exception e) {
             System.err.println("Error parsing path element (d=" + 
                 pathElement.getAttribute("d").substring(0, Math.min(50, pathElement.getAttribute("d").length())) + 
                 "...): " + e.getMessage());
+            return null;
         }
     }
     
-    private static void parseText(Element textElement, List<CanvasElement> elements, int offsetX, int offsetY) {
+    static void parseText(Attributes textElement, String textContent, List<CanvasElement> elements, int offsetX, int offsetY) {
         try {
-            // Get text content
-            String textContent = textElement.getTextContent();
             if (textContent == null || textContent.trim().isEmpty()) return;
             
             // Get position
@@ -478,7 +601,7 @@ public class SVGParser {
             else if (isBold) fontStyleCode = Font.BOLD;
             else if (isItalic) fontStyleCode = Font.ITALIC;
             
-            Font font = new Font(fontFamily, fontStyleCode, fontSize);
+            Font font = GraphicsCache.font(fontFamily, fontStyleCode, fontSize);
             
             // Parse fill color for text
             Color fillColor = parseColor(textElement.getAttribute("fill"));
@@ -502,7 +625,7 @@ public class SVGParser {
             // Estimate text dimensions using font metrics when possible
             int estimatedWidth;
             int estimatedHeight;
-            FontMetrics fm = new Canvas().getFontMetrics(font);
+            FontMetrics fm = TextMetrics.metrics(font);
             if (fm != null) {
                 estimatedWidth = fm.stringWidth(textContent.trim());
                 estimatedHeight = fm.getHeight();
@@ -553,7 +676,7 @@ public class SVGParser {
         }
     }
 
-    private static void parseClipPath(Element clipPathElement, Map<String, ClipPathDef> clipPaths, int offsetX, int offsetY) {
+    static void parseClipPath(SVGNode clipPathElement, Map<String, ClipPathDef> clipPaths, int offsetX, int offsetY) {
         try {
             String id = clipPathElement.getAttribute("id");
             if (id == null || id.isEmpty()) return;
@@ -561,20 +684,14 @@ public class SVGParser {
             String units = clipPathElement.getAttribute("clipPathUnits");
             if (units == null || units.isEmpty()) units = CLIP_UNITS_USER_SPACE;
 
-            String transform = clipPathElement.getAttribute("transform");
-            int[] translation = parseTransform(transform);
-            int currentOffsetX = offsetX + translation[0];
-            int currentOffsetY = offsetY + translation[1];
+            AffineTransform at = AffineTransform.getTranslateInstance(offsetX, offsetY);
+            at.concatenate(parseTransformList(clipPathElement.getAttribute("transform")));
 
             Area area = new Area();
-            NodeList children = clipPathElement.getChildNodes();
-            for (int i = 0; i < children.getLength(); i++) {
-                Node child = children.item(i);
-                if (child instanceof Element) {
-                    Shape shape = parseClipShapeElement((Element) child, currentOffsetX, currentOffsetY);
-                    if (shape != null) {
-                        area.add(new Area(shape));
-                    }
+            for (SVGNode child : clipPathElement.getChildElements()) {
+                Shape shape = parseClipShapeElement(child, at);
+                if (shape != null) {
+                    area.add(new Area(shape));
                 }
             }
 
@@ -586,13 +703,11 @@ public class SVGParser {
         }
     }
 
-    private static Shape parseClipShapeElement(Element element, int offsetX, int offsetY) {
+    private static Shape parseClipShapeElement(SVGNode element, AffineTransform parentTransform) {
         String tagName = element.getTagName().toLowerCase();
 
-        String transform = element.getAttribute("transform");
-        int[] translation = parseTransform(transform);
-        int currentOffsetX = offsetX + translation[0];
-        int currentOffsetY = offsetY + translation[1];
+        AffineTransform at = new AffineTransform(parentTransform);
+        at.concatenate(parseTransformList(element.getAttribute("transform")));
 
         switch (tagName) {
             case "rect": {
@@ -600,38 +715,34 @@ public class SVGParser {
                 double y = parseLength(element.getAttribute("y"));
                 double width = parseLength(element.getAttribute("width"));
                 double height = parseLength(element.getAttribute("height"));
-                return new Rectangle2D.Double(x + currentOffsetX, y + currentOffsetY, width, height);
+                return transformShape(new Rectangle2D.Double(x, y, width, height), at);
             }
             case "circle": {
                 double cx = parseLength(element.getAttribute("cx"));
                 double cy = parseLength(element.getAttribute("cy"));
                 double r = parseLength(element.getAttribute("r"));
-                return new Ellipse2D.Double(cx - r + currentOffsetX, cy - r + currentOffsetY, r * 2, r * 2);
+                return transformShape(new Ellipse2D.Double(cx - r, cy - r, r * 2, r * 2), at);
             }
             case "ellipse": {
                 double cx = parseLength(element.getAttribute("cx"));
                 double cy = parseLength(element.getAttribute("cy"));
                 double rx = parseLength(element.getAttribute("rx"));
                 double ry = parseLength(element.getAttribute("ry"));
-                return new Ellipse2D.Double(cx - rx + currentOffsetX, cy - ry + currentOffsetY, rx * 2, ry * 2);
+                return transformShape(new Ellipse2D.Double(cx - rx, cy - ry, rx * 2, ry * 2), at);
             }
             case "path": {
                 String d = element.getAttribute("d");
                 if (d == null || d.isEmpty()) return null;
-                Path2D.Double path = parseSVGPath(d);
-                path.transform(java.awt.geom.AffineTransform.getTranslateInstance(currentOffsetX, currentOffsetY));
+                Path2D.Double path = PathDataParser.parse(d);
+                path.transform(at);
                 return path;
             }
             case "g": {
                 Area area = new Area();
-                NodeList children = element.getChildNodes();
-                for (int i = 0; i < children.getLength(); i++) {
-                    Node child = children.item(i);
-                    if (child instanceof Element) {
-                        Shape shape = parseClipShapeElement((Element) child, currentOffsetX, currentOffsetY);
-                        if (shape != null) {
-                            area.add(new Area(shape));
-                        }
+                for (SVGNode child : element.getChildElements()) {
+                    Shape shape = parseClipShapeElement(child, at);
+                    if (shape != null) {
+                        area.add(new Area(shape));
                     }
                 }
                 return area.isEmpty() ? null : area;
@@ -640,223 +751,18 @@ public class SVGParser {
                 return null;
         }
     }
-    
-    private static Path2D.Double parseSVGPath(String d) {
-        Path2D.Double path = new Path2D.Double();
-        
-        // Path parser - handles M, L, H, V, C, Q, A, Z commands
-        // Note: This parser now supports arc (A) commands
-        Pattern pattern = Pattern.compile("([MLHVCQAZmlhvcqaz])([^MLHVCQAZmlhvcqaz]*)");
-        Matcher matcher = pattern.matcher(d);
-        
-        double currentX = 0, currentY = 0;
-        double startX = 0, startY = 0;
-        
-        while (matcher.find()) {
-            String command = matcher.group(1);
-            String coords = matcher.group(2).trim();
-            
-            if (coords.isEmpty() && !command.equalsIgnoreCase("Z")) continue;
-            
-            String[] values = coords.split("[,\\s]+");
-            
-            switch (command) {
-                case "M": // Move to (absolute)
-                    currentX = Double.parseDouble(values[0]);
-                    currentY = Double.parseDouble(values[1]);
-                    startX = currentX;
-                    startY = currentY;
-                    path.moveTo(currentX, currentY);
-                    break;
-                case "m": // Move to (relative)
-                    currentX += Double.parseDouble(values[0]);
-                    currentY += Double.parseDouble(values[1]);
-                    startX = currentX;
-                    startY = currentY;
-                    path.moveTo(currentX, currentY);
-                    break;
-                case "L": // Line to (absolute)
-                    for (int i = 0; i < values.length; i += 2) {
-                        currentX = Double.parseDouble(values[i]);
-                        currentY = Double.parseDouble(values[i + 1]);
-                        path.lineTo(currentX, currentY);
-                    }
-                    break;
-                case "l": // Line to (relative)
-                    for (int i = 0; i < values.length; i += 2) {
-                        currentX += Double.parseDouble(values[i]);
-                        currentY += Double.parseDouble(values[i + 1]);
-                        path.lineTo(currentX, currentY);
-                    }
-                    break;
-                case "H": // Horizontal line (absolute)
-                    currentX = Double.parseDouble(values[0]);
-                    path.lineTo(currentX, currentY);
-                    break;
-                case "h": // Horizontal line (relative)
-                    currentX += Double.parseDouble(values[0]);
-                    path.lineTo(currentX, currentY);
-                    break;
-                case "V": // Vertical line (absolute)
-                    currentY = Double.parseDouble(values[0]);
-                    path.lineTo(currentX, currentY);
-                    break;
-                case "v": // Vertical line (relative)
-                    currentY += Double.parseDouble(values[0]);
-                    path.lineTo(currentX, currentY);
-                    break;
-                case "A": // Arc (absolute)
-                case "a": // Arc (relative)
-                    // Arc parameters: rx ry x-axis-rotation large-arc-flag sweep-flag x y
-                    for (int i = 0; i + 7 <= values.length; i += 7) {
-                        double rx = Double.parseDouble(values[i]);
-                        double ry = Double.parseDouble(values[i + 1]);
-                        double xAxisRotation = Double.parseDouble(values[i + 2]);
-                        boolean largeArcFlag = Double.parseDouble(values[i + 3]) != 0;
-                        boolean sweepFlag = Double.parseDouble(values[i + 4]) != 0;
-                        double x = Double.parseDouble(values[i + 5]);
-                        double y = Double.parseDouble(values[i + 6]);
-                        
-                        if (command.equals("a")) {
-                            // Relative arc
-                            x += currentX;
-                            y += currentY;
-                        }
-                        
-                        // Convert arc to cubic Bezier curves
-                        arcToBezier(path, currentX, currentY, x, y, rx, ry, xAxisRotation, largeArcFlag, sweepFlag);
-                        
-                        currentX = x;
-                        currentY = y;
-                    }
-                    break;
-                case "Z": // Close path
-                case "z":
-                    path.closePath();
-                    currentX = startX;
-                    currentY = startY;
-                    break;
-            }
-        }
-        
-        return path;
-    }
-    
-    /**
-     * Convert an SVG arc to cubic Bezier curves.
-     * Based on the SVG specification: https://www.w3.org/TR/SVG/implnotes.html#ArcImplementationNotes
-     */
-    private static void arcToBezier(Path2D.Double path, double x1, double y1, double x2, double y2,
-                                    double rx, double ry, double angle, boolean largeArcFlag, boolean sweepFlag) {
-        // Handle degenerate cases
-        if (x1 == x2 && y1 == y2) {
-            return; // Start and end points are the same
-        }
-        
-        if (rx == 0 || ry == 0) {
-            path.lineTo(x2, y2); // Radii are zero, draw a line
-            return;
-        }
-        
-        // Ensure radii are positive
-        rx = Math.abs(rx);
-        ry = Math.abs(ry);
-        
-        // Convert angle from degrees to radians
-        double angleRad = Math.toRadians(angle);
-        double cosAngle = Math.cos(angleRad);
-        double sinAngle = Math.sin(angleRad);
-        
-        // Step 1: Compute (x1', y1')
-        double dx = (x1 - x2) / 2.0;
-        double dy = (y1 - y2) / 2.0;
-        double x1Prime = cosAngle * dx + sinAngle * dy;
-        double y1Prime = -sinAngle * dx + cosAngle * dy;
-        
-        // Step 2: Correct radii if needed
-        double lambda = (x1Prime * x1Prime) / (rx * rx) + (y1Prime * y1Prime) / (ry * ry);
-        if (lambda > 1) {
-            rx *= Math.sqrt(lambda);
-            ry *= Math.sqrt(lambda);
-        }
-        
-        // Step 3: Compute center point (cx', cy')
-        double sign = (largeArcFlag != sweepFlag) ? 1 : -1;
-        double sq = Math.max(0, (rx * rx * ry * ry - rx * rx * y1Prime * y1Prime - ry * ry * x1Prime * x1Prime) 
-                             / (rx * rx * y1Prime * y1Prime + ry * ry * x1Prime * x1Prime));
-        double coef = sign * Math.sqrt(sq);
-        double cxPrime = coef * rx * y1Prime / ry;
-        double cyPrime = -coef * ry * x1Prime / rx;
-        
-        // Step 4: Compute center point (cx, cy)
-        double cx = cosAngle * cxPrime - sinAngle * cyPrime + (x1 + x2) / 2.0;
-        double cy = sinAngle * cxPrime + cosAngle * cyPrime + (y1 + y2) / 2.0;
-        
-        // Step 5: Compute angles
-        double theta1 = Math.atan2((y1Prime - cyPrime) / ry, (x1Prime - cxPrime) / rx);
-        double dTheta = Math.atan2((-y1Prime - cyPrime) / ry, (-x1Prime - cxPrime) / rx) - theta1;
-        
-        // Adjust dTheta based on sweep flag
-        if (sweepFlag && dTheta < 0) {
-            dTheta += 2 * Math.PI;
-        } else if (!sweepFlag && dTheta > 0) {
-            dTheta -= 2 * Math.PI;
-        }
-        
-        // Handle degenerate case where arc spans 0 radians
-        if (Math.abs(dTheta) < 1e-10) {
-            return;
-        }
-        
-        // Convert arc to cubic Bezier curves
-        int segments = Math.max(1, (int) Math.ceil(Math.abs(dTheta) / (Math.PI / 2.0)));
-        double delta = dTheta / segments;
-        
-        // Calculate tangent factor, with guard against division by zero
-        double sinHalfDelta = Math.sin(delta / 2.0);
-        if (Math.abs(sinHalfDelta) < 1e-10) {
-            return; // Degenerate arc
-        }
-        double t = (8.0 / 3.0) * Math.sin(delta / 4.0) * Math.sin(delta / 4.0) / sinHalfDelta;
-        
-        for (int i = 0; i < segments; i++) {
-            double theta = theta1 + i * delta;
-            double thetaNext = theta + delta;
-            
-            double cos1 = Math.cos(theta);
-            double sin1 = Math.sin(theta);
-            double cos2 = Math.cos(thetaNext);
-            double sin2 = Math.sin(thetaNext);
-            
-            // First control point
-            double cp1x = cos1 - sin1 * t;
-            double cp1y = sin1 + cos1 * t;
-            
-            // Second control point
-            double cp2x = cos2 + sin2 * t;
-            double cp2y = sin2 - cos2 * t;
-            
-            // Transform back to original coordinate system
-            double cp1xTransformed = rx * cp1x;
-            double cp1yTransformed = ry * cp1y;
-            double cp2xTransformed = rx * cp2x;
-            double cp2yTransformed = ry * cp2y;
-            double endXTransformed = rx * cos2;
-            double endYTransformed = ry * sin2;
-            
-            // Apply rotation and translation
-            double cp1xFinal = cosAngle * cp1xTransformed - sinAngle * cp1yTransformed + cx;
-            double cp1yFinal = sinAngle * cp1xTransformed + cosAngle * cp1yTransformed + cy;
-            double cp2xFinal = cosAngle * cp2xTransformed - sinAngle * cp2yTransformed + cx;
-            double cp2yFinal = sinAngle * cp2xTransformed + cosAngle * cp2yTransformed + cy;
-            double endXFinal = cosAngle * endXTransformed - sinAngle * endYTransformed + cx;
-            double endYFinal = sinAngle * endXTransformed + cosAngle * endYTransformed + cy;
-            
-            path.curveTo(cp1xFinal, cp1yFinal, cp2xFinal, cp2yFinal, endXFinal, endYFinal);
+
+    // Rectangles and ellipses that only move stay rectangles and ellipses
+    private static Shape transformShape(RectangularShape shape, AffineTransform at) {
+        if (at.getType() == AffineTransform.TYPE_IDENTITY || at.getType() == AffineTransform.TYPE_TRANSLATION) {
+            shape.setFrame(shape.getX() + at.getTranslateX(), shape.getY() + at.getTranslateY(),
+                shape.getWidth(), shape.getHeight());
+            return shape;
         }
+        return at.createTransformedShape(shape);
     }
     
-    private static double parseLength(String value) {
+    static double parseLength(String value) {
         if (value == null || value.isEmpty()) return 0;
         // Remove units like px, pt, etc.
         value = value.replaceAll("[a-zA-Z%]", "").trim();
@@ -876,13 +782,13 @@ public class SVGParser {
         if (color.startsWith("#")) {
             try {
                 if (color.length() == 7) {
-                    return Color.decode(color);
+                    return GraphicsCache.color(0xff000000 | Integer.decode(color));
                 } else if (color.length() == 4) {
                     // Short hex format #RGB -> #RRGGBB
                     String r = String.valueOf(color.charAt(1)) + color.charAt(1);
                     String g = String.valueOf(color.charAt(2)) + color.charAt(2);
                     String b = String.valueOf(color.charAt(3)) + color.charAt(3);
-                    return Color.decode("#" + r + g + b);
+                    return GraphicsCache.color(0xff000000 | Integer.decode("#" + r + g + b));
                 }
             } catch (NumberFormatException e) {
                 return Color.BLACK;
@@ -897,7 +803,7 @@ public class SVGParser {
                 int r = Integer.parseInt(parts[0].trim());
                 int g = Integer.parseInt(parts[1].trim());
                 int b = Integer.parseInt(parts[2].trim());
-                return new Color(r, g, b);
+                return GraphicsCache.color(r, g, b);
             } catch (Exception e) {
                 return Color.BLACK;
             }
@@ -944,7 +850,7 @@ public class SVGParser {
     private static Color applyOpacity(Color color, Double opacity) {
         if (color == null || opacity == null) return color;
         int alpha = (int) Math.round(color.getAlpha() * opacity);
-        return new Color(color.getRed(), color.getGreen(), color.getBlue(), alpha);
+        return GraphicsCache.color(color.getRed(), color.getGreen(), color.getBlue(), alpha);
     }
     
     private static Color[] parseStyle(String style) {
@@ -986,30 +892,124 @@ public class SVGParser {
         return null;
     }
     
-    private static int[] parseTransform(String transform) {
+    /**
+     * The translation in a transform, truncated to whole units, for elements
+     * placed by integer offsets. When the transform does more than translate,
+     * only its translate() steps count: text takes its rotation from
+     * parseRotation, and shapes and groups go through parsePlacement instead.
+     */
+    static int[] parseTransform(String transform) {
         int[] translation = new int[2]; // [x, y]
         
         if (transform == null || transform.isEmpty()) return translation;
         
-        // Simple parser for translate() transform
-        // Note: Only handles translate() transforms. Other transforms like
-        // rotate(), scale(), skew(), and matrix() are not currently supported.
-        Pattern pattern = Pattern.compile("translate\\(([^,\\)]+)[,\\s]*([^\\)]+)\\)");
-        Matcher matcher = pattern.matcher(transform);
-        
-        if (matcher.find()) {
-            try {
-                translation[0] = (int) Double.parseDouble(matcher.group(1).trim());
-                translation[1] = (int) Double.parseDouble(matcher.group(2).trim());
-            } catch (NumberFormatException e) {
-                // Ignore parsing errors
+        AffineTransform at = parseTransformList(transform);
+        double tx = at.getTranslateX();
+        double ty = at.getTranslateY();
+        if ((at.getType() & ~AffineTransform.TYPE_TRANSLATION) != 0) {
+            tx = 0;
+            ty = 0;
+            Matcher matcher = TRANSFORM_PATTERN.matcher(transform);
+            while (matcher.find()) {
+                if (matcher.group(1).equals("translate")) {
+                    double[] args = parseTransformArguments(matcher.group(2));
+                    if (args.length > 0) tx += args[0];
+                    if (args.length > 1) ty += args[1];
+                }
             }
         }
-        
+        translation[0] = (int) tx;
+        translation[1] = (int) ty;
         return translation;
     }
+    
+    /**
+     * Parse an SVG transform list (matrix, translate, scale, rotate, skewX
+     * and skewY, applied right to left) into one transform. Steps that do
+     * not parse are skipped.
+     */
+    static AffineTransform parseTransformList(String transform) {
+        AffineTransform at = new AffineTransform();
+        if (transform == null || transform.isEmpty()) return at;
+        
+        Matcher matcher = TRANSFORM_PATTERN.matcher(transform);
+        while (matcher.find()) {
+            double[] a = parseTransformArguments(matcher.group(2));
+            if (a.length == 0) continue;
+            switch (matcher.group(1)) {
+                case "matrix":
+                    if (a.length == 6) {
+                        at.concatenate(new AffineTransform(a[0], a[1], a[2], a[3], a[4], a[5]));
+                    }
+                    break;
+                case "translate":
+                    at.translate(a[0], a.length > 1 ? a[1] : 0);
+                    break;
+                case "scale":
+                    at.scale(a[0], a.length > 1 ? a[1] : a[0]);
+                    break;
+                case "rotate":
+                    if (a.length >= 3) {
+                        at.rotate(Math.toRadians(a[0]), a[1], a[2]);
+                    } else {
+                        at.rotate(Math.toRadians(a[0]));
+                    }
+                    break;
+                case "skewX":
+                    at.shear(Math.tan(Math.toRadians(a[0])), 0);
+                    break;
+                case "skewY":
+                    at.shear(0, Math.tan(Math.toRadians(a[0])));
+                    break;
+            }
+        }
+        return at;
+    }
+    
+    /**
+     * How an element's transform is applied, given the integer offsets its
+     * parent passes down. Returns null when the offsets can carry it: no
+     * transform, a whole-unit translation, or an element that only takes
+     * translations (text, for one, reads its rotation itself). Otherwise
+     * returns the offsets followed by the full transform, for the caller to
+     * bake into what it parses at offset zero.
+     */
+    static AffineTransform parsePlacement(String tagName, String transform, int offsetX, int offsetY) {
+        if (transform == null || transform.isEmpty()) return null;
+        switch (tagName) {
+            case "g":
+            case "rect":
+            case "circle":
+            case "ellipse":
+            case "path":
+            case "use":
+                break;
+            default:
+                return null;
+        }
+        AffineTransform own = parseTransformList(transform);
+        if (TransformBaker.isWholeTranslation(own)) return null;
+        AffineTransform placement = AffineTransform.getTranslateInstance(offsetX, offsetY);
+        placement.concatenate(own);
+        return placement;
+    }
+    
+    private static double[] parseTransformArguments(String arguments) {
+        String trimmed = arguments.trim();
+        if (trimmed.isEmpty()) return new double[0];
+        String[] parts = trimmed.split("[\\s,]+");
+        double[] values = new double[parts.length];
+        try {
+            for (int i = 0; i < parts.length; i++) {
+                values[i] = Double.parseDouble(parts[i]);
+            }
+        } catch (NumberFormatException e) {
+            return new double[0];
+        }
+        return values;
+    }
 
-    private static String parseClipPathRef(String clipPathValue) {
+    static String parseClipPathRef(String clipPathValue) {
         if (clipPathValue == null || clipPathValue.isEmpty()) return null;
         clipPathValue = clipPathValue.trim();
 
@@ -13,6 +13,7 @@ public class SVGTextElement extends CanvasElement {
     private Font font;
     private Color textColor;
     private double rotation; // in degrees
+    private int textWidth = -1; // measured lazily, cleared when text or font change
     
     public SVGTextElement(int x, int y, int width, int height, String text, Font font, Color textColor, double rotation) {
         super(x, y, width, height);
@@ -47,12 +48,12 @@ public class SVGTextElement extends CanvasElement {
         
         // Draw selection indicator if selected
         if (selected) {
-            FontMetrics fm = g2d.getFontMetrics(font);
+            FontMetrics fm = TextMetrics.metrics(font);
             g2d.setColor(Color.BLUE);
-            g2d.setStroke(new BasicStroke(1, BasicStroke.CAP_BUTT, BasicStroke.JOIN_BEVEL, 0, new float[]{5}, 0));
+            g2d.setStroke(GraphicsCache.TEXT_SELECTION_STROKE);
             
             // Draw dashed box around text bounds
-            int textWidth = fm.stringWidth(text);
+            int textWidth = getTextWidth();
             int textHeight = fm.getHeight();
             int textY = y - fm.getAscent(); // Top of text
             
@@ -97,6 +98,31 @@ public class SVGTextElement extends CanvasElement {
         return px >= x && px <= x + width && py >= y - height && py <= y;
     }
     
+    @Override
+    public Rectangle getBounds() {
+        // Text baseline is at y, so the hit area extends from y-height to y
+        return rotatedBounds(new Rectangle(x, y - height, width, height));
+    }
+    
+    @Override
+    public Rectangle getPaintBounds() {
+        // Descenders and the selection box reach below the baseline, and the
+        // resize handles are drawn unrotated
+        Rectangle local = new Rectangle(x, y - height, width, height * 2);
+        Rectangle bounds = rotatedBounds(local);
+        bounds.add(local);
+        bounds.grow(SELECTION_MARGIN, SELECTION_MARGIN);
+        return bounds;
+    }
+    
+    private Rectangle rotatedBounds(Rectangle local) {
+        if (rotation == 0) {
+            return local;
+        }
+        AffineTransform rotate = AffineTransform.getRotateInstance(Math.toRadians(rotation), x, y);
+        return rotate.createTransformedShape(local).getBounds();
+    }
+    
     @Override
     public String getType() {
         return "svg-text";
@@ -108,6 +134,8 @@ public class SVGTextElement extends CanvasElement {
     
     public void setText(String text) {
         this.text = text;
+        textWidth = -1;
+        invalidate();
     }
     
     public Font getFont() {
@@ -116,6 +144,15 @@ public class SVGTextElement extends CanvasElement {
     
     public void setFont(Font font) {
         this.font = font;
+        textWidth = -1;
+        invalidate();
+    }
+    
+    int getTextWidth() {
+        if (textWidth < 0) {
+            textWidth = TextMetrics.stringWidth(font, text);
+        }
+        return textWidth;
     }
     
     public Color getTextColor() {
@@ -124,6 +161,7 @@ public class SVGTextElement extends CanvasElement {
     
     public void setTextColor(Color textColor) {
         this.textColor = textColor;
+        invalidate();
     }
     
     public double getRotation() {
@@ -132,5 +170,6 @@ public class SVGTextElement extends CanvasElement {
     
     public void setRotation(double rotation) {
         this.rotation = rotation;
+        invalidate();
     }
 }
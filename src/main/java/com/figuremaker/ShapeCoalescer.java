@@ -0,0 +1,262 @@
+package com.figuremaker;
+
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Path2D;
+import java.awt.geom.PathIterator;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Optional import pass that merges runs of adjacent paths with the same
+ * style into one compound PathElement, so dense plots such as bar charts and
+ * marker grids paint with one fill and one stroke per run.
+ *
+ * Only paths whose painted areas do not overlap are merged, so the compound
+ * paints exactly as its parts did one by one, whatever their opacity,
+ * winding or fill and stroke colours. A run also has to stay compact: the
+ * rasterizer is faster on one shape only while its parts cover much of its
+ * bounds, and is slower on sparse ones such as scattered markers, which are
+ * therefore left alone. Rectangles are never merged, as fillRect beats any
+ * path fill.
+ */
+final class ShapeCoalescer {
+    private static final int MAX_PARTS = 4096;
+
+    private ShapeCoalescer() {
+    }
+
+    /** Coalesce siblings at every level of the tree, in place. */
+    static void coalesce(List<CanvasElement> elements) {
+        List<CanvasElement> merged = coalesceSiblings(elements);
+        if (merged != elements) {
+            elements.clear();
+            elements.addAll(merged);
+        }
+    }
+
+    private static List<CanvasElement> coalesceSiblings(List<CanvasElement> siblings) {
+        List<CanvasElement> result = new ArrayList<>(siblings.size());
+        List<PathElement> run = new ArrayList<>();
+        Occupancy occupied = new Occupancy();
+        Style runStyle = null;
+        boolean changed = false;
+
+        for (CanvasElement element : siblings) {
+            if (element instanceof GroupElement) {
+                GroupElement group = (GroupElement) element;
+                List<CanvasElement> children = group.getChildren();
+                List<CanvasElement> mergedChildren = coalesceSiblings(children);
+                if (mergedChildren != children) {
+                    group.replaceChildren(mergedChildren);
+                }
+            }
+
+            Style style = Style.of(element);
+            Rectangle ink = style != null ? inkBounds((PathElement) element, style) : null;
+            if (ink != null && !Occupancy.fits(ink)) {
+                // Too large to track, and not what merging is for
+                style = null;
+            }
+            boolean fits = style != null && style.equals(runStyle) && run.size() < MAX_PARTS
+                && occupied.isFree(ink) && occupied.staysDense(ink);
+            if (!fits) {
+                changed |= flush(run, runStyle, result);
+                occupied.clear();
+                runStyle = style;
+            }
+            if (style != null) {
+                run.add((PathElement) element);
+                occupied.add(ink);
+            } else {
+                result.add(element);
+            }
+        }
+        changed |= flush(run, runStyle, result);
+        return changed ? result : siblings;
+    }
+
+    /** Area the path's fill and stroke can touch. */
+    private static Rectangle inkBounds(PathElement path, Style style) {
+        Rectangle ink = path.getBounds();
+        if (style.stroke != null && style.strokeWidth > 0) {
+            // Same allowance for joins as PathElement.getPaintBounds
+            int extent = (int) Math.ceil(style.strokeWidth);
+            ink.grow(extent, extent);
+        }
+        return ink;
+    }
+
+    /** Move the run into result, merged if it has more than one path. */
+    private static boolean flush(List<PathElement> run, Style style, List<CanvasElement> result) {
+        boolean merged = run.size() > 1;
+        if (merged) {
+            result.add(merge(run, style));
+        } else {
+            result.addAll(run);
+        }
+        run.clear();
+        return merged;
+    }
+
+    private static PathElement merge(List<PathElement> run, Style style) {
+        int minX = Integer.MAX_VALUE;
+        int minY = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE;
+        int maxY = Integer.MIN_VALUE;
+        for (PathElement part : run) {
+            minX = Math.min(minX, part.getX());
+            minY = Math.min(minY, part.getY());
+            maxX = Math.max(maxX, part.getX() + part.getWidth());
+            maxY = Math.max(maxY, part.getY() + part.getHeight());
+        }
+
+        Path2D.Double path = new Path2D.Double(style.windingRule, run.size() * 8);
+        List<Integer> ends = new ArrayList<>(run.size());
+        int segments = 0;
+        for (PathElement part : run) {
+            AffineTransform offset = AffineTransform.getTranslateInstance(part.getX() - minX, part.getY() - minY);
+            int start = segments;
+            segments += append(path, part.getPath().getPathIterator(offset));
+            int[] partEnds = part.getPartEnds();
+            if (partEnds != null) {
+                for (int end : partEnds) {
+                    ends.add(start + end);
+                }
+            } else {
+                ends.add(segments);
+            }
+        }
+
+        int[] partEnds = new int[ends.size()];
+        for (int i = 0; i < partEnds.length; i++) {
+            partEnds[i] = ends.get(i);
+        }
+        return new PathElement(path, minX, minY, maxX - minX, maxY - minY,
+            style.fill, style.stroke, style.strokeWidth, partEnds);
+    }
+
+    private static int append(Path2D.Double path, PathIterator pi) {
+        double[] c = new double[6];
+        int count = 0;
+        for (; !pi.isDone(); pi.next()) {
+            switch (pi.currentSegment(c)) {
+                case PathIterator.SEG_MOVETO: path.moveTo(c[0], c[1]); break;
+                case PathIterator.SEG_LINETO: path.lineTo(c[0], c[1]); break;
+                case PathIterator.SEG_QUADTO: path.quadTo(c[0], c[1], c[2], c[3]); break;
+                case PathIterator.SEG_CUBICTO: path.curveTo(c[0], c[1], c[2], c[3], c[4], c[5]); break;
+                default: path.closePath(); break;
+            }
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * The ink rectangles of the current run, hashed into a coarse grid so a
+     * new path is only compared with its neighbours.
+     */
+    private static final class Occupancy {
+        private static final int CELL = 64;
+        private static final int MAX_CELLS = 16;
+        // Largest ratio of run bounds to inked area that is still merged
+        private static final int MAX_SPARSENESS = 4;
+
+        private final Map<Long, List<Rectangle>> cells = new HashMap<>();
+        private Rectangle bounds;
+        private long inkArea;
+
+        static boolean fits(Rectangle r) {
+            long columns = (long) Math.floorDiv(r.x + r.width, CELL) - Math.floorDiv(r.x, CELL) + 1;
+            long rows = (long) Math.floorDiv(r.y + r.height, CELL) - Math.floorDiv(r.y, CELL) + 1;
+            return columns * rows <= MAX_CELLS;
+        }
+
+        boolean isFree(Rectangle r) {
+            for (int cy = Math.floorDiv(r.y, CELL); cy <= Math.floorDiv(r.y + r.height, CELL); cy++) {
+                for (int cx = Math.floorDiv(r.x, CELL); cx <= Math.floorDiv(r.x + r.width, CELL); cx++) {
+                    List<Rectangle> taken = cells.get(key(cx, cy));
+                    if (taken != null) {
+                        for (Rectangle other : taken) {
+                            if (other.intersects(r)) {
+                                return false;
+                            }
+                        }
+                    }
+                }
+            }
+            return true;
+        }
+
+        boolean staysDense(Rectangle r) {
+            if (bounds == null) {
+                return true;
+            }
+            Rectangle union = bounds.union(r);
+            return (long) union.width * union.height <= MAX_SPARSENESS * (inkArea + (long) r.width * r.height);
+        }
+
+        void add(Rectangle r) {
+            bounds = bounds == null ? new Rectangle(r) : bounds.union(r);
+            inkArea += (long) r.width * r.height;
+            for (int cy = Math.floorDiv(r.y, CELL); cy <= Math.floorDiv(r.y + r.height, CELL); cy++) {
+                for (int cx = Math.floorDiv(r.x, CELL); cx <= Math.floorDiv(r.x + r.width, CELL); cx++) {
+                    cells.computeIfAbsent(key(cx, cy), k -> new ArrayList<>()).add(r);
+                }
+            }
+        }
+
+        void clear() {
+            cells.clear();
+            bounds = null;
+            inkArea = 0;
+        }
+
+        private static long key(int cx, int cy) {
+            return ((long) cx << 32) | (cy & 0xffffffffL);
+        }
+    }
+
+    /** Paint style of a path that may be merged, compared by value. */
+    private static final class Style {
+        private final Color fill;
+        private final Color stroke;
+        private final float strokeWidth;
+        private final int windingRule;
+
+        private Style(Color fill, Color stroke, float strokeWidth, int windingRule) {
+            this.fill = fill;
+            this.stroke = stroke;
+            this.strokeWidth = strokeWidth;
+            this.windingRule = windingRule;
+        }
+
+        /** The path's style, or null if it cannot be merged. */
+        static Style of(CanvasElement element) {
+            if (!(element instanceof PathElement)) return null;
+            PathElement path = (PathElement) element;
+            Color fill = path.getFillColor();
+            Color stroke = path.getStrokeColor();
+            float strokeWidth = path.getStrokeWidth();
+            if (fill == null && (stroke == null || strokeWidth <= 0)) return null;
+            return new Style(fill, stroke, strokeWidth, path.getPath().getWindingRule());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Style)) return false;
+            Style other = (Style) o;
+            return Objects.equals(fill, other.fill) && Objects.equals(stroke, other.stroke)
+                && Float.compare(strokeWidth, other.strokeWidth) == 0 && windingRule == other.windingRule;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(fill, stroke, strokeWidth, windingRule);
+        }
+    }
+}
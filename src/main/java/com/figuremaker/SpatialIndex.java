@@ -0,0 +1,299 @@
+package com.figuremaker;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Loose quadtree over element paint bounds, used for hit-testing and paint
+ * culling. Each node accepts entries that fit in its region grown by half its
+ * size, so elements straddling quadrant lines still sink to small nodes.
+ * Only top-level elements are indexed: group children live in their group's
+ * coordinates, so a group resolves hits on its children itself, and moving
+ * a group touches a single entry. Entries remember their element's z-order,
+ * so lookups can resolve the topmost hit without scanning the element list.
+ */
+public class SpatialIndex {
+    private static final int NODE_CAPACITY = 8;
+    private static final int MIN_NODE_SIZE = 16;
+    private static final int INITIAL_SIZE = 1024;
+    private static final int MAX_ROOT_SIZE = 1 << 28;
+
+    private static class Owner {
+        private final CanvasElement element;
+        private long order;
+
+        private Owner(CanvasElement element, long order) {
+            this.element = element;
+            this.order = order;
+        }
+    }
+
+    private static class Entry {
+        private final CanvasElement element;
+        private final Owner owner;
+        private Rectangle bounds;
+        private Node node;
+
+        private Entry(CanvasElement element, Owner owner) {
+            this.element = element;
+            this.owner = owner;
+        }
+    }
+
+    private static class Node {
+        private final int x;
+        private final int y;
+        private final int size;
+        private final List<Entry> entries = new ArrayList<>();
+        private Node[] children;
+
+        private Node(int x, int y, int size) {
+            this.x = x;
+            this.y = y;
+            this.size = size;
+        }
+
+        private boolean enclosesStrictly(Rectangle r) {
+            return r.x >= x && r.y >= y
+                && (long) r.x + r.width <= (long) x + size
+                && (long) r.y + r.height <= (long) y + size;
+        }
+
+        private boolean encloses(Rectangle r) {
+            long slack = size / 2;
+            return r.x >= x - slack && r.y >= y - slack
+                && (long) r.x + r.width <= (long) x + size + slack
+                && (long) r.y + r.height <= (long) y + size + slack;
+        }
+
+        private boolean intersects(Rectangle r) {
+            long slack = size / 2;
+            return (long) r.x < (long) x + size + slack && (long) r.x + r.width > x - slack
+                && (long) r.y < (long) y + size + slack && (long) r.y + r.height > y - slack;
+        }
+    }
+
+    private Node root;
+    private final Map<CanvasElement, Entry> entries = new IdentityHashMap<>();
+    private final Map<CanvasElement, Owner> owners = new IdentityHashMap<>();
+
+    public SpatialIndex() {
+        clear();
+    }
+
+    public void clear() {
+        root = new Node(-INITIAL_SIZE / 2, -INITIAL_SIZE / 2, INITIAL_SIZE);
+        entries.clear();
+        owners.clear();
+    }
+
+    /**
+     * Index a top-level element.
+     */
+    public void add(CanvasElement element, long order) {
+        if (owners.containsKey(element)) {
+            remove(element);
+        }
+        Owner owner = new Owner(element, order);
+        owners.put(element, owner);
+        Entry entry = new Entry(element, owner);
+        entry.bounds = indexBounds(element);
+        entries.put(element, entry);
+        insert(entry);
+    }
+
+    public void remove(CanvasElement element) {
+        Owner owner = owners.remove(element);
+        if (owner == null) return;
+        Entry entry = entries.remove(element);
+        if (entry != null && entry.node != null) {
+            entry.node.entries.remove(entry);
+        }
+    }
+
+    /**
+     * Re-read the bounds of a top-level element after a move or resize.
+     */
+    public void update(CanvasElement element) {
+        Entry entry = entries.get(element);
+        if (entry == null) return;
+
+        Rectangle bounds = indexBounds(element);
+        if (!bounds.equals(entry.bounds)) {
+            entry.node.entries.remove(entry);
+            entry.bounds = bounds;
+            insert(entry);
+        }
+    }
+
+    public void setOrder(CanvasElement element, long order) {
+        Owner owner = owners.get(element);
+        if (owner != null) {
+            owner.order = order;
+        }
+    }
+
+    public boolean contains(CanvasElement element) {
+        return owners.containsKey(element);
+    }
+
+    /**
+     * Number of top-level elements indexed.
+     */
+    public int size() {
+        return owners.size();
+    }
+
+    /**
+     * Return the topmost top-level element that contains the point.
+     */
+    public CanvasElement findTopmostAt(int px, int py) {
+        List<Entry> candidates = new ArrayList<>();
+        collect(root, new Rectangle(px, py, 1, 1), candidates);
+
+        Owner best = null;
+        for (Entry entry : candidates) {
+            if (best != null && entry.owner.order <= best.order) continue;
+            if (entry.element.contains(px, py)) {
+                best = entry.owner;
+            }
+        }
+        return best != null ? best.element : null;
+    }
+
+    /**
+     * Return the top-level elements whose paint bounds intersect the area,
+     * in z-order (bottom first).
+     */
+    public List<CanvasElement> queryTopLevel(Rectangle area) {
+        List<Entry> candidates = new ArrayList<>();
+        collect(root, area, candidates);
+
+        List<Owner> hits = new ArrayList<>(candidates.size());
+        for (Entry entry : candidates) {
+            hits.add(entry.owner);
+        }
+        hits.sort(Comparator.comparingLong(o -> o.order));
+
+        List<CanvasElement> result = new ArrayList<>(hits.size());
+        for (Owner owner : hits) {
+            result.add(owner.element);
+        }
+        return result;
+    }
+
+    private static Rectangle indexBounds(CanvasElement element) {
+        Rectangle bounds = element.getPaintBounds();
+        // Element hit tests are inclusive of the right and bottom edges
+        bounds.width = Math.max(0, bounds.width) + 1;
+        bounds.height = Math.max(0, bounds.height) + 1;
+        return bounds;
+    }
+
+    private void insert(Entry entry) {
+        // Grow until the root strictly holds the entry; relying on the loose
+        // margin here would strand entries at nodes no child can take over
+        while (!root.enclosesStrictly(entry.bounds) && root.size < MAX_ROOT_SIZE) {
+            growRoot(entry.bounds);
+        }
+        if (!root.enclosesStrictly(entry.bounds)) {
+            // Too far out to be worth growing further; keep it at the root
+            root.entries.add(entry);
+            entry.node = root;
+            return;
+        }
+        insert(root, entry);
+    }
+
+    private void insert(Node node, Entry entry) {
+        while (true) {
+            if (node.children == null) {
+                node.entries.add(entry);
+                entry.node = node;
+                if (node.entries.size() > NODE_CAPACITY && node.size / 2 >= MIN_NODE_SIZE) {
+                    split(node);
+                }
+                return;
+            }
+
+            Node child = childEnclosing(node, entry.bounds);
+            if (child == null) {
+                node.entries.add(entry);
+                entry.node = node;
+                return;
+            }
+            node = child;
+        }
+    }
+
+    private void split(Node node) {
+        int half = node.size / 2;
+        node.children = new Node[] {
+            new Node(node.x, node.y, half),
+            new Node(node.x + half, node.y, half),
+            new Node(node.x, node.y + half, half),
+            new Node(node.x + half, node.y + half, half)
+        };
+
+        List<Entry> existing = new ArrayList<>(node.entries);
+        node.entries.clear();
+        for (Entry entry : existing) {
+            Node child = childEnclosing(node, entry.bounds);
+            if (child != null) {
+                insert(child, entry);
+            } else {
+                node.entries.add(entry);
+                entry.node = node;
+            }
+        }
+    }
+
+    private static Node childEnclosing(Node node, Rectangle r) {
+        // Pick the quadrant holding the centre, then check its loose bounds
+        long half = node.size / 2;
+        long cx = (long) r.x + r.width / 2;
+        long cy = (long) r.y + r.height / 2;
+        int quadrant = (cx >= node.x + half ? 1 : 0) + (cy >= node.y + half ? 2 : 0);
+        Node child = node.children[quadrant];
+        return child.encloses(r) ? child : null;
+    }
+
+    private void growRoot(Rectangle toward) {
+        int size = root.size;
+        boolean growLeft = toward.x < root.x;
+        boolean growUp = toward.y < root.y;
+        int newX = growLeft ? root.x - size : root.x;
+        int newY = growUp ? root.y - size : root.y;
+
+        Node grown = new Node(newX, newY, size * 2);
+        grown.children = new Node[4];
+        int oldQuadrant = (growLeft ? 1 : 0) + (growUp ? 2 : 0);
+        for (int i = 0; i < 4; i++) {
+            if (i == oldQuadrant) {
+                grown.children[i] = root;
+            } else {
+                grown.children[i] = new Node(newX + (i % 2) * size, newY + (i / 2) * size, size);
+            }
+        }
+        root = grown;
+    }
+
+    private static void collect(Node node, Rectangle area, List<Entry> out) {
+        for (Entry entry : node.entries) {
+            if (entry.bounds.intersects(area)) {
+                out.add(entry);
+            }
+        }
+        if (node.children != null) {
+            for (Node child : node.children) {
+                if (child.intersects(area)) {
+                    collect(child, area, out);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,485 @@
+package com.figuremaker;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.awt.geom.AffineTransform;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Imports SVG with a StAX pull parser, turning elements into CanvasElements as
+ * they are read instead of building a DOM first. Only the stack of open
+ * groups and the definition tables stay in memory; defs, symbol and
+ * clipPath subtrees are buffered as small node trees and resolved by
+ * SVGParser, so both importers produce the same elements.
+ *
+ * Import runs in two phases. Paths, the expensive part, are read into
+ * descriptors in document order and their geometry is built in batches on
+ * the common fork-join pool while parsing continues. Groups closed before
+ * their paths are built are kept as descriptors too and assembled once the
+ * batch finishes, so z-order and group structure are unchanged.
+ */
+class StreamingSVGParser {
+
+    // The only elements SVGParser looks at inside defs, symbol and clipPath
+    private static final Set<String> CLIP_TAGS = new HashSet<>(Arrays.asList(
+        "defs", "symbol", "clippath", "g", "rect", "circle", "ellipse", "path"));
+
+    // Paths collected before a batch is handed to the pool
+    private static final int BATCH_SIZE = 4096;
+    // Fewest paths a single fork-join task builds without splitting
+    private static final int SPLIT_THRESHOLD = 64;
+
+    private enum Kind { CONTENT, GROUP, TEXT, DEFS, CLIP_PATH, BUFFERED, SKIP }
+
+    private static final Frame SKIP = new Frame(Kind.SKIP, 0, 0, null, null);
+
+    private static class Frame {
+        private final Kind kind;
+        private final int offsetX;
+        private final int offsetY;
+        // Where this element's own output goes, and where its children go.
+        // Entries are CanvasElements, PathSlots or GroupSlots.
+        private final List<Object> target;
+        private final List<Object> elements;
+        private Map<String, String> attributes;
+        private StringBuilder text;
+        private BufferedNode node;
+        // A group transform the offsets cannot carry; see SVGParser.parsePlacement
+        private AffineTransform placement;
+
+        private Frame(Kind kind, int offsetX, int offsetY, List<Object> target, List<Object> elements) {
+            this.kind = kind;
+            this.offsetX = offsetX;
+            this.offsetY = offsetY;
+            this.target = target;
+            this.elements = elements;
+        }
+    }
+
+    private static class BufferedNode implements SVGParser.SVGNode {
+        private final String tagName;
+        private final Map<String, String> attributes;
+        private final List<BufferedNode> children = new ArrayList<>();
+
+        private BufferedNode(String tagName, Map<String, String> attributes) {
+            this.tagName = tagName;
+            this.attributes = attributes;
+        }
+
+        @Override
+        public String getAttribute(String name) {
+            return attributes.getOrDefault(name, "");
+        }
+
+        @Override
+        public String getTagName() {
+            return tagName;
+        }
+
+        @Override
+        public List<BufferedNode> getChildElements() {
+            return children;
+        }
+    }
+
+    /** A path read from the document; its geometry is built on the pool. */
+    private static class PathSlot {
+        private final int batch;
+        private final int offsetX;
+        private final int offsetY;
+        private final AffineTransform placement;
+        private Map<String, String> attributes;
+        private PathElement element;
+
+        private PathSlot(int batch, Map<String, String> attributes, int offsetX, int offsetY,
+                         AffineTransform placement) {
+            this.batch = batch;
+            this.attributes = attributes;
+            this.offsetX = offsetX;
+            this.offsetY = offsetY;
+            this.placement = placement;
+        }
+
+        private void build() {
+            Map<String, String> values = attributes;
+            element = SVGParser.createPath(name -> values.getOrDefault(name, ""), offsetX, offsetY);
+            if (element != null && placement != null) {
+                // Baking a transform into a path always gives a path
+                element = (PathElement) TransformBaker.bake(element, placement);
+            }
+            attributes = null;
+        }
+    }
+
+    /** A group that closed while some of its paths were still being built. */
+    private static class GroupSlot {
+        private final String id;
+        private final boolean isClippingMask;
+        private final SVGParser.ClipPathDef clipDef;
+        private final List<Object> children;
+        private final int offsetX;
+        private final int offsetY;
+        private final AffineTransform placement;
+
+        private GroupSlot(String id, boolean isClippingMask, SVGParser.ClipPathDef clipDef,
+                          List<Object> children, int offsetX, int offsetY, AffineTransform placement) {
+            this.id = id;
+            this.isClippingMask = isClippingMask;
+            this.clipDef = clipDef;
+            this.children = children;
+            this.offsetX = offsetX;
+            this.offsetY = offsetY;
+            this.placement = placement;
+        }
+    }
+
+    private static class PathBuilder extends RecursiveAction {
+        private final PathSlot[] slots;
+        private final int from;
+        private final int to;
+
+        private PathBuilder(PathSlot[] slots, int from, int to) {
+            this.slots = slots;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= SPLIT_THRESHOLD) {
+                for (int i = from; i < to; i++) {
+                    slots[i].build();
+                }
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new PathBuilder(slots, from, mid), new PathBuilder(slots, mid, to));
+            }
+        }
+    }
+
+    private final Map<String, SVGParser.ClipPathDef> clipPaths = new HashMap<>();
+    private final SymbolTable symbols = new SymbolTable();
+    // Reused to collect the elements built directly on the parsing thread
+    private final List<CanvasElement> built = new ArrayList<>(1);
+    private List<PathSlot> batch = new ArrayList<>();
+    private ForkJoinTask<?> inFlight;
+    private int batchCount;
+    // Every slot with batch < builtBatches has been built
+    private int builtBatches;
+
+    private StreamingSVGParser() {
+    }
+
+    static List<CanvasElement> parse(File svgFile) throws IOException, XMLStreamException {
+        return new StreamingSVGParser().read(svgFile);
+    }
+
+    private List<CanvasElement> read(File svgFile) throws IOException, XMLStreamException {
+        List<Object> elements = new ArrayList<>();
+
+        try (InputStream in = open(svgFile)) {
+            XMLStreamReader reader = createFactory().createXMLStreamReader(svgFile.toURI().toString(), in);
+            try {
+                Deque<Frame> stack = new ArrayDeque<>();
+                stack.push(new Frame(Kind.CONTENT, 0, 0, elements, elements));
+                while (reader.hasNext()) {
+                    switch (reader.next()) {
+                        case XMLStreamConstants.START_ELEMENT:
+                            stack.push(startElement(reader, stack.peek()));
+                            break;
+                        case XMLStreamConstants.END_ELEMENT:
+                            endElement(stack.pop());
+                            break;
+                        case XMLStreamConstants.CHARACTERS:
+                        case XMLStreamConstants.CDATA:
+                        case XMLStreamConstants.SPACE:
+                            StringBuilder text = stack.peek().text;
+                            if (text != null) {
+                                text.append(reader.getText());
+                            }
+                            break;
+                        default:
+                            break;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        submitBatch();
+        awaitBatch();
+        return resolve(elements);
+    }
+
+    private Frame startElement(XMLStreamReader reader, Frame parent) {
+        String tagName = reader.getLocalName().toLowerCase();
+
+        switch (parent.kind) {
+            case SKIP:
+            case TEXT: {
+                if (parent.text == null) return SKIP;
+                // tspan and friends only contribute their characters
+                Frame span = new Frame(Kind.SKIP, 0, 0, null, null);
+                span.text = parent.text;
+                return span;
+            }
+            case DEFS:
+            case CLIP_PATH:
+            case BUFFERED: {
+                if (!CLIP_TAGS.contains(tagName)) return SKIP;
+                Frame frame = new Frame(Kind.BUFFERED, 0, 0, null, null);
+                frame.node = new BufferedNode(tagName, readAttributes(reader));
+                parent.node.children.add(frame.node);
+                return frame;
+            }
+            default:
+                break;
+        }
+
+        SVGParser.Attributes attributes = name -> {
+            String value = reader.getAttributeValue(null, name);
+            return value != null ? value : "";
+        };
+        String transform = attributes.getAttribute("transform");
+        AffineTransform placement = SVGParser.parsePlacement(tagName, transform, parent.offsetX, parent.offsetY);
+        int offsetX = 0;
+        int offsetY = 0;
+        if (placement == null) {
+            int[] translation = SVGParser.parseTransform(transform);
+            offsetX = parent.offsetX + translation[0];
+            offsetY = parent.offsetY + translation[1];
+        }
+
+        switch (tagName) {
+            case "rect":
+                SVGParser.parseRect(attributes, built, offsetX, offsetY);
+                takeBuilt(parent.elements, placement);
+                return SKIP;
+            case "circle":
+                SVGParser.parseCircle(attributes, built, offsetX, offsetY);
+                takeBuilt(parent.elements, placement);
+                return SKIP;
+            case "ellipse":
+                SVGParser.parseEllipse(attributes, built, offsetX, offsetY);
+                takeBuilt(parent.elements, placement);
+                return SKIP;
+            case "path": {
+                PathSlot slot = new PathSlot(batchCount, readAttributes(reader), offsetX, offsetY, placement);
+                parent.elements.add(slot);
+                batch.add(slot);
+                if (batch.size() >= BATCH_SIZE) {
+                    submitBatch();
+                }
+                return SKIP;
+            }
+            case "text": {
+                Frame frame = new Frame(Kind.TEXT, offsetX, offsetY, parent.elements, null);
+                frame.attributes = readAttributes(reader);
+                frame.text = new StringBuilder();
+                return frame;
+            }
+            case "g": {
+                Frame frame = new Frame(Kind.GROUP, offsetX, offsetY, parent.elements, new ArrayList<>());
+                frame.attributes = readAttributes(reader);
+                frame.placement = placement;
+                return frame;
+            }
+            case "use":
+                // The href is usually in the xlink namespace
+                SVGParser.parseUse(name -> name.equals("href") ? readHref(reader) : attributes.getAttribute(name),
+                    built, offsetX, offsetY, symbols);
+                takeBuilt(parent.elements, placement);
+                return SKIP;
+            case "svg":
+                return new Frame(Kind.CONTENT, offsetX, offsetY, parent.elements, parent.elements);
+            case "defs":
+            case "symbol": {
+                Frame frame = new Frame(Kind.DEFS, offsetX, offsetY, null, null);
+                frame.node = new BufferedNode(tagName, readAttributes(reader));
+                return frame;
+            }
+            case "clippath": {
+                // parseClipPath applies the clipPath's own transform
+                Frame frame = new Frame(Kind.CLIP_PATH, parent.offsetX, parent.offsetY, null, null);
+                frame.node = new BufferedNode(tagName, readAttributes(reader));
+                return frame;
+            }
+            default:
+                return SKIP;
+        }
+    }
+
+    private void endElement(Frame frame) {
+        switch (frame.kind) {
+            case GROUP: {
+                // Look the clip path up now, as the DOM importer would
+                String clipPathRef = SVGParser.parseClipPathRef(frame.attributes.getOrDefault("clip-path", ""));
+                boolean isClippingMask = clipPathRef != null && !clipPathRef.isEmpty();
+                GroupSlot slot = new GroupSlot(frame.attributes.getOrDefault("id", ""), isClippingMask,
+                    isClippingMask ? clipPaths.get(clipPathRef) : null, frame.elements, frame.offsetX, frame.offsetY,
+                    frame.placement);
+                if (isBuilt(slot)) {
+                    GroupElement group = createGroup(slot);
+                    if (group != null) {
+                        frame.target.add(group);
+                    }
+                } else {
+                    frame.target.add(slot);
+                }
+                break;
+            }
+            case TEXT: {
+                Map<String, String> attributes = frame.attributes;
+                SVGParser.parseText(name -> attributes.getOrDefault(name, ""), frame.text.toString(),
+                    built, frame.offsetX, frame.offsetY);
+                takeBuilt(frame.target, null);
+                break;
+            }
+            case DEFS:
+                SVGParser.parseDefsElement(frame.node, clipPaths, symbols, frame.offsetX, frame.offsetY);
+                break;
+            case CLIP_PATH:
+                SVGParser.parseClipPath(frame.node, clipPaths, frame.offsetX, frame.offsetY);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void takeBuilt(List<Object> target, AffineTransform placement) {
+        if (placement == null) {
+            target.addAll(built);
+        } else {
+            for (CanvasElement element : built) {
+                target.add(TransformBaker.bake(element, placement));
+            }
+        }
+        built.clear();
+    }
+
+    private void submitBatch() {
+        if (batch.isEmpty()) return;
+        // Keep at most one batch on the pool so descriptors stay bounded
+        awaitBatch();
+        PathSlot[] slots = batch.toArray(new PathSlot[0]);
+        inFlight = ForkJoinPool.commonPool().submit(new PathBuilder(slots, 0, slots.length));
+        batch = new ArrayList<>();
+        batchCount++;
+    }
+
+    private void awaitBatch() {
+        if (inFlight == null) return;
+        inFlight.join();
+        inFlight = null;
+        builtBatches = batchCount;
+    }
+
+    private boolean isBuilt(Object item) {
+        if (item instanceof PathSlot) {
+            return ((PathSlot) item).batch < builtBatches;
+        }
+        if (item instanceof GroupSlot) {
+            for (Object child : ((GroupSlot) item).children) {
+                if (!isBuilt(child)) return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Replace built slots with their elements. Paths that failed to parse
+     * and groups left empty are dropped, as in the DOM importer.
+     */
+    private List<CanvasElement> resolve(List<Object> items) {
+        List<CanvasElement> result = new ArrayList<>(items.size());
+        for (Object item : items) {
+            CanvasElement element;
+            if (item instanceof PathSlot) {
+                element = ((PathSlot) item).element;
+            } else if (item instanceof GroupSlot) {
+                element = createGroup((GroupSlot) item);
+            } else {
+                element = (CanvasElement) item;
+            }
+            if (element != null) {
+                result.add(element);
+            }
+        }
+        return result;
+    }
+
+    private GroupElement createGroup(GroupSlot slot) {
+        try {
+            GroupElement group = SVGParser.createGroup(slot.id, slot.isClippingMask, slot.clipDef,
+                resolve(slot.children), slot.offsetX, slot.offsetY);
+            if (group != null && slot.placement != null) {
+                group.transformBy(slot.placement);
+            }
+            return group;
+        } catch (Exception e) {
+            System.err.println("Error parsing group element: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static Map<String, String> readAttributes(XMLStreamReader reader) {
+        Map<String, String> attributes = new HashMap<>();
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            String prefix = reader.getAttributePrefix(i);
+            if (prefix == null || prefix.isEmpty()) {
+                attributes.put(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+            }
+        }
+        return attributes;
+    }
+
+    private static String readHref(XMLStreamReader reader) {
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            if (reader.getAttributeLocalName(i).equals("href")) {
+                return reader.getAttributeValue(i);
+            }
+        }
+        return "";
+    }
+
+    private static XMLInputFactory createFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        // Internal entities still expand, but the external SVG DTD is never fetched
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setXMLResolver((publicId, systemId, baseUri, namespace) -> new ByteArrayInputStream(new byte[0]));
+        return factory;
+    }
+
+    private static InputStream open(File svgFile) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(svgFile), 64 * 1024);
+        // .svgz files are gzip-compressed SVG
+        in.mark(2);
+        int b0 = in.read();
+        int b1 = in.read();
+        in.reset();
+        if (b0 == 0x1f && b1 == 0x8b) {
+            return new GZIPInputStream(in, 64 * 1024);
+        }
+        return in;
+    }
+}
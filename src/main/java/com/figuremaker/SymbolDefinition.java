@@ -0,0 +1,99 @@
+package com.figuremaker;
+
+import java.awt.*;
+import java.awt.geom.Path2D;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Shapes and styles shared by every InstanceElement that places them, such
+ * as an SVG symbol or a marker many <use> elements refer to. A definition
+ * never changes once built, so any number of instances can share it. Shapes
+ * are laid out with their combined bounds starting at (0, 0).
+ */
+public final class SymbolDefinition {
+    private final List<Part> parts;
+    private final double width;
+    private final double height;
+    private final float maxStrokeWidth;
+
+    /** One shape of a definition and how it is painted. */
+    public static final class Part {
+        private final Path2D.Double shape;
+        private final Color fillColor;
+        private final Color strokeColor;
+        private final float strokeWidth;
+
+        public Part(Path2D.Double shape, Color fillColor, Color strokeColor, float strokeWidth) {
+            this.shape = shape;
+            this.fillColor = fillColor;
+            this.strokeColor = strokeColor;
+            this.strokeWidth = strokeWidth;
+        }
+
+        public Path2D.Double getShape() {
+            return shape;
+        }
+
+        public Color getFillColor() {
+            return fillColor;
+        }
+
+        public Color getStrokeColor() {
+            return strokeColor;
+        }
+
+        public float getStrokeWidth() {
+            return strokeWidth;
+        }
+
+        void draw(Graphics2D g2d) {
+            if (fillColor != null) {
+                g2d.setColor(fillColor);
+                g2d.fill(shape);
+            }
+            if (strokeColor != null && strokeWidth > 0) {
+                g2d.setColor(strokeColor);
+                g2d.setStroke(GraphicsCache.stroke(strokeWidth));
+                g2d.draw(shape);
+            }
+        }
+    }
+
+    public SymbolDefinition(List<Part> parts) {
+        this.parts = Collections.unmodifiableList(new ArrayList<>(parts));
+        double maxX = 0;
+        double maxY = 0;
+        float maxStroke = 0;
+        for (Part part : this.parts) {
+            Rectangle2D bounds = part.shape.getBounds2D();
+            maxX = Math.max(maxX, bounds.getMaxX());
+            maxY = Math.max(maxY, bounds.getMaxY());
+            if (part.strokeColor != null) {
+                maxStroke = Math.max(maxStroke, part.strokeWidth);
+            }
+        }
+        this.width = maxX;
+        this.height = maxY;
+        this.maxStrokeWidth = maxStroke;
+    }
+
+    public List<Part> getParts() {
+        return parts;
+    }
+
+    public double getWidth() {
+        return width;
+    }
+
+    public double getHeight() {
+        return height;
+    }
+
+    /** Widest stroke drawn by any part, or 0 if none is stroked. */
+    public float getMaxStrokeWidth() {
+        return maxStrokeWidth;
+    }
+}
@@ -0,0 +1,200 @@
+package com.figuremaker;
+
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Path2D;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The elements an SVG's <use> elements can refer to (symbols and anything
+ * with an id inside defs), collected during import. Each is turned into a
+ * SymbolDefinition the first time it is used, once per distinct set of
+ * paint attributes on the <use>, and every later <use> just places the
+ * same definition.
+ */
+final class SymbolTable {
+    // Paint attributes a <use> passes down to the content it places
+    private static final String[] INHERITED = {
+        "fill", "stroke", "stroke-width", "fill-opacity", "stroke-opacity"};
+
+    private final Map<String, SVGParser.SVGNode> nodes = new HashMap<>();
+    private final Map<String, Entry> definitions = new HashMap<>();
+
+    /** A built definition and where its (0, 0) lies in the referenced element. */
+    private static final class Entry {
+        private final SymbolDefinition definition;
+        private final double originX;
+        private final double originY;
+
+        private Entry(SymbolDefinition definition, double originX, double originY) {
+            this.definition = definition;
+            this.originX = originX;
+            this.originY = originY;
+        }
+    }
+
+    void define(SVGParser.SVGNode node) {
+        String id = node.getAttribute("id");
+        if (id != null && !id.isEmpty()) {
+            nodes.put(id, node);
+        }
+    }
+
+    /**
+     * The instance a <use> element places, or null if it refers to nothing
+     * known (or to something with nothing to draw).
+     */
+    InstanceElement instantiate(SVGParser.Attributes use, int offsetX, int offsetY) {
+        String href = use.getAttribute("href");
+        if (href.isEmpty()) {
+            href = use.getAttribute("xlink:href");
+        }
+        if (!href.startsWith("#")) return null;
+        String id = href.substring(1);
+        SVGParser.SVGNode node = nodes.get(id);
+        if (node == null) return null;
+
+        StringBuilder key = new StringBuilder(id);
+        for (String name : INHERITED) {
+            key.append('\n').append(use.getAttribute(name));
+        }
+        key.append('\n').append(use.getAttribute("style"));
+        Entry entry = definitions.computeIfAbsent(key.toString(), k -> build(node, use));
+        if (entry.definition == null) return null;
+
+        double x = SVGParser.parseLength(use.getAttribute("x"));
+        double y = SVGParser.parseLength(use.getAttribute("y"));
+        return InstanceElement.place(entry.definition, x + offsetX + entry.originX, y + offsetY + entry.originY);
+    }
+
+    private static Entry build(SVGParser.SVGNode node, SVGParser.Attributes use) {
+        List<SymbolDefinition.Part> parts = new ArrayList<>();
+        collect(node, use, new AffineTransform(), parts);
+        if (parts.isEmpty()) {
+            return new Entry(null, 0, 0);
+        }
+
+        Rectangle2D bounds = null;
+        for (SymbolDefinition.Part part : parts) {
+            Rectangle2D partBounds = part.getShape().getBounds2D();
+            bounds = bounds == null ? partBounds : bounds.createUnion(partBounds);
+        }
+        // Move the shapes so the definition starts at (0, 0)
+        AffineTransform shift = AffineTransform.getTranslateInstance(-bounds.getX(), -bounds.getY());
+        List<SymbolDefinition.Part> shifted = new ArrayList<>(parts.size());
+        for (SymbolDefinition.Part part : parts) {
+            shifted.add(new SymbolDefinition.Part(new Path2D.Double(part.getShape(), shift),
+                part.getFillColor(), part.getStrokeColor(), part.getStrokeWidth()));
+        }
+        return new Entry(new SymbolDefinition(shifted), bounds.getX(), bounds.getY());
+    }
+
+    private static void collect(SVGParser.SVGNode node, SVGParser.Attributes parent,
+                                AffineTransform transform, List<SymbolDefinition.Part> parts) {
+        SVGParser.Attributes attributes = inherit(node, parent);
+        AffineTransform at = new AffineTransform(transform);
+        at.concatenate(SVGParser.parseTransformList(node.getAttribute("transform")));
+
+        List<CanvasElement> built = new ArrayList<>(1);
+        switch (node.getTagName().toLowerCase()) {
+            case "symbol":
+            case "g":
+                for (SVGParser.SVGNode child : node.getChildElements()) {
+                    collect(child, attributes, at, parts);
+                }
+                return;
+            case "rect":
+                SVGParser.parseRect(attributes, built, 0, 0);
+                break;
+            case "circle":
+                SVGParser.parseCircle(attributes, built, 0, 0);
+                break;
+            case "ellipse":
+                SVGParser.parseEllipse(attributes, built, 0, 0);
+                break;
+            case "path":
+                SVGParser.parsePath(attributes, built, 0, 0);
+                break;
+            default:
+                return;
+        }
+
+        // Strokes scale with the shapes
+        float scale = (float) TransformBaker.lengthScale(at);
+        for (CanvasElement element : built) {
+            if (element instanceof RectElement) {
+                RectElement rect = (RectElement) element;
+                parts.add(new SymbolDefinition.Part(
+                    new Path2D.Double(new Rectangle2D.Double(rect.getX(), rect.getY(), rect.getWidth(), rect.getHeight()), at),
+                    rect.getFillColor(), rect.getStrokeColor(), rect.getStrokeWidth() * scale));
+            } else if (element instanceof CircleElement) {
+                CircleElement circle = (CircleElement) element;
+                parts.add(new SymbolDefinition.Part(
+                    new Path2D.Double(new Ellipse2D.Double(circle.getX(), circle.getY(), circle.getWidth(), circle.getHeight()), at),
+                    circle.getFillColor(), circle.getStrokeColor(), circle.getStrokeWidth() * scale));
+            } else if (element instanceof PathElement) {
+                PathElement path = (PathElement) element;
+                AffineTransform placed = new AffineTransform(at);
+                placed.translate(path.getX(), path.getY());
+                parts.add(new SymbolDefinition.Part(new Path2D.Double(path.getPath(), placed),
+                    path.getFillColor(), path.getStrokeColor(), path.getStrokeWidth() * scale));
+            }
+        }
+    }
+
+    /**
+     * The node's attributes, with paint attributes it leaves unset taken
+     * from the parent (the <use>, or an enclosing group).
+     */
+    private static SVGParser.Attributes inherit(SVGParser.SVGNode node, SVGParser.Attributes parent) {
+        return name -> {
+            String value = node.getAttribute(name);
+            if (name.equals("style")) {
+                return inheritStyle(node, parent.getAttribute("style"), value);
+            }
+            if (value.isEmpty() && isInherited(name)) {
+                return parent.getAttribute(name);
+            }
+            return value;
+        };
+    }
+
+    /**
+     * Parent style properties the node does not set itself, followed by the
+     * node's own style, so each property is given at most once.
+     */
+    private static String inheritStyle(SVGParser.SVGNode node, String parentStyle, String style) {
+        if (parentStyle.isEmpty()) return style;
+        StringBuilder merged = new StringBuilder();
+        for (String property : parentStyle.split(";")) {
+            String[] keyValue = property.split(":");
+            if (keyValue.length != 2) continue;
+            String key = keyValue[0].trim();
+            if (isInherited(key) && node.getAttribute(key).isEmpty() && !hasProperty(style, key)) {
+                merged.append(property).append(';');
+            }
+        }
+        return merged.append(style).toString();
+    }
+
+    private static boolean hasProperty(String style, String key) {
+        for (String property : style.split(";")) {
+            String[] keyValue = property.split(":");
+            if (keyValue.length == 2 && keyValue[0].trim().equals(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isInherited(String name) {
+        for (String inherited : INHERITED) {
+            if (inherited.equals(name)) return true;
+        }
+        return false;
+    }
+}
@@ -14,10 +14,14 @@ public class TextElement extends CanvasElement {
     private JTextArea textArea;
     private boolean editing;
     
+    // Layout cached between paints; cleared when the text or font changes
+    private String[] lines;
+    private FontMetrics metrics;
+    
     public TextElement(int x, int y) {
         super(x, y, DEFAULT_WIDTH, DEFAULT_HEIGHT);
         this.text = DEFAULT_TEXT;
-        this.font = new Font("Arial", Font.PLAIN, 14);
+        this.font = GraphicsCache.font("Arial", Font.PLAIN, 14);
         this.editing = false;
     }
     
@@ -38,7 +42,7 @@ public class TextElement extends CanvasElement {
         
         // Draw border
         g2d.setColor(selected ? Color.BLUE : Color.GRAY);
-        g2d.setStroke(new BasicStroke(selected ? 2 : 1));
+        g2d.setStroke(GraphicsCache.stroke(selected ? 2 : 1));
         g2d.drawRect(x, y, width, height);
         
         if (!editing) {
@@ -46,12 +50,11 @@ public class TextElement extends CanvasElement {
             g2d.setColor(Color.BLACK);
             g2d.setFont(font);
             
-            FontMetrics fm = g2d.getFontMetrics();
-            String[] lines = text.split("\n");
+            FontMetrics fm = getMetrics();
             int lineHeight = fm.getHeight();
             int textY = y + fm.getAscent() + 5;
             
-            for (String line : lines) {
+            for (String line : getLines()) {
                 g2d.drawString(line, x + 5, textY);
                 textY += lineHeight;
             }
@@ -73,12 +76,23 @@ public class TextElement extends CanvasElement {
         return "text";
     }
     
+    @Override
+    public CanvasElement copy() {
+        // The copy holds the committed text, never the live editor
+        TextElement copy = (TextElement) super.copy();
+        copy.textArea = null;
+        copy.editing = false;
+        return copy;
+    }
+    
     public String getText() {
         return text;
     }
     
     public void setText(String text) {
         this.text = text;
+        lines = null;
+        invalidate();
     }
     
     public Font getFont() {
@@ -87,6 +101,22 @@ public class TextElement extends CanvasElement {
     
     public void setFont(Font font) {
         this.font = font;
+        metrics = null;
+        invalidate();
+    }
+    
+    String[] getLines() {
+        if (lines == null) {
+            lines = TextMetrics.lines(text);
+        }
+        return lines;
+    }
+    
+    FontMetrics getMetrics() {
+        if (metrics == null) {
+            metrics = TextMetrics.metrics(font);
+        }
+        return metrics;
     }
     
     public void startEditing(JPanel canvas) {
@@ -110,12 +140,17 @@ public class TextElement extends CanvasElement {
     
     public void stopEditing(JPanel canvas) {
         if (editing && textArea != null) {
-            text = textArea.getText();
+            String oldText = text;
+            setText(textArea.getText());
             canvas.remove(textArea);
             textArea = null;
             editing = false;
             canvas.revalidate();
             canvas.repaint();
+            
+            if (canvas instanceof FigureCanvas && !text.equals(oldText)) {
+                ((FigureCanvas) canvas).textEdited(this, oldText);
+            }
         }
     }
     
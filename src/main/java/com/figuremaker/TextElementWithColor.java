@@ -20,7 +20,7 @@ public class TextElementWithColor extends TextElement {
         
         // Draw border
         g2d.setColor(selected ? Color.BLUE : Color.GRAY);
-        g2d.setStroke(new BasicStroke(selected ? 2 : 1));
+        g2d.setStroke(GraphicsCache.stroke(selected ? 2 : 1));
         g2d.drawRect(x, y, width, height);
         
         if (!isEditing()) {
@@ -28,12 +28,11 @@ public class TextElementWithColor extends TextElement {
             g2d.setColor(textColor != null ? textColor : Color.BLACK);
             g2d.setFont(getFont());
             
-            FontMetrics fm = g2d.getFontMetrics();
-            String[] lines = getText().split("\n");
+            FontMetrics fm = getMetrics();
             int lineHeight = fm.getHeight();
             int textY = y + fm.getAscent() + 5;
             
-            for (String line : lines) {
+            for (String line : getLines()) {
                 g2d.drawString(line, x + 5, textY);
                 textY += lineHeight;
             }
@@ -56,5 +55,6 @@ public class TextElementWithColor extends TextElement {
     
     public void setTextColor(Color textColor) {
         this.textColor = textColor;
+        invalidate();
     }
 }
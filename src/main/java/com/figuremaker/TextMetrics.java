@@ -0,0 +1,48 @@
+package com.figuremaker;
+
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Shared text measuring for import and paint. All measurements are taken in
+ * one device-independent FontRenderContext, that of a graphics context with
+ * an identity transform, no antialiasing and integer metrics, so a text
+ * element lays out the same on screen at any zoom, in print and in export.
+ * Metrics are cached per font.
+ */
+final class TextMetrics {
+    private static final int MAX_ENTRIES = 1024;
+    private static final String[] NO_LINES = new String[0];
+
+    // Never drawn on; only asked for metrics, which is safe from any thread
+    private static final Graphics2D MEASURE =
+        new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB).createGraphics();
+    private static final Map<Font, FontMetrics> metrics = new ConcurrentHashMap<>();
+
+    private TextMetrics() {
+    }
+
+    static FontMetrics metrics(Font font) {
+        FontMetrics fm = metrics.get(font);
+        if (fm == null) {
+            fm = MEASURE.getFontMetrics(font);
+            if (metrics.size() < MAX_ENTRIES) {
+                metrics.putIfAbsent(font, fm);
+            }
+        }
+        return fm;
+    }
+
+    static int stringWidth(Font font, String text) {
+        return metrics(font).stringWidth(text);
+    }
+
+    /** Split text into lines, as String.split("\n") does. */
+    static String[] lines(String text) {
+        return text == null ? NO_LINES : text.split("\n");
+    }
+}
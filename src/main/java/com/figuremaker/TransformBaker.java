@@ -0,0 +1,96 @@
+package com.figuremaker;
+
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Path2D;
+import java.awt.geom.Rectangle2D;
+
+/**
+ * Places an element through an affine transform, for SVG import and for
+ * ungrouping a transformed group. Groups take the transform on as their own,
+ * whole-unit translations just move the element, and shapes are turned into
+ * paths with the transform applied to their geometry. Anything else is
+ * wrapped in a group carrying the transform, so it still draws exactly.
+ */
+final class TransformBaker {
+    private TransformBaker() {
+    }
+
+    /**
+     * The element as placed by the transform. Groups and elements that only
+     * move are changed in place; other elements are replaced.
+     */
+    static CanvasElement bake(CanvasElement element, AffineTransform at) {
+        if (at.isIdentity()) {
+            return element;
+        }
+        if (element instanceof GroupElement) {
+            ((GroupElement) element).transformBy(at);
+            return element;
+        }
+        if (isWholeTranslation(at)) {
+            element.move((int) at.getTranslateX(), (int) at.getTranslateY());
+            return element;
+        }
+
+        if (element instanceof PathElement) {
+            PathElement path = (PathElement) element;
+            Path2D.Double outline = new Path2D.Double(path.getPath(),
+                AffineTransform.getTranslateInstance(path.getX(), path.getY()));
+            return toPath(outline, at, path.getFillColor(), path.getStrokeColor(), path.getStrokeWidth(),
+                path.getPartEnds());
+        }
+        if (element instanceof RectElement) {
+            RectElement rect = (RectElement) element;
+            Shape outline = new Rectangle2D.Double(rect.getX(), rect.getY(), rect.getWidth(), rect.getHeight());
+            return toPath(new Path2D.Double(outline), at, rect.getFillColor(), rect.getStrokeColor(),
+                rect.getStrokeWidth(), null);
+        }
+        if (element instanceof CircleElement) {
+            CircleElement circle = (CircleElement) element;
+            Shape outline = new Ellipse2D.Double(circle.getX(), circle.getY(), circle.getWidth(), circle.getHeight());
+            return toPath(new Path2D.Double(outline), at, circle.getFillColor(), circle.getStrokeColor(),
+                circle.getStrokeWidth(), null);
+        }
+        if (element instanceof InstanceElement && at.getType() == AffineTransform.TYPE_TRANSLATION) {
+            InstanceElement instance = (InstanceElement) element;
+            return InstanceElement.place(instance.getDefinition(),
+                instance.getX() + instance.getOffsetX() + at.getTranslateX(),
+                instance.getY() + instance.getOffsetY() + at.getTranslateY());
+        }
+
+        GroupElement wrapper = new GroupElement(element.getX(), element.getY(), element.getWidth(), element.getHeight());
+        wrapper.addChild(element);
+        wrapper.transformBy(at);
+        return wrapper;
+    }
+
+    /** True for transforms that move by whole units only, including none at all. */
+    static boolean isWholeTranslation(AffineTransform at) {
+        int type = at.getType();
+        return (type == AffineTransform.TYPE_IDENTITY || type == AffineTransform.TYPE_TRANSLATION)
+            && at.getTranslateX() == Math.rint(at.getTranslateX())
+            && at.getTranslateY() == Math.rint(at.getTranslateY());
+    }
+
+    /**
+     * How much the transform scales lengths on average, for stroke widths.
+     * Exact for uniform scales; a skew or uneven scale is averaged out.
+     */
+    static double lengthScale(AffineTransform at) {
+        return Math.sqrt(Math.abs(at.getDeterminant()));
+    }
+
+    private static PathElement toPath(Path2D.Double outline, AffineTransform at, Color fill,
+                                      Color stroke, float strokeWidth, int[] partEnds) {
+        outline.transform(at);
+        // Rebase on the shape's own bounds, as the importer does
+        Rectangle bounds = outline.getBounds();
+        outline.transform(AffineTransform.getTranslateInstance(-bounds.x, -bounds.y));
+        return new PathElement(outline, bounds.x, bounds.y, bounds.width, bounds.height,
+            fill, stroke, (float) (strokeWidth * lengthScale(at)), partEnds);
+    }
+}
@@ -0,0 +1,132 @@
+package com.figuremaker;
+
+import java.awt.image.BufferedImage;
+import javax.swing.undo.UndoManager;
+import javax.swing.undo.UndoableEdit;
+
+/**
+ * Undo manager with a memory budget as well as a step limit. Edits record
+ * deltas and hold on to the elements they touch rather than copies, so
+ * pixels and geometry are shared with the document; a move costs a few
+ * dozen bytes however large the figure. Once the edits' estimated sizes
+ * exceed the budget the oldest are dropped, though the newest edit is
+ * always kept.
+ */
+public class UndoHistory extends UndoManager {
+    public static final long DEFAULT_BUDGET_BYTES = 64L * 1024 * 1024;
+    public static final int DEFAULT_STEP_LIMIT = 1000;
+
+    // Rough size of an edit object and of an element held by one
+    private static final long EDIT_BYTES = 48;
+    private static final long ELEMENT_BYTES = 96;
+
+    /**
+     * An edit that can tell how much memory it keeps alive. The figure must
+     * not change while the edit is in the history.
+     */
+    public interface Sized {
+        long getMemoryBytes();
+    }
+
+    private long budgetBytes;
+    private long usedBytes;
+
+    public UndoHistory() {
+        this(DEFAULT_BUDGET_BYTES);
+    }
+
+    public UndoHistory(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+        setLimit(DEFAULT_STEP_LIMIT);
+    }
+
+    @Override
+    public synchronized boolean addEdit(UndoableEdit edit) {
+        boolean added = super.addEdit(edit);
+        if (added) {
+            usedBytes += sizeOf(edit);
+            trimForBudget();
+        }
+        return added;
+    }
+
+    @Override
+    public synchronized void discardAllEdits() {
+        super.discardAllEdits();
+        usedBytes = 0;
+    }
+
+    @Override
+    protected void trimEdits(int from, int to) {
+        for (int i = from; i <= to; i++) {
+            usedBytes -= sizeOf(edits.get(i));
+        }
+        super.trimEdits(from, to);
+    }
+
+    /** Drop an edit that no longer does anything, wherever it is in the history. */
+    public synchronized void removeEdit(UndoableEdit edit) {
+        int index = edits.indexOf(edit);
+        if (index >= 0) {
+            trimEdits(index, index);
+        }
+    }
+
+    public synchronized void setBudgetBytes(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+        trimForBudget();
+    }
+
+    public synchronized long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public synchronized int getEditCount() {
+        return edits.size();
+    }
+
+    private void trimForBudget() {
+        int count = 0;
+        long remaining = usedBytes;
+        while (remaining > budgetBytes && count < edits.size() - 1) {
+            remaining -= sizeOf(edits.get(count));
+            count++;
+        }
+        if (count > 0) {
+            trimEdits(0, count - 1);
+        }
+    }
+
+    static long sizeOf(UndoableEdit edit) {
+        return edit instanceof Sized ? ((Sized) edit).getMemoryBytes() : EDIT_BYTES;
+    }
+
+    /**
+     * Rough memory an element would keep alive if only the history held
+     * it: mostly image pixels and encoded data.
+     */
+    static long estimateBytes(CanvasElement element) {
+        long bytes = ELEMENT_BYTES;
+        if (element instanceof ImageElement) {
+            ImageElement image = (ImageElement) element;
+            BufferedImage pixels = image.getImage();
+            if (pixels != null) {
+                bytes += (long) pixels.getWidth() * pixels.getHeight() * 4;
+            }
+            bytes += image.getEncodedLength();
+        } else if (element instanceof GroupElement) {
+            for (CanvasElement child : ((GroupElement) element).getChildren()) {
+                bytes += estimateBytes(child);
+            }
+        } else if (element instanceof MarkerCloudElement) {
+            bytes += (long) ((MarkerCloudElement) element).getPoints().length * 4;
+        } else if (element instanceof PrimitiveLayerElement) {
+            bytes += (long) ((PrimitiveLayerElement) element).getShapeCount() * 29;
+        }
+        return bytes;
+    }
+}
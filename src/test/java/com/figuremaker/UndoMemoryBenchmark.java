@@ -0,0 +1,150 @@
+package com.figuremaker;
+
+import java.awt.Color;
+import java.awt.event.InputEvent;
+import java.awt.event.MouseEvent;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import javax.swing.SwingUtilities;
+
+/**
+ * Measures what each move costs the undo history on a 100k-element
+ * document. Moves are made by dragging with mouse events, the way a user
+ * would. The heap should grow by the same small amount per step however
+ * many steps have been taken. Not run by the build; run it by hand:
+ *
+ * <pre>
+ * mvn -q test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ * java -cp target/classes:target/test-classes:$(cat target/cp.txt) com.figuremaker.UndoMemoryBenchmark
+ * </pre>
+ */
+public class UndoMemoryBenchmark {
+    private static final int ELEMENTS = 100_000;
+    private static final int COLUMNS = 400;
+    private static final int SPACING = 25;
+    private static final int ROUNDS = 4;
+    private static final int MOVES_PER_ROUND = 5000;
+
+    private final FigureCanvas canvas = new FigureCanvas();
+    private final int[] xs = new int[ELEMENTS];
+    private final int[] ys = new int[ELEMENTS];
+
+    public static void main(String[] args) throws Exception {
+        File file = File.createTempFile("undo-benchmark", ".fmk");
+        file.deleteOnExit();
+        FigureFile.save(createDocument(), file);
+        SwingUtilities.invokeAndWait(() -> {
+            UndoMemoryBenchmark benchmark = new UndoMemoryBenchmark();
+            try {
+                benchmark.run(file);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        System.exit(0);
+    }
+
+    // Plain shapes and small groups on a grid, so every element can be found by position
+    private static List<CanvasElement> createDocument() {
+        List<CanvasElement> elements = new ArrayList<>(ELEMENTS);
+        Random random = new Random(5);
+        for (int i = 0; i < ELEMENTS; i++) {
+            int x = (i % COLUMNS) * SPACING;
+            int y = (i / COLUMNS) * SPACING;
+            if (i % 3 == 0) {
+                GroupElement group = new GroupElement(x, y, 20, 20);
+                group.addChild(new RectElement(x, y, 10, 10, Color.RED, null, 0));
+                group.addChild(new CircleElement(x + 10, y + 10, 10, 10, Color.BLUE, Color.BLACK, 1));
+                elements.add(group);
+            } else {
+                elements.add(new RectElement(x, y, 20, 20, new Color(random.nextInt()), Color.BLACK, 1));
+            }
+        }
+        return elements;
+    }
+
+    private void run(File file) throws Exception {
+        canvas.loadFromFile(file);
+        // The crash journal queues snapshots on its own thread, which would
+        // swamp the history's share of the heap
+        canvas.getEditJournal().discard();
+        for (int i = 0; i < ELEMENTS; i++) {
+            xs[i] = (i % COLUMNS) * SPACING;
+            ys[i] = (i / COLUMNS) * SPACING;
+        }
+        UndoHistory history = canvas.getUndoHistory();
+        // Keep every step, so growth shows up rather than being trimmed
+        history.setLimit(Integer.MAX_VALUE);
+        history.setBudgetBytes(Long.MAX_VALUE);
+        long start = fingerprint();
+
+        // The first round also pays for one-off allocations, so growth is
+        // measured from its end
+        Random random = new Random(7);
+        long lastHeap = 0;
+        int moves = 0;
+        for (int round = 0; round <= ROUNDS; round++) {
+            long startTime = System.nanoTime();
+            for (int i = 0; i < MOVES_PER_ROUND; i++) {
+                move(random.nextInt(ELEMENTS), 3, -2);
+            }
+            double msPerMove = (System.nanoTime() - startTime) / 1e6 / MOVES_PER_ROUND;
+            moves += MOVES_PER_ROUND;
+            long heap = usedHeap();
+            if (round > 0) {
+                System.out.printf("moves=%d edits=%d heap +%.0f B/move, estimated %d B/move, %.3f ms/move%n",
+                    moves, history.getEditCount(), (heap - lastHeap) / (double) MOVES_PER_ROUND,
+                    history.getUsedBytes() / moves, msPerMove);
+            }
+            lastHeap = heap;
+        }
+
+        long moved = fingerprint();
+        long startTime = System.nanoTime();
+        while (history.canUndo()) {
+            canvas.undo();
+        }
+        System.out.printf("undo all: %.0f ms, restored=%s%n", (System.nanoTime() - startTime) / 1e6,
+            fingerprint() == start);
+        startTime = System.nanoTime();
+        while (history.canRedo()) {
+            canvas.redo();
+        }
+        System.out.printf("redo all: %.0f ms, restored=%s%n", (System.nanoTime() - startTime) / 1e6,
+            fingerprint() == moved);
+    }
+
+    // Drag an element by its middle
+    private void move(int index, int dx, int dy) {
+        int x = xs[index] + 10;
+        int y = ys[index] + 10;
+        mouse(MouseEvent.MOUSE_PRESSED, x, y);
+        mouse(MouseEvent.MOUSE_DRAGGED, x + dx, y + dy);
+        mouse(MouseEvent.MOUSE_RELEASED, x + dx, y + dy);
+        xs[index] += dx;
+        ys[index] += dy;
+    }
+
+    private void mouse(int id, int x, int y) {
+        canvas.dispatchEvent(new MouseEvent(canvas, id, System.currentTimeMillis(), InputEvent.BUTTON1_DOWN_MASK,
+            x, y, 1, false, MouseEvent.BUTTON1));
+    }
+
+    private long fingerprint() {
+        long hash = 0;
+        for (CanvasElement element : canvas.createSnapshot()) {
+            hash = hash * 31 + element.getBounds().hashCode();
+        }
+        return hash;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}